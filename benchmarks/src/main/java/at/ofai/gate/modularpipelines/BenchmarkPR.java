@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Document;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.util.InvalidOffsetException;
+
+/**
+ * A cheap local PR used to build synthetic pipelines for the benchmarks.
+ * 
+ * It has a couple of runtime parameters of different types which can be
+ * set from a config and, when executed, adds a single annotation to the
+ * output annotation set so that running it has a small observable effect.
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(name = "Benchmark PR",
+        comment = "A trivial PR for benchmarking the modular pipelines plugin")
+public class BenchmarkPR extends AbstractLanguageAnalyser {
+  private static final long serialVersionUID = 1L;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "A string parameter", defaultValue = "")
+  public void setStringParm(String value) {
+    stringParm = value;
+  }
+  public String getStringParm() {
+    return stringParm;
+  }
+  protected String stringParm;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "An integer parameter", defaultValue = "0")
+  public void setIntParm(Integer value) {
+    intParm = value;
+  }
+  public Integer getIntParm() {
+    return intParm;
+  }
+  protected Integer intParm;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "The output annotation set", defaultValue = "")
+  public void setOutputASName(String value) {
+    outputASName = value;
+  }
+  public String getOutputASName() {
+    return outputASName;
+  }
+  protected String outputASName;
+
+  @Override
+  public void execute() throws ExecutionException {
+    Document doc = getDocument();
+    long length = doc.getContent().size();
+    try {
+      doc.getAnnotations(outputASName).add(0L, length, getName(), gate.Factory.newFeatureMap());
+    } catch (InvalidOffsetException ex) {
+      throw new ExecutionException("Could not add annotation", ex);
+    }
+  }
+}
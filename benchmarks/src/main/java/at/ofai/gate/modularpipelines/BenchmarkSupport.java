@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Gate;
+import gate.creole.Plugin;
+import gate.creole.ResourceInstantiationException;
+import gate.persist.PersistenceException;
+import gate.util.GateRuntimeException;
+import gate.util.persistence.Persistence;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.net.URL;
+import org.jdom.Document;
+import org.jdom.Element;
+
+/**
+ * Static helpers shared by the benchmarks.
+ * 
+ * @author Johann Petrak
+ */
+public class BenchmarkSupport {
+  
+  private static BenchmarkPlugin plugin;
+  
+  private BenchmarkSupport() {}
+  
+  /**
+   * Initialise GATE once and register the plugin's resources and the 
+   * benchmark PR directly from the classpath.
+   * 
+   * @throws Exception if GATE cannot be initialised
+   */
+  public static synchronized void initGate() throws Exception {
+    if (Gate.isInitialised()) {
+      return;
+    }
+    Gate.runInSandbox(true);
+    Gate.init();
+    plugin = new BenchmarkPlugin(
+            ParametrizedCorpusController.class, Pipeline.class, BenchmarkPR.class, 
+            LatencyPR.class);
+    Gate.getCreoleRegister().registerPlugin(plugin);
+    PersistenceManager.registerPersistentEquivalent(
+            ParametrizedCorpusController.class, 
+            ParametrizedCorpusControllerPersistence.class);
+    PersistenceManager.registerPersistentEquivalent(
+            BenchmarkPlugin.class, BenchmarkPluginPersistence.class);
+  }
+  
+  /**
+   * Get one of the fixture files of the plugin's test directory.
+   * 
+   * The directory is taken from the system property 
+   * modularpipelines.fixtures if set, otherwise the test directory next to 
+   * the benchmarks directory is used, so the benchmarks should get run
+   * from within the benchmarks directory.
+   * 
+   * @param name the file name within the test directory
+   * @return the file
+   */
+  public static File fixture(String name) {
+    String dir = System.getProperty("modularpipelines.fixtures");
+    File file = new File(dir == null ? "../test" : dir, name);
+    if (!file.exists()) {
+      throw new GateRuntimeException("Fixture file not found: " + file.getAbsolutePath());
+    }
+    return file;
+  }
+  
+  /**
+   * A plugin consisting of resource classes which are already on the 
+   * classpath. 
+   * 
+   * Unlike with CreoleRegister.registerComponent, several such classes
+   * can be registered together, registerComponent would consider all
+   * the classes to come from the same plugin and only register the first.
+   */
+  static class BenchmarkPlugin extends Plugin {
+    private final Class<?>[] resourceClasses;
+    
+    BenchmarkPlugin(Class<?>... resourceClasses) throws Exception {
+      this.resourceClasses = resourceClasses;
+      this.baseURL = new URL(BenchmarkSupport.class.getResource("BenchmarkSupport.class"), ".");
+      this.name = "ModularPipelinesBenchmarks";
+    }
+    
+    @Override
+    public Document getCreoleXML() throws Exception {
+      Element creole = new Element("CREOLE");
+      for (Class<?> clazz : resourceClasses) {
+        Element resource = new Element("RESOURCE");
+        Element classElement = new Element("CLASS");
+        classElement.setText(clazz.getName());
+        resource.addContent(classElement);
+        creole.addContent(resource);
+      }
+      Element directory = new Element("CREOLE-DIRECTORY");
+      directory.addContent(creole);
+      return new Document(directory);
+    }
+  }
+  
+  /**
+   * Lets applications using the benchmark plugin get saved, so the 
+   * benchmarks can run saved sub-pipelines. Loading such an application 
+   * again refers to the plugin which is already registered.
+   */
+  public static class BenchmarkPluginPersistence implements Persistence {
+    private static final long serialVersionUID = 1L;
+    
+    @Override
+    public void extractDataFromSource(Object source) throws PersistenceException {
+      // nothing to save, the plugin is registered by initGate
+    }
+    
+    @Override
+    public Object createObject() throws PersistenceException, ResourceInstantiationException {
+      return plugin;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading a config file.
+ * 
+ * The small config is the configMain.yaml fixture, the large one is the 
+ * fixture followed by a thousand generated prparm, prrun and docfeature 
+ * settings. Reading through readConfigFile gets the parsed file from the
+ * ConfigCache, parsing measures what every read cost before the cache 
+ * existed and what the first read of a changed file still costs.
+ * 
+ * @author Johann Petrak
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigReadingBenchmark {
+  
+  @Param({"small", "large"})
+  public String configSize;
+  
+  File configFile;
+  URL configUrl;
+  
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    BenchmarkSupport.initGate();
+    File fixture = BenchmarkSupport.fixture("configMain.yaml");
+    configFile = File.createTempFile("benchmarkConfig", ".yaml");
+    configFile.deleteOnExit();
+    Files.copy(fixture.toPath(), configFile.toPath(), 
+            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    if ("large".equals(configSize)) {
+      appendSettings(configFile, 1000);
+    }
+    configUrl = configFile.toURI().toURL();
+    ConfigCache.invalidate(configFile);
+  }
+  
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    ConfigCache.invalidate(configFile);
+    configFile.delete();
+  }
+  
+  @Benchmark
+  public Config readConfigFile() {
+    return Utils.readConfigFile(configUrl);
+  }
+  
+  @Benchmark
+  public Config parseConfigFile() {
+    return Utils.parseConfigFile(configFile);
+  }
+  
+  static void appendSettings(File file, int n) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), 
+            StandardCharsets.UTF_8, java.nio.file.StandardOpenOption.APPEND))) {
+      out.println();
+      for (int i = 0; i < n; i++) {
+        switch (i % 3) {
+          case 0:
+            out.println("- set: prparm");
+            out.println("  controller: ctrl" + (i % 10));
+            out.println("  prname: pr" + i);
+            out.println("  name: stringParm");
+            out.println("  value: value" + i);
+            break;
+          case 1:
+            out.println("- set: prrun");
+            out.println("  controller: ctrl" + (i % 10));
+            out.println("  prname: pr" + i);
+            out.println("  value: " + (i % 2 == 0));
+            break;
+          default:
+            out.println("- set: docfeature");
+            out.println("  name: feature" + i);
+            out.println("  value: value" + i);
+            out.println("  override: " + (i % 2 == 0));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Factory;
+import gate.FeatureMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of setting the document features of a config on a document.
+ * 
+ * The config has the document features of the configMain.yaml fixture
+ * and a number of generated ones, half of which may not override an
+ * existing value. Half of the features are already present on the 
+ * document, as they would be after the first pipeline of a nested 
+ * application has run.
+ * 
+ * @author Johann Petrak
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DocumentFeaturesBenchmark {
+  
+  @Param({"10", "100", "1000"})
+  public int numberOfFeatures;
+  
+  Config config;
+  FeatureMap features;
+  
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    BenchmarkSupport.initGate();
+    config = Utils.parseConfigFile(BenchmarkSupport.fixture("configMain.yaml"));
+    features = Factory.newFeatureMap();
+    for (int i = 0; i < numberOfFeatures; i++) {
+      config.docFeatures.put("feature" + i, "value" + i);
+      config.docFeaturesOverridable.put("feature" + i, i % 2 == 0);
+      if (i % 4 < 2) {
+        features.put("feature" + i, "existing" + i);
+      }
+    }
+  }
+  
+  @Benchmark
+  public FeatureMap setDocumentFeatures() {
+    Utils.setDocumentFeatures(features, config);
+    return features;
+  }
+}
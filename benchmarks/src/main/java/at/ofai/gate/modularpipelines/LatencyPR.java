@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Document;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PR which measures how long a document takes from one point of a
+ * pipeline to another, used by the throughput runner.
+ * 
+ * The PR with start set to true stores the current time in a document 
+ * feature, the PR with start set to false removes the feature and 
+ * records the time since then. 
+ * 
+ * @author Johann Petrak
+ */
+@CreoleResource(name = "Latency PR",
+        comment = "Measures the per-document latency for benchmarking the modular pipelines plugin")
+public class LatencyPR extends AbstractLanguageAnalyser {
+  private static final long serialVersionUID = 1L;
+  
+  private static final String START_FEATURE = "modularpipelines.benchmark.start";
+  
+  private static final List<Long> LATENCIES = new ArrayList<>();
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If true, start measuring, otherwise record the latency", defaultValue = "true")
+  public void setStart(Boolean value) {
+    start = value;
+  }
+  public Boolean getStart() {
+    return start;
+  }
+  protected Boolean start;
+
+  @Override
+  public void execute() throws ExecutionException {
+    Document doc = getDocument();
+    if (start == null || start) {
+      doc.getFeatures().put(START_FEATURE, System.nanoTime());
+    } else {
+      Object started = doc.getFeatures().remove(START_FEATURE);
+      if (started instanceof Long) {
+        long nanos = System.nanoTime() - (Long)started;
+        synchronized (LATENCIES) {
+          LATENCIES.add(nanos);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Get the latencies recorded since the last call and forget them.
+   * 
+   * @return the latencies in nanoseconds, in the order they were recorded
+   */
+  public static long[] drain() {
+    synchronized (LATENCIES) {
+      long[] result = new long[LATENCIES.size()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = LATENCIES.get(i);
+      }
+      LATENCIES.clear();
+      return result;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.creole.AnalyserRunningStrategy;
+import gate.creole.ConditionalSerialAnalyserController;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.RunningStrategy;
+import gate.util.GateRuntimeException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of applying the config driven runtime parameters of a controller
+ * at execution start.
+ * 
+ * The baseline benchmark runs the way this was done before parameter plans
+ * and cached setters existed: rebuild the PR id map, split all config keys 
+ * and set every value through setParameterValue. The other benchmarks
+ * compile a new plan every time (first run of a controller) and re-use
+ * a plan whose values are already set (every later run).
+ * 
+ * @author Johann Petrak
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParameterSettingBenchmark {
+  
+  @Param({"10", "100", "1000"})
+  public int numberOfPrs;
+  
+  ConditionalSerialAnalyserController controller;
+  Config config;
+  ParameterPlan plan;
+  
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    BenchmarkSupport.initGate();
+    controller = (ConditionalSerialAnalyserController)Factory.createResource(
+            "gate.creole.ConditionalSerialAnalyserController");
+    controller.setName("ctrl");
+    config = new Config();
+    for (int i = 0; i < numberOfPrs; i++) {
+      FeatureMap parms = Factory.newFeatureMap();
+      ProcessingResource pr = (ProcessingResource)Factory.createResource(
+              BenchmarkPR.class.getName(), parms, Factory.newFeatureMap(), "pr" + i);
+      controller.add(pr);
+      Map<String, Object> prparm = new HashMap<>();
+      prparm.put("stringParm", "value" + i);
+      prparm.put("intParm", i);
+      if (i % 2 == 0) {
+        prparm.put("$$RUNFLAG$$", Boolean.TRUE);
+      }
+      config.prRuntimeParms.put("ctrl\tpr" + i, prparm);
+    }
+    plan = Utils.setControllerParms(controller, config, null);
+  }
+  
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Factory.deleteResource(controller);
+  }
+  
+  @Benchmark
+  public void baselineSetParameterValue() {
+    baselineSetControllerParms(controller, config);
+  }
+  
+  @Benchmark
+  public ParameterPlan compilePlanAndSetAll() {
+    return Utils.setControllerParms(controller, config, null);
+  }
+  
+  @Benchmark
+  public ParameterPlan reusePlan() {
+    return Utils.setControllerParms(controller, config, plan);
+  }
+  
+  // The implementation of Utils.setControllerParms before parameter plans
+  // were introduced, kept here to have a reference point.
+  static void baselineSetControllerParms(ConditionalSerialAnalyserController cntrlr, Config config) {
+    String cName = cntrlr.getName();
+    List<RunningStrategy> strategies = cntrlr.getRunningStrategies();
+    List<ProcessingResource> prs = cntrlr.getPRs();
+    Map<String, Integer> prNums = new HashMap<>();
+    int i = 0;
+    for (ProcessingResource pr : prs) {
+      String id = cName + "\t" + pr.getName();
+      if (prNums.containsKey(id)) {
+        throw new GateRuntimeException("Cannot set PR parameters the PR name appears twice: " + id);
+      }
+      prNums.put(id, i);
+      i++;
+    }
+    for (String prId : config.prRuntimeParms.keySet()) {
+      String[] contrprname = prId.split("\t");
+      if (contrprname[0].equals(cName)) {
+        Integer id = prNums.get(prId);
+        ProcessingResource pr = prs.get(id);
+        Map<String, Object> prparm = config.prRuntimeParms.get(prId);
+        for (String parmName : prparm.keySet()) {
+          Object parmValue = prparm.get(parmName);
+          if (parmName.equals("$$RUNFLAG$$")) {
+            boolean flag = (Boolean) parmValue;
+            AnalyserRunningStrategy str = (AnalyserRunningStrategy) strategies.get(id);
+            str.setRunMode(flag ? AnalyserRunningStrategy.RUN_ALWAYS : AnalyserRunningStrategy.RUN_NEVER);
+          } else {
+            try {
+              pr.setParameterValue(parmName, parmValue);
+            } catch (ResourceInstantiationException ex) {
+              throw new GateRuntimeException("Could not set parameter " + parmName + " for PR id " + prId, ex);
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.creole.ConditionalSerialAnalyserController;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-document cost of running a sub-pipeline through a Pipeline PR 
+ * compared to nesting a plain controller.
+ * 
+ * The sub-pipeline is a ParametrizedCorpusController with a number of 
+ * benchmark PRs which gets saved to a temporary file and loaded by a 
+ * Pipeline PR. The same PRs are also run by a 
+ * ConditionalSerialAnalyserController nested directly in the outer 
+ * controller and, as a reference, directly by the outer controller itself.
+ * Each benchmark runs the outer controller on the doc01.xml fixture.
+ * 
+ * @author Johann Petrak
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineDispatchBenchmark {
+  
+  @Param({"1", "10"})
+  public int numberOfPrs;
+  
+  File pipelineFile;
+  Corpus corpus;
+  Document document;
+  ConditionalSerialAnalyserController viaPipeline;
+  ConditionalSerialAnalyserController viaController;
+  ConditionalSerialAnalyserController flat;
+  List<gate.Resource> resources = new ArrayList<>();
+  
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    BenchmarkSupport.initGate();
+    document = Factory.newDocument(BenchmarkSupport.fixture("doc01.xml").toURI().toURL());
+    corpus = Factory.newCorpus("benchmarkCorpus");
+    corpus.add(document);
+    
+    ParametrizedCorpusController sub = (ParametrizedCorpusController)Factory.createResource(
+            ParametrizedCorpusController.class.getName(), Factory.newFeatureMap(), 
+            Factory.newFeatureMap(), "sub");
+    addPrs(sub);
+    pipelineFile = File.createTempFile("benchmarkPipeline", ".xgapp");
+    pipelineFile.deleteOnExit();
+    PersistenceManager.saveObjectToFile(sub, pipelineFile);
+    for (ProcessingResource pr : new ArrayList<>(sub.getPRs())) {
+      Factory.deleteResource(pr);
+    }
+    Factory.deleteResource(sub);
+    
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", pipelineFile.toURI().toURL());
+    ProcessingResource pipeline = (ProcessingResource)Factory.createResource(
+            Pipeline.class.getName(), parms, Factory.newFeatureMap(), "pipeline");
+    resources.add(pipeline);
+    viaPipeline = newController("viaPipeline");
+    viaPipeline.add(pipeline);
+    
+    ConditionalSerialAnalyserController nested = newController("nested");
+    addPrs(nested);
+    viaController = newController("viaController");
+    viaController.add(nested);
+    
+    flat = newController("flat");
+    addPrs(flat);
+  }
+  
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    for (gate.Resource resource : resources) {
+      Factory.deleteResource(resource);
+    }
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(document);
+    pipelineFile.delete();
+  }
+  
+  @Benchmark
+  public Document pipeline() throws ExecutionException {
+    return run(viaPipeline);
+  }
+  
+  @Benchmark
+  public Document nestedController() throws ExecutionException {
+    return run(viaController);
+  }
+  
+  @Benchmark
+  public Document flatController() throws ExecutionException {
+    return run(flat);
+  }
+  
+  private Document run(ConditionalSerialAnalyserController controller) throws ExecutionException {
+    document.getAnnotations().clear();
+    controller.setDocument(document);
+    controller.execute();
+    return document;
+  }
+  
+  private ConditionalSerialAnalyserController newController(String name) 
+          throws ResourceInstantiationException {
+    ConditionalSerialAnalyserController controller = 
+            (ConditionalSerialAnalyserController)Factory.createResource(
+            ConditionalSerialAnalyserController.class.getName(), Factory.newFeatureMap(), 
+            Factory.newFeatureMap(), name);
+    controller.setCorpus(corpus);
+    resources.add(controller);
+    return controller;
+  }
+  
+  private void addPrs(ConditionalSerialAnalyserController controller) 
+          throws ResourceInstantiationException {
+    for (int i = 0; i < numberOfPrs; i++) {
+      ProcessingResource pr = (ProcessingResource)Factory.createResource(
+              BenchmarkPR.class.getName(), Factory.newFeatureMap(), 
+              Factory.newFeatureMap(), "pr" + i);
+      controller.add(pr);
+      if (controller.getName().equals("sub")) {
+        continue;
+      }
+      resources.add(pr);
+    }
+  }
+}
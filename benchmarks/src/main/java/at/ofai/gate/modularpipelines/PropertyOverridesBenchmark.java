@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of adding the settings from system properties to a config.
+ * 
+ * The system properties contain a number of prparm, prrun and docfeature
+ * settings. Merging into an unchanged set of properties re-uses the 
+ * override layer, changing one property first makes all the properties
+ * get parsed again, which is what every read of a config cost before
+ * the layer was cached.
+ * 
+ * @author Johann Petrak
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PropertyOverridesBenchmark {
+  
+  private static final String PREFIX = "modularpipelines.";
+  
+  @Param({"10", "100", "1000"})
+  public int numberOfProperties;
+  
+  Config config;
+  int changes;
+  
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    BenchmarkSupport.initGate();
+    config = Utils.parseConfigFile(BenchmarkSupport.fixture("configMain.yaml"));
+    for (int i = 0; i < numberOfProperties; i++) {
+      System.setProperty(key(i), value(i));
+    }
+  }
+  
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    for (int i = 0; i < numberOfProperties; i++) {
+      System.clearProperty(key(i));
+    }
+  }
+  
+  @Benchmark
+  public Config unchangedProperties() {
+    Config copy = new Config(config);
+    Utils.add2ConfigFromProperties(copy);
+    return copy;
+  }
+  
+  @Benchmark
+  public Config changedProperty() {
+    System.setProperty(key(0), "changed" + (changes++));
+    Config copy = new Config(config);
+    Utils.add2ConfigFromProperties(copy);
+    return copy;
+  }
+  
+  static String key(int i) {
+    switch (i % 3) {
+      case 0:
+        return PREFIX + "prparm.ctrl" + (i % 10) + ".pr" + i + ".stringParm";
+      case 1:
+        return PREFIX + "prrun.ctrl" + (i % 10) + ".pr" + i;
+      default:
+        return PREFIX + "docfeature.feature" + i;
+    }
+  }
+  
+  static String value(int i) {
+    return i % 3 == 1 ? String.valueOf(i % 2 == 0) : "value" + i;
+  }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.util.GateRuntimeException;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the corpus throughput of a synthetic tree of nested modular 
+ * pipelines and writes a JSON report.
+ * 
+ * The tree is modelled on the pipelineMain.xgapp fixture and the sub-pipelines
+ * it loads: every node is a ParametrizedCorpusController with a config file
+ * like configMain.yaml, some benchmark PRs and, unless it is a leaf, a 
+ * Pipeline PR for each of its sub-pipelines. All nodes get saved to a 
+ * temporary directory and the root is loaded from there like any other 
+ * application. The root additionally contains a LatencyPR at the start
+ * and at the end to measure the time each document takes.
+ * <p>
+ * The generated corpus is processed by the root for each of the given 
+ * numbers of threads, where one thread runs the controller as usual and 
+ * more threads use duplicated workers by setting corpusParallelism.
+ * Run it with e.g.
+ * <pre>
+ * java -cp target/benchmarks.jar at.ofai.gate.modularpipelines.ThroughputRunner \
+ *     --documents 1000 --depth 2 --width 2 --threads 1,2,4 --report throughput.json
+ * </pre>
+ * 
+ * @author Johann Petrak
+ */
+public class ThroughputRunner {
+  
+  private static final String[] WORDS = {
+    "the", "of", "and", "to", "in", "pipeline", "document", "corpus", "annotation", 
+    "feature", "controller", "resource", "config", "parameter", "language", "text",
+    "Vienna", "Sheffield", "processing", "modular", "analysis", "a", "is", "with"
+  };
+  
+  int documents = 200;
+  int documentLength = 500;
+  int depth = 2;
+  int width = 2;
+  int prs = 3;
+  int[] threads = {1, 2, 4};
+  int warmup = 1;
+  int repeat = 3;
+  long seed = 42;
+  File report = new File("throughput.json");
+  
+  private int controllers;
+  private int processingResources;
+  
+  public static void main(String[] args) throws Exception {
+    ThroughputRunner runner = new ThroughputRunner();
+    runner.parseArgs(args);
+    runner.run();
+  }
+  
+  void parseArgs(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String name = args[i];
+      if (i + 1 >= args.length) {
+        throw new GateRuntimeException("No value for option " + name);
+      }
+      String value = args[++i];
+      switch (name) {
+        case "--documents": documents = Integer.parseInt(value); break;
+        case "--length": documentLength = Integer.parseInt(value); break;
+        case "--depth": depth = Integer.parseInt(value); break;
+        case "--width": width = Integer.parseInt(value); break;
+        case "--prs": prs = Integer.parseInt(value); break;
+        case "--threads": 
+          threads = Arrays.stream(value.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+          break;
+        case "--warmup": warmup = Integer.parseInt(value); break;
+        case "--repeat": repeat = Integer.parseInt(value); break;
+        case "--seed": seed = Long.parseLong(value); break;
+        case "--report": report = new File(value); break;
+        default:
+          throw new GateRuntimeException("Unknown option " + name + 
+                  ", known are --documents --length --depth --width --prs --threads --warmup --repeat --seed --report");
+      }
+    }
+  }
+  
+  void run() throws Exception {
+    BenchmarkSupport.initGate();
+    File dir = Files.createTempDirectory("modularpipelines-throughput").toFile();
+    Corpus corpus = null;
+    ParametrizedCorpusController root = null;
+    List<String> results = new ArrayList<>();
+    try {
+      File rootFile = buildTree(dir);
+      root = (ParametrizedCorpusController)PersistenceManager.loadObjectFromFile(rootFile);
+      corpus = generateCorpus();
+      root.setCorpus(corpus);
+      for (int n : threads) {
+        root.setCorpusParallelism(n);
+        for (int i = 0; i < warmup; i++) {
+          runOnce(root, corpus);
+        }
+        LatencyPR.drain();
+        double seconds = 0.0;
+        long peak = 0;
+        long used = 0;
+        for (int i = 0; i < repeat; i++) {
+          resetPeakHeap();
+          seconds += runOnce(root, corpus);
+          peak = Math.max(peak, peakHeap());
+          used = Math.max(used, usedHeap());
+        }
+        long[] latencies = LatencyPR.drain();
+        String result = result(n, seconds, latencies, used, peak);
+        System.err.println(result);
+        results.add(result);
+      }
+    } finally {
+      if (root != null) {
+        root.setCorpusParallelism(1);
+        Factory.deleteResource(root);
+      }
+      if (corpus != null) {
+        for (Document doc : new ArrayList<>(corpus)) {
+          Factory.deleteResource(doc);
+        }
+        Factory.deleteResource(corpus);
+      }
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+    writeReport(results);
+    System.err.println("Report written to " + report.getAbsolutePath());
+  }
+  
+  private double runOnce(ParametrizedCorpusController root, Corpus corpus) throws Exception {
+    for (Document doc : corpus) {
+      doc.getAnnotations().clear();
+    }
+    long start = System.nanoTime();
+    root.execute();
+    return (System.nanoTime() - start) / 1.0e9;
+  }
+  
+  /**
+   * Create and save the controllers of the tree, leaves first.
+   * 
+   * @param dir the directory to save to
+   * @return the saved root controller
+   */
+  File buildTree(File dir) throws Exception {
+    return buildNode(dir, "node", 0);
+  }
+  
+  private File buildNode(File dir, String name, int level) throws Exception {
+    List<File> subs = new ArrayList<>();
+    if (level < depth) {
+      for (int i = 0; i < width; i++) {
+        subs.add(buildNode(dir, name + "_" + i, level + 1));
+      }
+    }
+    File configFile = new File(dir, name + ".yaml");
+    writeConfig(configFile, name);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    ParametrizedCorpusController controller = (ParametrizedCorpusController)Factory.createResource(
+            ParametrizedCorpusController.class.getName(), parms, Factory.newFeatureMap(), name);
+    controllers++;
+    List<ProcessingResource> created = new ArrayList<>();
+    if (level == 0) {
+      created.add(latencyPR(true));
+    }
+    for (int i = 0; i < prs; i++) {
+      FeatureMap prParms = Factory.newFeatureMap();
+      created.add((ProcessingResource)Factory.createResource(
+              BenchmarkPR.class.getName(), prParms, Factory.newFeatureMap(), "pr" + i));
+      processingResources++;
+    }
+    for (int i = 0; i < subs.size(); i++) {
+      FeatureMap pipelineParms = Factory.newFeatureMap();
+      pipelineParms.put("pipelineFileURL", subs.get(i).toURI().toURL());
+      created.add((ProcessingResource)Factory.createResource(
+              Pipeline.class.getName(), pipelineParms, Factory.newFeatureMap(), "pipeline" + i));
+    }
+    if (level == 0) {
+      created.add(latencyPR(false));
+    }
+    for (ProcessingResource pr : created) {
+      controller.add(pr);
+    }
+    File file = new File(dir, name + ".xgapp");
+    PersistenceManager.saveObjectToFile(controller, file);
+    Factory.deleteResource(controller);
+    for (ProcessingResource pr : created) {
+      Factory.deleteResource(pr);
+    }
+    return file;
+  }
+  
+  private static ProcessingResource latencyPR(boolean start) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("start", start);
+    return (ProcessingResource)Factory.createResource(
+            LatencyPR.class.getName(), parms, Factory.newFeatureMap(), start ? "latencyStart" : "latencyEnd");
+  }
+  
+  // the same kind of settings as in configMain.yaml, for the controller itself
+  private void writeConfig(File file, String name) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+      out.println("- set: docfeature");
+      out.println("  name: " + name);
+      out.println("  value: visited");
+      out.println("  override: true");
+      for (int i = 0; i < prs; i++) {
+        out.println("- set: prparm");
+        out.println("  controller: " + name);
+        out.println("  prname: pr" + i);
+        out.println("  name: stringParm");
+        out.println("  value: " + name);
+        out.println("- set: prparm");
+        out.println("  controller: " + name);
+        out.println("  prname: pr" + i);
+        out.println("  name: intParm");
+        out.println("  value: " + i);
+      }
+    }
+  }
+  
+  Corpus generateCorpus() throws Exception {
+    Random random = new Random(seed);
+    Corpus corpus = Factory.newCorpus("throughput");
+    for (int i = 0; i < documents; i++) {
+      StringBuilder text = new StringBuilder(documentLength * 8);
+      for (int w = 0; w < documentLength; w++) {
+        if (w > 0) {
+          text.append(w % 15 == 0 ? ".\n" : " ");
+        }
+        text.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      Document doc = Factory.newDocument(text.toString());
+      doc.setName("doc" + i);
+      corpus.add(doc);
+    }
+    return corpus;
+  }
+  
+  private static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+  
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+  
+  // the heap still in use after a run, which includes the corpus
+  private static long usedHeap() {
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+  
+  private String result(int n, double seconds, long[] latencies, long used, long peak) {
+    Arrays.sort(latencies);
+    long processed = (long)documents * repeat;
+    return String.format(Locale.ROOT, 
+            "{\"threads\": %d, \"documents\": %d, \"seconds\": %.3f, \"docsPerSecond\": %.2f, " +
+            "\"latencyMillis\": {\"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f}, " +
+            "\"heapUsedMB\": %.1f, \"heapPeakMB\": %.1f}",
+            n, processed, seconds, seconds > 0 ? processed / seconds : 0.0,
+            mean(latencies) / 1.0e6, percentile(latencies, 50) / 1.0e6, percentile(latencies, 90) / 1.0e6,
+            percentile(latencies, 99) / 1.0e6, percentile(latencies, 100) / 1.0e6,
+            used / 1048576.0, peak / 1048576.0);
+  }
+  
+  private static double mean(long[] values) {
+    return values.length == 0 ? 0.0 : Arrays.stream(values).average().getAsDouble();
+  }
+  
+  // nearest rank percentile of sorted values
+  private static double percentile(long[] sorted, int p) {
+    if (sorted.length == 0) {
+      return 0.0;
+    }
+    int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+  
+  private void writeReport(List<String> results) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8))) {
+      out.println("{");
+      out.println("  \"settings\": {\"documents\": " + documents + ", \"documentLength\": " + documentLength +
+              ", \"depth\": " + depth + ", \"width\": " + width + ", \"prsPerController\": " + prs +
+              ", \"controllers\": " + controllers + ", \"benchmarkPrs\": " + processingResources +
+              ", \"warmup\": " + warmup + ", \"repeat\": " + repeat + ", \"seed\": " + seed + "},");
+      out.println("  \"java\": {\"version\": \"" + System.getProperty("java.version") + 
+              "\", \"processors\": " + Runtime.getRuntime().availableProcessors() +
+              ", \"maxHeapMB\": " + Runtime.getRuntime().maxMemory() / 1048576 + "},");
+      out.println("  \"runs\": [");
+      for (int i = 0; i < results.size(); i++) {
+        out.println("    " + results.get(i) + (i < results.size() - 1 ? "," : ""));
+      }
+      out.println("  ]");
+      out.println("}");
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.creole.ResourceInstantiationException;
+import gate.persist.GateAwareObjectInputStream;
+import gate.persist.PersistenceException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Load an application using a snapshot of what got parsed when it was 
+ * loaded in an earlier run.
+ * 
+ * The snapshot is a local binary file which holds, for every pipeline file
+ * of the application, the persistence representation of the controller 
+ * stored in it, in the template form the PipelineFileCache uses, and the 
+ * parsed form of all the config files which got used when the application
+ * was loaded, each together with the SHA-256 hash of the content of its 
+ * file. When the application gets loaded from a snapshot, every pipeline
+ * file whose content still has the same hash gets restored from its 
+ * template without parsing its XML, and the parsed form of every config
+ * file whose content still has the same hash is put into the ConfigCache.
+ * Any changed or new file is parsed as usual, and then the snapshot gets
+ * written again after loading.
+ * <p>
+ * The PRs still get created and initialised, and the configs get applied,
+ * as if the pipeline files had been loaded: GATE cannot save the 
+ * initialised state of PRs in general. Pipeline files which do not store
+ * a ParametrizedCorpusController are always loaded as usual. Files of 
+ * pipelines which are loaded lazily are only in the snapshot if they got 
+ * loaded while the application was loaded.
+ *
+ * @author Johann Petrak
+ */
+public class ApplicationSnapshot {
+
+  protected static final Logger LOGGER = Logger.getLogger(ApplicationSnapshot.class);
+
+  private static final String MAGIC = "ModularPipelinesSnapshot";
+  private static final int VERSION = 3;
+
+  // the config and pipeline files used while an application gets loaded 
+  // for a snapshot
+  private static final Set<File> CONFIGS = ConcurrentHashMap.newKeySet();
+  private static final Map<String, Template> PIPELINES = new ConcurrentHashMap<>();
+  private static volatile boolean recording = false;
+
+  // the still valid templates of the snapshot which is used
+  private static final Map<String, Template> RESTORED_PIPELINES = new ConcurrentHashMap<>();
+
+  private static final AtomicLong RESTORED = new AtomicLong();
+  private static final AtomicLong WRITTEN = new AtomicLong();
+
+  private ApplicationSnapshot() {}
+
+  private static class Template {
+    final byte[] hash;
+    final byte[] content;
+    File file;
+    Template(byte[] hash, byte[] content) {
+      this.hash = hash;
+      this.content = content;
+    }
+  }
+
+  /**
+   * Load the application, using the snapshot if it exists and writing or
+   * updating the snapshot if necessary.
+   *
+   * @param url the URL of the application file
+   * @param snapshotFile the snapshot file
+   * @return the loaded application
+   * @throws PersistenceException if the application cannot be restored
+   * @throws IOException if the application file cannot be read
+   * @throws ResourceInstantiationException if a resource cannot be created
+   */
+  public static synchronized Object load(URL url, File snapshotFile)
+          throws PersistenceException, IOException, ResourceInstantiationException {
+    Set<String> snapshotPipelines = new HashSet<>();
+    Set<File> snapshotConfigs = new HashSet<>();
+    boolean complete = snapshotFile.exists() && 
+            restore(snapshotFile, snapshotPipelines, snapshotConfigs);
+    long configMisses = ConfigCache.getMissCount();
+    long pipelineMisses = PipelineFileCache.getMissCount();
+    CONFIGS.clear();
+    PIPELINES.clear();
+    recording = true;
+    Object application;
+    try {
+      application = PipelineFileCache.loadObjectFromUrl(url);
+    } finally {
+      recording = false;
+      for(Template template : RESTORED_PIPELINES.values()) {
+        if(template.file != null) {
+          template.file.delete();
+        }
+      }
+      RESTORED_PIPELINES.clear();
+    }
+    if(!complete || ConfigCache.getMissCount() != configMisses || 
+       PipelineFileCache.getMissCount() != pipelineMisses || 
+       !CONFIGS.equals(snapshotConfigs) || !PIPELINES.keySet().equals(snapshotPipelines)) {
+      try {
+        write(snapshotFile);
+      } catch (IOException ex) {
+        LOGGER.warn("Could not write snapshot "+snapshotFile, ex);
+      }
+    }
+    CONFIGS.clear();
+    PIPELINES.clear();
+    return application;
+  }
+
+  /**
+   * Number of times a snapshot was used to load an application.
+   * @return count
+   */
+  public static long getRestoreCount() {
+    return RESTORED.get();
+  }
+
+  /**
+   * Number of times a snapshot was written.
+   * @return count
+   */
+  public static long getWriteCount() {
+    return WRITTEN.get();
+  }
+
+  /**
+   * Check if a snapshot of the application which gets loaded is being made.
+   * @return true while an application gets loaded for a snapshot 
+   */
+  static boolean isRecording() {
+    return recording;
+  }
+
+  static void recordConfig(File canonicalFile) {
+    if(recording) {
+      CONFIGS.add(canonicalFile);
+    }
+  }
+
+  /**
+   * Remember the template of a pipeline file for the snapshot.
+   * 
+   * @param key the canonical file URL of the pipeline file
+   * @param hash the hash of the content of the pipeline file
+   * @param template the template
+   */
+  static void recordTemplate(String key, byte[] hash, byte[] template) {
+    if(recording) {
+      PIPELINES.put(key, new Template(hash, template));
+    }
+  }
+
+  /**
+   * Get the file of the template of a pipeline file from the snapshot.
+   * 
+   * @param key the canonical URL of the pipeline file
+   * @param hash the hash of the current content of the pipeline file
+   * @return the template file or null if the snapshot has no template for 
+   * this content of the pipeline file
+   * @throws IOException if the template cannot be written to a file
+   */
+  static File getTemplate(String key, byte[] hash) throws IOException {
+    Template template = RESTORED_PIPELINES.get(key);
+    if(template == null || !Arrays.equals(template.hash, hash)) {
+      return null;
+    }
+    synchronized(template) {
+      if(template.file == null) {
+        File file = File.createTempFile("modularpipelines", ".gapp");
+        file.deleteOnExit();
+        Files.write(file.toPath(), template.content);
+        template.file = file;
+      }
+      return template.file;
+    }
+  }
+
+  // Put what is still valid into the ConfigCache and the templates, 
+  // returns true if everything in the snapshot was still valid.
+  private static boolean restore(File snapshotFile, Set<String> pipelines, Set<File> configs) {
+    int valid = 0;
+    int invalid = 0;
+    try (InputStream is = Files.newInputStream(snapshotFile.toPath());
+         ObjectInputStream ois = new GateAwareObjectInputStream(is)) {
+      if(!MAGIC.equals(ois.readObject()) || ois.readInt() != VERSION) {
+        LOGGER.warn("Not a snapshot of this version, ignoring "+snapshotFile);
+        return false;
+      }
+      int n = ois.readInt();
+      for(int i = 0; i < n; i++) {
+        String key = (String)ois.readObject();
+        byte[] hash = (byte[])ois.readObject();
+        byte[] content = (byte[])ois.readObject();
+        pipelines.add(key);
+        if(hasHash(new File(new URI(key)), hash)) {
+          RESTORED_PIPELINES.put(key, new Template(hash, content));
+          valid++;
+        } else {
+          invalid++;
+        }
+      }
+      n = ois.readInt();
+      for(int i = 0; i < n; i++) {
+        File file = new File((String)ois.readObject());
+        byte[] hash = (byte[])ois.readObject();
+        Config config = (Config)ois.readObject();
+        configs.add(file);
+        if(hasHash(file, hash)) {
+          ConfigCache.seed(file, config);
+          valid++;
+        } else {
+          invalid++;
+        }
+      }
+    } catch (IOException | ClassNotFoundException | ClassCastException | 
+             URISyntaxException | IllegalArgumentException ex) {
+      LOGGER.warn("Could not read snapshot "+snapshotFile+", loading without it", ex);
+      RESTORED_PIPELINES.clear();
+      return false;
+    }
+    RESTORED.incrementAndGet();
+    LOGGER.info("Restored "+valid+" files from snapshot "+snapshotFile+", "+invalid+" files changed");
+    return invalid == 0;
+  }
+
+  private static boolean hasHash(File file, byte[] hash) throws IOException {
+    return file.isFile() && Arrays.equals(hash, PipelineFileCache.sha256(Files.readAllBytes(file.toPath())));
+  }
+
+  private static void write(File snapshotFile) throws IOException {
+    Map<String, Template> pipelines = new TreeMap<>(PIPELINES);
+    List<File> configs = new ArrayList<>(CONFIGS);
+    Collections.sort(configs);
+    File dir = snapshotFile.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile(snapshotFile.getName(), ".tmp", dir);
+    try {
+      try (OutputStream os = Files.newOutputStream(tmp.toPath());
+           ObjectOutputStream oos = new ObjectOutputStream(os)) {
+        oos.writeObject(MAGIC);
+        oos.writeInt(VERSION);
+        oos.writeInt(pipelines.size());
+        for(Map.Entry<String, Template> entry : pipelines.entrySet()) {
+          oos.writeObject(entry.getKey());
+          oos.writeObject(entry.getValue().hash);
+          oos.writeObject(entry.getValue().content);
+        }
+        Map<File, Config> parsed = new HashMap<>();
+        for(File file : configs) {
+          Config config = ConfigCache.peek(file);
+          if(config != null) {
+            parsed.put(file, config);
+          }
+        }
+        oos.writeInt(parsed.size());
+        for(File file : configs) {
+          if(parsed.containsKey(file)) {
+            oos.writeObject(file.getPath());
+            oos.writeObject(PipelineFileCache.sha256(Files.readAllBytes(file.toPath())));
+            oos.writeObject(parsed.get(file));
+          }
+        }
+      }
+      Files.move(tmp.toPath(), snapshotFile.toPath(), 
+              StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+    WRITTEN.incrementAndGet();
+    LOGGER.info("Wrote snapshot "+snapshotFile+" of "+pipelines.size()+" pipeline files and "+
+            configs.size()+" config files");
+  }
+
+}
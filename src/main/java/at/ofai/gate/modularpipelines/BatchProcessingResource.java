@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Document;
+import gate.ProcessingResource;
+import gate.creole.ExecutionException;
+import java.util.List;
+
+/**
+ * A processing resource which can process several documents at once.
+ *
+ * When a ParametrizedCorpusController processes a batch of documents, PRs
+ * which implement this interface get all the documents of the batch for
+ * which their running strategy says they should run in a single call,
+ * all other PRs get run for each document of the batch separately.
+ *
+ * @author Johann Petrak
+ */
+public interface BatchProcessingResource extends ProcessingResource {
+
+  /**
+   * Process all the documents.
+   *
+   * The corpus, if the PR has one, is set before this gets called, the
+   * document parameter should be ignored.
+   *
+   * @param documents the documents to process, in processing order
+   * @throws ExecutionException if processing fails
+   */
+  void executeBatch(List<Document> documents) throws ExecutionException;
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.FeatureMap;
+import gate.ProcessingResource;
+import gate.corpora.DocumentImpl;
+import gate.creole.ExecutionException;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs independent Pipeline PRs of a controller in parallel on the same
+ * document.
+ *
+ * A Pipeline PR can take part in this if it declares the annotation sets
+ * it writes, and optionally the annotation sets it reads and the document
+ * features it reads and writes. Consecutive such Pipelines form a group
+ * if none of them writes anything that another one in the group reads or
+ * writes, where not declaring what is read means that everything may be
+ * read.
+ * <p>
+ * Each controller which runs branches has its own executor with at most
+ * one thread less than the maximum group size, which gets shut down when
+ * the controller gets cleaned up. Idle threads terminate after a while.
+ * <p>
+ * GATE documents are not thread-safe, so only the first Pipeline of a
+ * group runs on the document itself, in the calling thread. Each other
+ * Pipeline runs on a private copy of the document which shares the
+ * content and contains copies of the annotation sets it reads, where 
+ * each annotation has its own copy of the feature map. New
+ * annotations in each copy get ids from a range of their own. After all
+ * Pipelines of the group have finished, the annotation sets and document
+ * features written by each copy are merged back into the document, in
+ * the order of the PRs, keeping the annotation ids.
+ *
+ * @author Johann Petrak
+ */
+class BranchExecutor {
+
+  protected static final Logger LOGGER = Logger.getLogger(BranchExecutor.class);
+
+  // the number of annotation ids reserved for each branch running on a copy
+  static final int ID_RANGE = 10000000;
+
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private final String controllerName;
+  private final int maxGroupSize;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Create the executor for a controller.
+   * @param controllerName the name of the controller, for thread names and
+   * error messages
+   * @param maxGroupSize the maximum number of PRs in a group
+   */
+  BranchExecutor(String controllerName, int maxGroupSize) {
+    this.controllerName = controllerName;
+    this.maxGroupSize = maxGroupSize;
+    int threads = Math.max(maxGroupSize - 1, 1);
+    final AtomicInteger number = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ModularPipelines-Branch-"+controllerName+"-"+number.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Check if the executor was created for the given maximum group size.
+   * @param size the size
+   * @return true if it can be used for that size
+   */
+  boolean isFor(int size) {
+    return size == maxGroupSize;
+  }
+
+  /**
+   * Stop the threads of the executor.
+   */
+  void cleanup() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Check if the PR can run in parallel with other PRs.
+   * @param pr the PR
+   * @return true if it is a Pipeline which declares what it writes
+   */
+  static boolean isBranch(ProcessingResource pr) {
+    return (pr instanceof Pipeline) && ((Pipeline)pr).getWritesAnnotationSets() != null;
+  }
+
+  /**
+   * Find the end of the group of PRs which can run in parallel, starting
+   * with the PR at the given index.
+   *
+   * @param prs the PRs of the controller
+   * @param start the index of the first PR of the group
+   * @param maxSize the maximum number of PRs in a group
+   * @return the index after the last PR of the group
+   */
+  static int findGroupEnd(List<ProcessingResource> prs, int start, int maxSize) {
+    int end = start + 1;
+    if(!isBranch(prs.get(start))) {
+      return end;
+    }
+    while(end < prs.size() && end - start < maxSize && isBranch(prs.get(end))) {
+      Pipeline next = (Pipeline)prs.get(end);
+      for(int i = start; i < end; i++) {
+        if(conflict((Pipeline)prs.get(i), next)) {
+          return end;
+        }
+      }
+      end++;
+    }
+    return end;
+  }
+
+  static boolean conflict(Pipeline a, Pipeline b) {
+    return writesRead(a.getWritesAnnotationSets(), b.getReadsAnnotationSets()) ||
+           writesRead(b.getWritesAnnotationSets(), a.getReadsAnnotationSets()) ||
+           writesRead(a.getWritesAnnotationSets(), b.getWritesAnnotationSets()) ||
+           writesRead(a.getWritesDocumentFeatures(), b.getReadsDocumentFeatures()) ||
+           writesRead(b.getWritesDocumentFeatures(), a.getReadsDocumentFeatures()) ||
+           writesRead(a.getWritesDocumentFeatures(), b.getWritesDocumentFeatures());
+  }
+
+  // true if anything written is read, if read is null, everything is read
+  private static boolean writesRead(Collection<String> written, Collection<String> read) {
+    if(written == null || written.isEmpty()) {
+      return false;
+    }
+    if(read == null) {
+      return true;
+    }
+    for(String name : written) {
+      if(read.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Run the Pipelines on the document in parallel.
+   *
+   * @param doc the document
+   * @param branches the Pipelines to run, which must not conflict
+   * @throws ExecutionException if running any of the Pipelines failed
+   */
+  void run(Document doc, List<Pipeline> branches)
+          throws ExecutionException {
+    if(branches.isEmpty()) {
+      return;
+    }
+    DocumentImpl docImpl = doc instanceof DocumentImpl ? (DocumentImpl)doc : null;
+    long base = docImpl == null ? 0 : docImpl.peakAtNextAnnotationId();
+    if(branches.size() == 1 || docImpl == null ||
+       base + (long)branches.size() * ID_RANGE >= Integer.MAX_VALUE) {
+      // nothing to run in parallel or we cannot do it for this document
+      for(Pipeline branch : branches) {
+        branch.execute();
+      }
+      return;
+    }
+    // make the copies before anything runs on the document
+    List<Document> copies = new ArrayList<>();
+    for(int i = 1; i < branches.size(); i++) {
+      copies.add(copyForBranch(docImpl, branches.get(i), (int)(base + i * (long)ID_RANGE)));
+    }
+    // the branches record their metrics below the node of our controller
+    final boolean metrics = ExecutionMetrics.isEnabled();
+    final ExecutionTimer node = metrics ? ExecutionMetrics.current() : null;
+    List<Future<?>> futures = new ArrayList<>();
+    for(int i = 1; i < branches.size(); i++) {
+      final Pipeline branch = branches.get(i);
+      final Document copy = copies.get(i-1);
+      futures.add(executor.submit(() -> {
+        if(metrics) {
+          ExecutionMetrics.setCurrent(node);
+        }
+        branch.setDocument(copy);
+        try {
+          branch.execute();
+        } finally {
+          branch.setDocument(doc);
+          if(metrics) {
+            ExecutionMetrics.setCurrent(null);
+          }
+        }
+      }));
+    }
+    Throwable failure = null;
+    Pipeline failed = null;
+    try {
+      branches.get(0).execute();
+    } catch (RuntimeException | Error ex) {
+      failure = ex;
+      failed = branches.get(0);
+    }
+    for(int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        if(failure == null) {
+          failure = ex;
+          failed = branches.get(i+1);
+        }
+      } catch (java.util.concurrent.ExecutionException ex) {
+        if(failure == null) {
+          failure = ex.getCause();
+          failed = branches.get(i+1);
+        }
+      }
+    }
+    if(failure != null) {
+      throw new ExecutionException("Error running pipeline "+failed.getName()+
+              " in parallel in controller "+controllerName, failure);
+    }
+    if(docImpl.peakAtNextAnnotationId() > base + ID_RANGE) {
+      throw new GateRuntimeException("Pipeline "+branches.get(0).getName()+" in controller "+
+              controllerName+" created more than "+ID_RANGE+" annotations");
+    }
+    for(int i = 1; i < branches.size(); i++) {
+      merge((DocumentImpl)copies.get(i-1), docImpl, branches.get(i), base + (i+1) * (long)ID_RANGE);
+    }
+  }
+
+  private static Set<String> getSetNames(Document doc) {
+    Set<String> names = new HashSet<>();
+    names.add("");
+    if(doc.getNamedAnnotationSets() != null) {
+      names.addAll(doc.getNamedAnnotationSets().keySet());
+    }
+    return names;
+  }
+
+  private static AnnotationSet getSet(Document doc, String name) {
+    return name.isEmpty() ? doc.getAnnotations() : doc.getAnnotations(name);
+  }
+
+  private static Document copyForBranch(DocumentImpl doc, Pipeline branch, int firstId) {
+    DocumentImpl copy = new DocumentImpl();
+    copy.setName(doc.getName());
+    copy.setSourceUrl(doc.getSourceUrl());
+    copy.setContent(doc.getContent());
+    FeatureMap features = gate.Factory.newFeatureMap();
+    features.putAll(doc.getFeatures());
+    copy.setFeatures(features);
+    Collection<String> reads = branch.getReadsAnnotationSets();
+    if(reads == null) {
+      reads = getSetNames(doc);
+    }
+    for(String name : reads) {
+      if(!name.isEmpty() && (doc.getNamedAnnotationSets() == null ||
+              !doc.getNamedAnnotationSets().containsKey(name))) {
+        continue;
+      }
+      AnnotationSet to = getSet(copy, name);
+      for(Annotation ann : getSet(doc, name)) {
+        // the branch must not change the features of the original annotation
+        FeatureMap annFeatures = gate.Factory.newFeatureMap();
+        annFeatures.putAll(ann.getFeatures());
+        try {
+          to.add(ann.getId(), ann.getStartNode().getOffset(), ann.getEndNode().getOffset(),
+                  ann.getType(), annFeatures);
+        } catch (InvalidOffsetException ex) {
+          throw new GateRuntimeException("Could not copy annotation "+ann+" for pipeline "+branch.getName(),ex);
+        }
+      }
+    }
+    copy.setNextAnnotationId(firstId);
+    return copy;
+  }
+
+  private static void merge(DocumentImpl copy, DocumentImpl doc, Pipeline branch, long maxId) {
+    if(copy.peakAtNextAnnotationId() > maxId) {
+      throw new GateRuntimeException("Pipeline "+branch.getName()+" created more than "+ID_RANGE+" annotations");
+    }
+    Collection<String> reads = branch.getReadsAnnotationSets();
+    for(String name : branch.getWritesAnnotationSets()) {
+      AnnotationSet to = getSet(doc, name);
+      // If the set was copied for the branch, the copy now is what the
+      // set should be, otherwise only add what the branch added
+      if(reads == null || reads.contains(name)) {
+        to.clear();
+      }
+      for(Annotation ann : getSet(copy, name)) {
+        try {
+          to.add(ann.getId(), ann.getStartNode().getOffset(), ann.getEndNode().getOffset(),
+                  ann.getType(), ann.getFeatures());
+        } catch (InvalidOffsetException ex) {
+          throw new GateRuntimeException("Could not merge annotation "+ann+" from pipeline "+branch.getName(),ex);
+        }
+      }
+    }
+    if(branch.getWritesDocumentFeatures() != null) {
+      for(String name : branch.getWritesDocumentFeatures()) {
+        if(copy.getFeatures().containsKey(name)) {
+          doc.getFeatures().put(name, copy.getFeatures().get(name));
+        } else {
+          doc.getFeatures().remove(name);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.corpora.DocumentImpl;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The annotations and document features a sub-pipeline added to a
+ * document, which can be replayed into another document with the same
+ * input.
+ *
+ * A result is only recorded if the sub-pipeline did not remove any 
+ * annotations or document features and did not change the features of
+ * annotations which were there before. The ids of the replayed annotations
+ * keep their distances, but annotation ids stored in feature values are
+ * not changed.
+ * <p>
+ * The key for the input only covers feature values which are null, 
+ * strings, numbers, booleans, characters, lists of such values or maps 
+ * from strings to such values: there is no key for a document with other
+ * feature values in what the sub-pipeline reads, so its result is never
+ * cached.
+ *
+ * @author Johann Petrak
+ */
+final class CachedResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final class StoredAnnotation implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final String setName;
+    final int relativeId;
+    final long start;
+    final long end;
+    final String type;
+    final FeatureMap features;
+    StoredAnnotation(String setName, int relativeId, long start, long end, String type, FeatureMap features) {
+      this.setName = setName;
+      this.relativeId = relativeId;
+      this.start = start;
+      this.end = end;
+      this.type = type;
+      this.features = features;
+    }
+  }
+
+  private final List<String> setNames;
+  private final List<StoredAnnotation> annotations;
+  private final int idSpan;
+  private final Map<Object,Object> features;
+
+  private CachedResult(List<String> setNames, List<StoredAnnotation> annotations, int idSpan, 
+          Map<Object,Object> features) {
+    this.setNames = setNames;
+    this.annotations = annotations;
+    this.idSpan = idSpan;
+    this.features = features;
+  }
+
+  /**
+   * The state of a document before a sub-pipeline runs, for finding out
+   * what the sub-pipeline added.
+   */
+  static final class Recorder {
+    private final Document doc;
+    private final int firstId;
+    private final Map<String,Integer> setSizes = new HashMap<>();
+    private final Map<Object,Object> features;
+    // copies of the features of the annotations which are already there
+    private final Map<Integer,Map<Object,Object>> annotationFeatures = new HashMap<>();
+
+    Recorder(Document doc) {
+      this.doc = doc;
+      this.firstId = ((DocumentImpl)doc).peakAtNextAnnotationId();
+      for(String name : getSetNames(doc)) {
+        AnnotationSet set = getSet(doc, name);
+        setSizes.put(name, set.size());
+        for(Annotation ann : set) {
+          annotationFeatures.put(ann.getId(), ann.getFeatures() == null ? 
+                  Collections.<Object,Object>emptyMap() : new HashMap<Object,Object>(ann.getFeatures()));
+        }
+      }
+      this.features = new HashMap<Object,Object>(doc.getFeatures());
+    }
+
+    /**
+     * Get what was added to the document since the recorder was created.
+     * @return the result or null if something was removed from the document
+     * or the features of an annotation which was already there changed
+     */
+    CachedResult finish() {
+      List<String> newSets = new ArrayList<>();
+      List<StoredAnnotation> added = new ArrayList<>();
+      for(String name : getSetNames(doc)) {
+        AnnotationSet set = getSet(doc, name);
+        Integer before = setSizes.get(name);
+        if(before == null) {
+          newSets.add(name);
+          before = 0;
+        }
+        int old = 0;
+        for(Annotation ann : set) {
+          if(ann.getId() < firstId) {
+            old++;
+            Map<Object,Object> oldFeatures = annotationFeatures.get(ann.getId());
+            Map<Object,Object> newFeatures = ann.getFeatures() == null ? 
+                    Collections.<Object,Object>emptyMap() : ann.getFeatures();
+            if(oldFeatures == null || !oldFeatures.equals(newFeatures)) {
+              return null;
+            }
+          } else {
+            FeatureMap fm = Factory.newFeatureMap();
+            fm.putAll(ann.getFeatures());
+            added.add(new StoredAnnotation(name, ann.getId() - firstId,
+                    ann.getStartNode().getOffset(), ann.getEndNode().getOffset(), ann.getType(), fm));
+          }
+        }
+        if(old != before) {
+          return null;
+        }
+      }
+      for(String name : setSizes.keySet()) {
+        if(!name.isEmpty() && (doc.getNamedAnnotationSets() == null ||
+                !doc.getNamedAnnotationSets().containsKey(name))) {
+          return null;
+        }
+      }
+      Map<Object,Object> changed = new HashMap<>();
+      FeatureMap now = doc.getFeatures();
+      for(Object key : features.keySet()) {
+        if(!now.containsKey(key)) {
+          return null;
+        }
+      }
+      for(Map.Entry<Object,Object> entry : now.entrySet()) {
+        Object old = features.get(entry.getKey());
+        if(!features.containsKey(entry.getKey()) || 
+           (old == null ? entry.getValue() != null : !old.equals(entry.getValue()))) {
+          changed.put(entry.getKey(), entry.getValue());
+        }
+      }
+      int span = ((DocumentImpl)doc).peakAtNextAnnotationId() - firstId;
+      return new CachedResult(newSets, added, span, changed);
+    }
+  }
+
+  /**
+   * Add the annotations and features to the document.
+   * @param doc the document
+   */
+  void replay(Document doc) {
+    DocumentImpl docImpl = doc instanceof DocumentImpl ? (DocumentImpl)doc : null;
+    int base = docImpl == null ? 0 : docImpl.peakAtNextAnnotationId();
+    for(String name : setNames) {
+      getSet(doc, name);
+    }
+    for(StoredAnnotation ann : annotations) {
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.putAll(ann.features);
+      try {
+        if(docImpl == null) {
+          getSet(doc, ann.setName).add(ann.start, ann.end, ann.type, fm);
+        } else {
+          getSet(doc, ann.setName).add(base + ann.relativeId, ann.start, ann.end, ann.type, fm);
+        }
+      } catch (InvalidOffsetException ex) {
+        throw new GateRuntimeException("Could not replay cached annotation into document "+doc.getName(), ex);
+      }
+    }
+    if(docImpl != null) {
+      docImpl.setNextAnnotationId(base + idSpan);
+    }
+    doc.getFeatures().putAll(features);
+  }
+
+  /**
+   * Compute the key for the input of a sub-pipeline.
+   *
+   * @param doc the document
+   * @param annotationSets the names of the annotation sets read, null for all
+   * @param featureNames the names of the document features read, null for all
+   * @param pipeline what identifies the sub-pipeline and its config
+   * @return the hex SHA-256 of the input, or null if a feature value which 
+   * is read cannot be part of the key
+   */
+  static String key(Document doc, Collection<String> annotationSets, 
+          Collection<String> featureNames, String pipeline) {
+    MessageDigest md = sha256();
+    update(md, pipeline);
+    update(md, doc.getContent().toString());
+    Map<Object,Object> features = new HashMap<>();
+    for(Map.Entry<Object,Object> entry : doc.getFeatures().entrySet()) {
+      if(featureNames == null || featureNames.contains(String.valueOf(entry.getKey()))) {
+        features.put(entry.getKey(), entry.getValue());
+      }
+    }
+    String featuresString = featuresString(features);
+    if(featuresString == null) {
+      return null;
+    }
+    update(md, featuresString);
+    Collection<String> sets = new TreeSet<>(annotationSets == null ? getSetNames(doc) : annotationSets);
+    for(String name : sets) {
+      if(!name.isEmpty() && (doc.getNamedAnnotationSets() == null || 
+              !doc.getNamedAnnotationSets().containsKey(name))) {
+        continue;
+      }
+      update(md, "\u0000set:"+name);
+      // the ids do not matter, so the annotations are in a fixed order
+      List<String> anns = new ArrayList<>();
+      for(Annotation ann : getSet(doc, name)) {
+        String annFeatures = featuresString(ann.getFeatures());
+        if(annFeatures == null) {
+          return null;
+        }
+        anns.add(ann.getStartNode().getOffset()+" "+ann.getEndNode().getOffset()+" "+
+                ann.getType()+" "+annFeatures);
+      }
+      Collections.sort(anns);
+      for(String ann : anns) {
+        update(md, ann);
+      }
+    }
+    return hex(md.digest());
+  }
+
+  static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for(byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 not available",ex);
+    }
+  }
+
+  static void update(MessageDigest md, String s) {
+    md.update(s.getBytes(StandardCharsets.UTF_8));
+    md.update((byte)0);
+  }
+
+  // A string which is equal for two feature maps exactly if they are 
+  // equal, or null if there is a value for which this cannot be told
+  private static String featuresString(Map<Object,Object> fm) {
+    StringBuilder sb = new StringBuilder();
+    return fm == null || appendValue(sb, fm) ? sb.toString() : null;
+  }
+
+  // Append the value tagged with its type, with the length of strings so 
+  // that no other value gives the same string; false if the type is not 
+  // one which is known to have a value based toString and equals
+  private static boolean appendValue(StringBuilder sb, Object value) {
+    if(value == null) {
+      sb.append('n');
+    } else if(value instanceof String) {
+      String str = (String)value;
+      sb.append('s').append(str.length()).append(':').append(str);
+    } else if(value instanceof Integer || value instanceof Long || value instanceof Short ||
+              value instanceof Byte || value instanceof Double || value instanceof Float ||
+              value instanceof BigInteger || value instanceof BigDecimal ||
+              value instanceof Boolean || value instanceof Character) {
+      String str = value.toString();
+      sb.append(value.getClass().getSimpleName()).append(str.length()).append(':').append(str);
+    } else if(value instanceof List) {
+      List<?> list = (List<?>)value;
+      sb.append('[').append(list.size()).append(':');
+      for(Object element : list) {
+        if(!appendValue(sb, element)) {
+          return false;
+        }
+      }
+    } else if(value instanceof Map) {
+      Map<String,Object> sorted = new TreeMap<>();
+      for(Map.Entry<?,?> entry : ((Map<?,?>)value).entrySet()) {
+        if(!(entry.getKey() instanceof String)) {
+          return false;
+        }
+        sorted.put((String)entry.getKey(), entry.getValue());
+      }
+      sb.append('{').append(sorted.size()).append(':');
+      for(Map.Entry<String,Object> entry : sorted.entrySet()) {
+        appendValue(sb, entry.getKey());
+        if(!appendValue(sb, entry.getValue())) {
+          return false;
+        }
+      }
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static List<String> getSetNames(Document doc) {
+    List<String> names = new ArrayList<>();
+    names.add("");
+    if(doc.getNamedAnnotationSets() != null) {
+      names.addAll(doc.getNamedAnnotationSets().keySet());
+    }
+    return names;
+  }
+
+  private static AnnotationSet getSet(Document doc, String name) {
+    return name.isEmpty() ? doc.getAnnotations() : doc.getAnnotations(name);
+  }
+
+}
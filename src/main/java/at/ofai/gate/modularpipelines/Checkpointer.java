@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.corpora.DocumentImpl;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the state of documents in a directory after chosen stages of a 
+ * corpus run, so a run which got killed can resume where it stopped.
+ *
+ * For each document, identified by its name and content, the directory 
+ * contains the GATE XML of the document and the index and name of the PR
+ * after which it was saved, or the GATE XML of the finished document once
+ * all PRs have been run for it, which gets restored instead of running 
+ * the PRs again. The document is serialized by the processing thread, the
+ * files get written by a background thread of the controller, which gets
+ * stopped when the controller is deleted.
+ *
+ * @author Johann Petrak
+ */
+class Checkpointer {
+
+  protected static final Logger LOGGER = Logger.getLogger(Checkpointer.class);
+
+  private final File directory;
+  // a single thread, so the files of a document get written in order
+  private final ExecutorService writer;
+  private final List<Future<?>> pending = new ArrayList<>();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  /**
+   * Create the checkpointer of a controller.
+   *
+   * @param controllerName the name of the controller, for its thread
+   * @param directory the directory, created if it does not exist
+   */
+  Checkpointer(String controllerName, File directory) {
+    File dir = directory.getAbsoluteFile();
+    if(!dir.isDirectory() && !dir.mkdirs()) {
+      throw new GateRuntimeException("Cannot create the checkpoint directory "+dir);
+    }
+    this.directory = dir;
+    this.writer = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "ModularPipelines-Checkpoint-"+controllerName);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Check if the checkpointer writes to the directory.
+   * @param directory the directory
+   * @return true if it is the directory of this checkpointer
+   */
+  boolean isFor(File directory) {
+    return this.directory.equals(directory.getAbsoluteFile());
+  }
+
+  private File file(Document doc, String extension) {
+    MessageDigest md = CachedResult.sha256();
+    md.update(doc.getName().getBytes(StandardCharsets.UTF_8));
+    md.update((byte)0);
+    md.update(doc.getContent().toString().getBytes(StandardCharsets.UTF_8));
+    return new File(directory, CachedResult.hex(md.digest())+extension);
+  }
+
+  /**
+   * Restore the document as it was after all PRs were run for it in an
+   * earlier run, if they were.
+   * 
+   * @param doc the document
+   * @return true if the document is finished and got restored
+   */
+  boolean restoreFinished(Document doc) {
+    File doneFile = file(doc, ".done");
+    if(!doneFile.exists()) {
+      return false;
+    }
+    if(!restore(doc, doneFile)) {
+      return false;
+    }
+    LOGGER.debug("Restored finished document "+doc.getName());
+    return true;
+  }
+
+  /**
+   * Restore the document from its last checkpoint, if there is one for 
+   * the same PR as now.
+   *
+   * @param doc the document
+   * @param prNames the names of the PRs of the controller
+   * @return the index of the PR after which the document was saved, 
+   * or -1 if there is no checkpoint
+   */
+  int restore(Document doc, List<String> prNames) {
+    File stageFile = file(doc, ".stage");
+    File xmlFile = file(doc, ".xml");
+    if(!stageFile.exists() || !xmlFile.exists()) {
+      return -1;
+    }
+    int stage;
+    try {
+      String[] fields = new String(Files.readAllBytes(stageFile.toPath()), StandardCharsets.UTF_8).split("\t", 2);
+      stage = Integer.parseInt(fields[0].trim());
+      if(stage >= prNames.size() || fields.length < 2 || !prNames.get(stage).equals(fields[1].trim())) {
+        LOGGER.warn("Checkpoint of document "+doc.getName()+" is for a different PR, ignoring it");
+        return -1;
+      }
+    } catch (IOException | NumberFormatException ex) {
+      LOGGER.warn("Could not read checkpoint of document "+doc.getName()+", ignoring it: "+ex);
+      return -1;
+    }
+    if(!restore(doc, xmlFile)) {
+      return -1;
+    }
+    LOGGER.debug("Resuming document "+doc.getName()+" after PR "+prNames.get(stage));
+    return stage;
+  }
+
+  // Replace the annotations and features of the document with those of 
+  // the saved document, false if it cannot be read or is for other content
+  private boolean restore(Document doc, File xmlFile) {
+    Document saved;
+    try {
+      FeatureMap parms = Factory.newFeatureMap();
+      parms.put(Document.DOCUMENT_URL_PARAMETER_NAME, xmlFile.toURI().toURL());
+      parms.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, "UTF-8");
+      parms.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, "text/xml");
+      saved = (Document)Factory.createResource(DocumentImpl.class.getName(), parms, 
+              Factory.newFeatureMap(), "checkpoint");
+    } catch (IOException | ResourceInstantiationException ex) {
+      LOGGER.warn("Could not read checkpoint of document "+doc.getName()+", ignoring it: "+ex);
+      return false;
+    }
+    try {
+      if(!saved.getContent().toString().equals(doc.getContent().toString())) {
+        LOGGER.warn("Checkpoint of document "+doc.getName()+" has different content, ignoring it");
+        return false;
+      }
+      copy(saved, doc);
+    } finally {
+      Factory.deleteResource(saved);
+    }
+    return true;
+  }
+
+  private static void copy(Document from, Document to) {
+    to.getAnnotations().clear();
+    if(to.getNamedAnnotationSets() != null) {
+      for(String name : new ArrayList<>(to.getNamedAnnotationSets().keySet())) {
+        to.removeAnnotationSet(name);
+      }
+    }
+    List<String> names = new ArrayList<>();
+    names.add("");
+    if(from.getNamedAnnotationSets() != null) {
+      names.addAll(from.getNamedAnnotationSets().keySet());
+    }
+    int maxId = -1;
+    for(String name : names) {
+      AnnotationSet fromSet = name.isEmpty() ? from.getAnnotations() : from.getAnnotations(name);
+      AnnotationSet toSet = name.isEmpty() ? to.getAnnotations() : to.getAnnotations(name);
+      for(Annotation ann : fromSet) {
+        try {
+          toSet.add(ann.getId(), ann.getStartNode().getOffset(), ann.getEndNode().getOffset(),
+                  ann.getType(), ann.getFeatures());
+        } catch (InvalidOffsetException ex) {
+          throw new GateRuntimeException("Could not restore annotation "+ann+" of document "+to.getName(), ex);
+        }
+        maxId = Math.max(maxId, ann.getId());
+      }
+    }
+    if(to instanceof DocumentImpl && ((DocumentImpl)to).peakAtNextAnnotationId() <= maxId) {
+      ((DocumentImpl)to).setNextAnnotationId(maxId + 1);
+    }
+    to.getFeatures().clear();
+    to.getFeatures().putAll(from.getFeatures());
+  }
+
+  /**
+   * Save the document after the PR.
+   *
+   * @param doc the document
+   * @param stage the index of the PR
+   * @param prName the name of the PR
+   */
+  void checkpoint(Document doc, int stage, String prName) {
+    final String xml = doc.toXml();
+    final File xmlFile = file(doc, ".xml");
+    final File stageFile = file(doc, ".stage");
+    submit(() -> {
+      write(xmlFile, xml);
+      write(stageFile, stage+"\t"+prName);
+    });
+  }
+
+  /**
+   * Save the document after all PRs have been run for it.
+   * @param doc the document
+   */
+  void finished(Document doc) {
+    final String xml = doc.toXml();
+    final File doneFile = file(doc, ".done");
+    final File xmlFile = file(doc, ".xml");
+    final File stageFile = file(doc, ".stage");
+    submit(() -> {
+      write(doneFile, xml);
+      Files.deleteIfExists(stageFile.toPath());
+      Files.deleteIfExists(xmlFile.toPath());
+    });
+  }
+
+  private interface Write {
+    void run() throws IOException;
+  }
+
+  private void submit(Write write) {
+    synchronized(pending) {
+      pending.removeIf(Future::isDone);
+      pending.add(writer.submit(() -> {
+        try {
+          write.run();
+        } catch (IOException | RuntimeException ex) {
+          LOGGER.warn("Could not write checkpoint to "+directory+": "+ex);
+          failure.compareAndSet(null, ex);
+        }
+      }));
+    }
+  }
+
+  private static void write(File file, String content) throws IOException {
+    File tmp = new File(file.getPath()+".tmp");
+    Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+            StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Wait until everything submitted so far has been written.
+   * @throws GateRuntimeException if writing any checkpoint failed
+   */
+  void flush() {
+    List<Future<?>> waitFor;
+    synchronized(pending) {
+      waitFor = new ArrayList<>(pending);
+      pending.clear();
+    }
+    for(Future<?> future : waitFor) {
+      try {
+        future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (java.util.concurrent.ExecutionException ex) {
+        failure.compareAndSet(null, ex.getCause());
+      }
+    }
+    Throwable t = failure.getAndSet(null);
+    if(t != null) {
+      throw new GateRuntimeException("Could not write checkpoints to "+directory, t);
+    }
+  }
+
+  /**
+   * Write what is still pending and stop the thread.
+   */
+  void close() {
+    try {
+      flush();
+    } catch (GateRuntimeException ex) {
+      LOGGER.warn(ex.getMessage()+": "+ex.getCause());
+    } finally {
+      writer.shutdown();
+    }
+  }
+
+}
@@ -21,20 +21,68 @@
 package at.ofai.gate.modularpipelines;
 
 import gate.FeatureMap;
+import java.io.File;
+import java.io.Serializable;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import org.apache.log4j.Logger;
 
 /**
  *
  * @author johann
  */
-public class Config {
+public class Config implements Serializable {
+  private static final long serialVersionUID = 1L;
   private static final Logger LOGGER = Logger.getLogger("Config");
   public Config() {
     LOGGER.debug("Config: creating new");
   }
+  /**
+   * Create a copy of another config.
+   * 
+   * The maps of the copy can be modified without affecting the original,
+   * the parameter and feature values themselves are shared. 
+   * 
+   * @param other the config to copy
+   */
+  public Config(Config other) {
+    globalConfigFileUrl = other.globalConfigFileUrl;
+    origUrl = other.origUrl;
+    sourceFile = other.sourceFile;
+    docFeatures.putAll(other.docFeatures);
+    docFeaturesOverridable.putAll(other.docFeaturesOverridable);
+    for(Map.Entry<String,Map<String,Object>> entry : other.prRuntimeParms.entrySet()) {
+      prRuntimeParms.put(entry.getKey(), new HashMap<>(entry.getValue()));
+    }
+    for(Map.Entry<String,Map<String,Object>> entry : other.prInitParms.entrySet()) {
+      prInitParms.put(entry.getKey(), new HashMap<>(entry.getValue()));
+    }
+    propSettings.putAll(other.propSettings);
+    for(Map.Entry<String,Map<String,Map<String,Object>>> profile : other.profileRuntimeParms.entrySet()) {
+      Map<String,Map<String,Object>> parms = new HashMap<>();
+      for(Map.Entry<String,Map<String,Object>> entry : profile.getValue().entrySet()) {
+        parms.put(entry.getKey(), new HashMap<>(entry.getValue()));
+      }
+      profileRuntimeParms.put(profile.getKey(), parms);
+    }
+    profileFeature = other.profileFeature;
+    batchSize = other.batchSize;
+    batchMaxWait = other.batchMaxWait;
+    timeBudget = other.timeBudget;
+    timeoutPolicy = other.timeoutPolicy;
+    loadParallelism = other.loadParallelism;
+    sharedPRs.addAll(other.sharedPRs);
+    lockedPRs.addAll(other.lockedPRs);
+  }
   // If this is non-null it signals that any sub-pipeline of the pipeline
   // which has this set should have their config file URL set to this too.
   // This is used to allow for an outer config file to set the config file 
@@ -44,6 +92,9 @@ public class Config {
   // config file was read and is used to prevent that the same config file
   // is read several times.
   public URL origUrl = null;
+  // the file the config was actually read from, this can differ from 
+  // origUrl if the config file was overridden by a system property
+  public File sourceFile = null;
   public FeatureMap docFeatures = gate.Factory.newFeatureMap();
   public FeatureMap docFeaturesOverridable = gate.Factory.newFeatureMap();
   // The prRuntimeParms map has as keys strings of the form "controllerName\tprName"
@@ -52,6 +103,110 @@ public class Config {
   public Map<String,Map<String,Object>> prRuntimeParms = new HashMap<>();
   // Same, but for init parms
   public Map<String,Map<String,Object>> prInitParms = new HashMap<>();
+  // The java properties to set from "propset" settings, in the order in 
+  // which they appear in the config file. 
+  public Map<String,String> propSettings = new LinkedHashMap<>();
+  // For each named profile, the runtime parameter settings which differ
+  // from the base settings in prRuntimeParms, using the same keys.
+  public Map<String,Map<String,Map<String,Object>>> profileRuntimeParms = new LinkedHashMap<>();
+  // The name of the document feature which selects the profile to use 
+  // for a document.
+  public String profileFeature = DEFAULT_PROFILE_FEATURE;
+  public static final String DEFAULT_PROFILE_FEATURE = "modularpipelines.profile";
+  // The maximum number of documents of a corpus to process as one batch,
+  // batches are not used if this is less than 2.
+  public int batchSize = 0;
+  // The maximum time in milliseconds to spend collecting the documents for
+  // a batch before processing what has been collected, 0 for no limit.
+  public long batchMaxWait = 0;
+  // The maximum time in milliseconds the controller may spend on one 
+  // document, 0 for no limit, and what to do with the document when that
+  // time ran out: "continue" or "abort".
+  public long timeBudget = 0;
+  public String timeoutPolicy = DocumentDeadline.POLICY_CONTINUE;
+  // The number of threads to use for loading the Pipeline PRs of the 
+  // controller and its sub-pipelines, 0 if not set.
+  public int loadParallelism = 0;
+  // The PRs, as "controllerName\tprName", which duplicates of the controller
+  // use by reference instead of having their own copy.
+  public Set<String> sharedPRs = new HashSet<>();
+  // The shared PRs which only one controller at a time may run.
+  public Set<String> lockedPRs = new HashSet<>();
+  /**
+   * A string which is the same for two configs exactly if they have the 
+   * same settings, e.g. for the keys of memoized results.
+   * 
+   * All the settings are included, but not where the config was read 
+   * from. Maps are written in the order of their keys, unless the order 
+   * matters, and each value is written with its type.
+   * 
+   * @return the canonical string
+   */
+  String canonicalString() {
+    StringBuilder sb = new StringBuilder();
+    appendCanonical(sb, "globalConfigFileUrl", globalConfigFileUrl);
+    appendCanonical(sb, "docFeatures", docFeatures);
+    appendCanonical(sb, "docFeaturesOverridable", docFeaturesOverridable);
+    appendCanonical(sb, "prRuntimeParms", prRuntimeParms);
+    appendCanonical(sb, "prInitParms", prInitParms);
+    appendCanonical(sb, "propSettings", new ArrayList<>(propSettings.entrySet()));
+    appendCanonical(sb, "profileRuntimeParms", profileRuntimeParms);
+    appendCanonical(sb, "profileFeature", profileFeature);
+    appendCanonical(sb, "batchSize", batchSize);
+    appendCanonical(sb, "batchMaxWait", batchMaxWait);
+    appendCanonical(sb, "timeBudget", timeBudget);
+    appendCanonical(sb, "timeoutPolicy", timeoutPolicy);
+    appendCanonical(sb, "loadParallelism", loadParallelism);
+    appendCanonical(sb, "sharedPRs", sharedPRs);
+    appendCanonical(sb, "lockedPRs", lockedPRs);
+    return sb.toString();
+  }
+  
+  private static void appendCanonical(StringBuilder sb, String name, Object value) {
+    sb.append(name).append('=');
+    appendCanonical(sb, value);
+    sb.append('\n');
+  }
+  
+  private static void appendCanonical(StringBuilder sb, Object value) {
+    if(value == null) {
+      sb.append('n');
+    } else if(value instanceof Map) {
+      Map<String,Object> sorted = new TreeMap<>();
+      for(Map.Entry<?,?> entry : ((Map<?,?>)value).entrySet()) {
+        sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+      }
+      sb.append('{').append(sorted.size()).append(':');
+      for(Map.Entry<String,Object> entry : sorted.entrySet()) {
+        appendCanonical(sb, entry.getKey());
+        appendCanonical(sb, entry.getValue());
+      }
+      sb.append('}');
+    } else if(value instanceof Map.Entry) {
+      appendCanonical(sb, ((Map.Entry<?,?>)value).getKey());
+      appendCanonical(sb, ((Map.Entry<?,?>)value).getValue());
+    } else if(value instanceof Collection) {
+      List<String> elements = new ArrayList<>();
+      for(Object element : (Collection<?>)value) {
+        StringBuilder esb = new StringBuilder();
+        appendCanonical(esb, element);
+        elements.add(esb.toString());
+      }
+      if(value instanceof Set) {
+        Collections.sort(elements);
+      }
+      sb.append('[').append(elements.size()).append(':');
+      for(String element : elements) {
+        sb.append(element);
+      }
+      sb.append(']');
+    } else {
+      // e.g. a String, a number or a RunCondition, which is its expression
+      String str = value.toString();
+      sb.append(value.getClass().getName()).append(str.length()).append(':').append(str);
+    }
+  }
+  
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -85,7 +240,7 @@ public class Config {
     }
     sb.append("; initParms: ");
     if(prInitParms != null) {
-    for(String key : prRuntimeParms.keySet()) {
+    for(String key : prInitParms.keySet()) {
       Map<String,Object> val = prInitParms.get(key);
       sb.append(key);
       sb.append("=");
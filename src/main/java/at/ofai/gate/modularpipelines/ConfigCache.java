@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide cache of parsed config files.
+ *
+ * Config files are keyed by their canonical path and the cached entry is
+ * only re-used as long as the modification time and size of the file
+ * are unchanged. This means that a config file which is shared by many
+ * nested controllers (e.g. through the inheritconfig setting) or by many
+ * duplicated copies of a pipeline gets only parsed once.
+ * <p>
+ * The Config instances held by the cache are shared and must never be
+ * modified: Utils.readConfigFile always hands out a copy of the cached
+ * instance.
+ *
+ * @author Johann Petrak
+ */
+public class ConfigCache {
+
+  protected static final Logger LOGGER = Logger.getLogger(ConfigCache.class);
+
+  private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<>();
+  private static final AtomicLong HITS = new AtomicLong();
+  private static final AtomicLong MISSES = new AtomicLong();
+
+  private ConfigCache() {}
+
+  private static class Entry {
+    final long lastModified;
+    final long length;
+    final Config config;
+    Entry(long lastModified, long length, Config config) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.config = config;
+    }
+  }
+
+  /**
+   * Return the shared parsed config for the given file.
+   *
+   * The file is only parsed if it is not in the cache yet or if its
+   * modification time or size differ from what was recorded when it was
+   * parsed the last time. The returned instance is shared and must be
+   * treated as read-only.
+   *
+   * @param configFile the config file
+   * @return the shared, parsed Config instance
+   */
+  static Config get(final File configFile) {
+    final File canonicalFile;
+    try {
+      canonicalFile = configFile.getCanonicalFile();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Cannot get canonical pathname for config file "+configFile,ex);
+    }
+    final long lastModified = canonicalFile.lastModified();
+    final long length = canonicalFile.length();
+    ApplicationSnapshot.recordConfig(canonicalFile);
+    Entry entry = CACHE.get(canonicalFile.getPath());
+    if(entry != null && entry.lastModified == lastModified && entry.length == length) {
+      HITS.incrementAndGet();
+      return entry.config;
+    }
+    // Parse inside compute so that concurrent readers of the same file
+    // will wait for one parse instead of all parsing the file themselves
+    entry = CACHE.compute(canonicalFile.getPath(), (key, old) -> {
+      if(old != null && old.lastModified == lastModified && old.length == length) {
+        HITS.incrementAndGet();
+        return old;
+      }
+      MISSES.incrementAndGet();
+      LOGGER.debug("ConfigCache: parsing config file "+canonicalFile);
+      return new Entry(lastModified, length, Utils.parseConfigFile(configFile));
+    });
+    return entry.config;
+  }
+
+  /**
+   * Get the cached config for a file, if there is one which is still
+   * valid.
+   *
+   * @param canonicalFile the canonical config file
+   * @return the shared Config instance or null
+   */
+  static Config peek(File canonicalFile) {
+    Entry entry = CACHE.get(canonicalFile.getPath());
+    if(entry != null && entry.lastModified == canonicalFile.lastModified() && 
+       entry.length == canonicalFile.length()) {
+      return entry.config;
+    }
+    return null;
+  }
+
+  /**
+   * Put a config which was parsed before, e.g. in an earlier run, into the
+   * cache, for the current state of the file.
+   *
+   * @param canonicalFile the canonical config file
+   * @param config the parsed config, which must not be modified any more
+   */
+  static void seed(File canonicalFile, Config config) {
+    CACHE.put(canonicalFile.getPath(), new Entry(canonicalFile.lastModified(), canonicalFile.length(), config));
+  }
+
+  /**
+   * Remove the cached entry for a file so that it gets parsed again on
+   * the next access.
+   *
+   * @param configFile the config file
+   */
+  public static void invalidate(File configFile) {
+    try {
+      CACHE.remove(configFile.getCanonicalPath());
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Cannot get canonical pathname for config file "+configFile,ex);
+    }
+  }
+
+  /**
+   * Remove all entries from the cache and reset the hit and miss counters.
+   */
+  public static void clear() {
+    CACHE.clear();
+    HITS.set(0);
+    MISSES.set(0);
+  }
+
+  /**
+   * Number of times a config file could be taken from the cache.
+   * @return hit count
+   */
+  public static long getHitCount() {
+    return HITS.get();
+  }
+
+  /**
+   * Number of times a config file had to be parsed.
+   * @return miss count
+   */
+  public static long getMissCount() {
+    return MISSES.get();
+  }
+
+  /**
+   * Number of config files currently cached.
+   * @return number of entries
+   */
+  public static int size() {
+    return CACHE.size();
+  }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * The settings which override the settings from config files, taken from
+ * properties with the modular pipelines prefix.
+ *
+ * The matching properties get parsed once into an immutable override layer
+ * which is then merged into each Config that gets read. The layer is only
+ * built again if any of the matching properties, the prefix or the
+ * separator changed. Checking this does not scan the properties: it only 
+ * looks up the matching properties seen when the layer was built and 
+ * compares the number of properties of each source, which changes when a 
+ * new matching property gets added. (A matching property which gets added
+ * at the very same time as another property gets removed is therefore 
+ * only seen once something else changes.)
+ * <p>
+ * The properties are taken from the system properties and then from all
+ * the sources registered with registerSource, in the order in which they
+ * were registered, so a setting from a registered source overrides the same
+ * setting from the system properties. When a config is read within a
+ * ConfigScope, the properties of the scope come last, and the layer built
+ * for the scope is kept with the scope.
+ *
+ * @author Johann Petrak
+ */
+public class ConfigOverrides {
+
+  protected static final Logger LOGGER = Logger.getLogger(ConfigOverrides.class);
+
+  private static final List<Properties> SOURCES = new CopyOnWriteArrayList<>();
+  private static final AtomicLong REBUILDS = new AtomicLong();
+  private static volatile Layer layer = null;
+
+  private ConfigOverrides() {}
+
+  /**
+   * Register an additional source of override properties.
+   *
+   * The properties object is checked for changes each time a config is
+   * read, so it can be modified after registering it.
+   *
+   * @param source the properties to use
+   */
+  public static void registerSource(Properties source) {
+    SOURCES.add(source);
+  }
+
+  /**
+   * Remove a source of override properties which was registered before.
+   *
+   * @param source the properties object as registered
+   * @return true if the source was registered
+   */
+  public static boolean unregisterSource(Properties source) {
+    for(int i = 0; i < SOURCES.size(); i++) {
+      if(SOURCES.get(i) == source) {
+        SOURCES.remove(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Number of times the override layer had to be built.
+   * @return number of times the properties got parsed
+   */
+  public static long getRebuildCount() {
+    return REBUILDS.get();
+  }
+
+  /**
+   * Add the overriding settings to the config.
+   *
+   * @param config the config to modify
+   */
+  static void mergeInto(Config config) {
+    current().mergeInto(config);
+  }
+
+  /**
+   * Add the overriding settings for a scope to the config.
+   *
+   * @param config the config to modify
+   * @param scope the scope the config is read in, or null
+   */
+  static void mergeInto(Config config, ConfigScope scope) {
+    current(scope).mergeInto(config);
+  }
+
+  /**
+   * Get the current override layer, build it if the properties changed.
+   * @return the layer
+   */
+  static Layer current() {
+    Layer l = layer;
+    if(l != null && l.isCurrent()) {
+      return l;
+    }
+    synchronized(ConfigOverrides.class) {
+      l = layer;
+      if(l != null && l.isCurrent()) {
+        return l;
+      }
+      l = build(null);
+      layer = l;
+      REBUILDS.incrementAndGet();
+      return l;
+    }
+  }
+
+  /**
+   * Get the current override layer for a scope, build it if the properties
+   * changed.
+   * @param scope the scope or null for the global layer
+   * @return the layer
+   */
+  static Layer current(ConfigScope scope) {
+    if(scope == null) {
+      return current();
+    }
+    Layer l = scope.layer;
+    if(l != null && l.isCurrent()) {
+      return l;
+    }
+    synchronized(scope) {
+      l = scope.layer;
+      if(l != null && l.isCurrent()) {
+        return l;
+      }
+      l = build(scope);
+      scope.layer = l;
+      REBUILDS.incrementAndGet();
+      return l;
+    }
+  }
+
+  /**
+   * The controller and PR name a setting is for.
+   */
+  static final class PrKey {
+    final String controller;
+    final String prName;
+    // the id of the PR as used in the maps of the Config
+    final String prId;
+    PrKey(String controller, String prName) {
+      this.controller = controller;
+      this.prName = prName;
+      this.prId = controller + "\t" + prName;
+    }
+    @Override
+    public boolean equals(Object other) {
+      return (other instanceof PrKey) && ((PrKey)other).prId.equals(prId);
+    }
+    @Override
+    public int hashCode() {
+      return prId.hashCode();
+    }
+  }
+
+  /**
+   * The immutable override settings parsed from the properties.
+   */
+  static final class Layer {
+    final ConfigScope scope;
+    final String prefix;
+    final String sep;
+    // the properties sources in the order they were used
+    final Properties[] sources;
+    // for each source the matching properties which were parsed
+    final List<Map<String,String>> matched;
+    // for each source the total number of properties it had
+    final int[] sizes;
+    final Map<PrKey,Map<String,Object>> prRuntimeParms;
+    final Map<PrKey,Map<String,Object>> prInitParms;
+    final Map<String,Object> docFeatures;
+    final Map<String,Boolean> docFeaturesOverridable;
+
+    Layer(ConfigScope scope, String prefix, String sep, Properties[] sources, 
+            List<Map<String,String>> matched, int[] sizes,
+            Map<PrKey,Map<String,Object>> prRuntimeParms,
+            Map<PrKey,Map<String,Object>> prInitParms,
+            Map<String,Object> docFeatures,
+            Map<String,Boolean> docFeaturesOverridable) {
+      this.scope = scope;
+      this.prefix = prefix;
+      this.sep = sep;
+      this.sources = sources;
+      this.matched = matched;
+      this.sizes = sizes;
+      this.prRuntimeParms = prRuntimeParms;
+      this.prInitParms = prInitParms;
+      this.docFeatures = docFeatures;
+      this.docFeaturesOverridable = docFeaturesOverridable;
+    }
+
+    /**
+     * Check if the layer still represents the current properties.
+     * @return true if nothing relevant changed
+     */
+    boolean isCurrent() {
+      if(!prefix.equals(getPrefix(scope)) || !sep.equals(getSeparator(scope))) {
+        return false;
+      }
+      int n = SOURCES.size() + (scope == null ? 1 : 2);
+      if(sources.length != n || sources[0] != System.getProperties()) {
+        return false;
+      }
+      if(scope != null && sources[n-1] != scope.getProperties()) {
+        return false;
+      }
+      for(int i = 0; i < sources.length; i++) {
+        if(i > 0 && i <= SOURCES.size() && sources[i] != SOURCES.get(i-1)) {
+          return false;
+        }
+        if(!matchesSource(sources[i], matched.get(i), sizes[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean matchesSource(Properties props, Map<String,String> seen, int size) {
+      synchronized(props) {
+        if(props.size() != size) {
+          return false;
+        }
+        for(Map.Entry<String,String> entry : seen.entrySet()) {
+          Object value = props.get(entry.getKey());
+          if(value == null || !entry.getValue().equals(String.valueOf(value))) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    void mergeInto(Config config) {
+      for(Map.Entry<PrKey,Map<String,Object>> entry : prRuntimeParms.entrySet()) {
+        Map<String, Object> prparm = config.prRuntimeParms.get(entry.getKey().prId);
+        if (prparm == null) {
+          prparm = new HashMap<>();
+          config.prRuntimeParms.put(entry.getKey().prId, prparm);
+        }
+        prparm.putAll(entry.getValue());
+      }
+      for(Map.Entry<PrKey,Map<String,Object>> entry : prInitParms.entrySet()) {
+        Map<String, Object> prparm = config.prInitParms.get(entry.getKey().prId);
+        if (prparm == null) {
+          prparm = new HashMap<>();
+          config.prInitParms.put(entry.getKey().prId, prparm);
+        }
+        prparm.putAll(entry.getValue());
+      }
+      config.docFeatures.putAll(docFeatures);
+      config.docFeaturesOverridable.putAll(docFeaturesOverridable);
+    }
+  }
+
+  private static String getPrefix(ConfigScope scope) {
+    String prefix = ConfigScope.getProperty(scope, "at.ofai.gate.modularpipelines.propertyPrefix");
+    return prefix == null ? "modularpipelines." : prefix;
+  }
+
+  private static String getSeparator(ConfigScope scope) {
+    String sep = ConfigScope.getProperty(scope, "at.ofai.gate.modularpipelines.separator");
+    return sep == null ? "." : sep;
+  }
+
+  private static Layer build(ConfigScope scope) {
+    String prefix = getPrefix(scope);
+    String sep = getSeparator(scope);
+    List<Properties> sources = new ArrayList<>();
+    sources.add(System.getProperties());
+    sources.addAll(SOURCES);
+    if(scope != null) {
+      sources.add(scope.getProperties());
+    }
+    List<Map<String,String>> matched = new ArrayList<>(sources.size());
+    int[] sizes = new int[sources.size()];
+    Map<PrKey,Map<String,Object>> prRuntimeParms = new LinkedHashMap<>();
+    Map<PrKey,Map<String,Object>> prInitParms = new LinkedHashMap<>();
+    Map<String,Object> docFeatures = new LinkedHashMap<>();
+    Map<String,Boolean> docFeaturesOverridable = new LinkedHashMap<>();
+    for(int i = 0; i < sources.size(); i++) {
+      Map<String,String> props = new HashMap<>();
+      Properties source = sources.get(i);
+      synchronized(source) {
+        sizes[i] = source.size();
+        for(Map.Entry<Object,Object> entry : source.entrySet()) {
+          if(entry.getKey() instanceof String && ((String)entry.getKey()).startsWith(prefix)) {
+            props.put((String)entry.getKey(), String.valueOf(entry.getValue()));
+          }
+        }
+      }
+      matched.add(props);
+      for(Map.Entry<String,String> entry : props.entrySet()) {
+        String key = entry.getKey();
+        String value = entry.getValue();
+        Utils.StringTriple ctlAndPr;
+        // check if it also starts with one of the possible setting actions
+        if(key.startsWith(prefix+"prparm.")) {
+          ctlAndPr = Utils.getCtrlPrParm(key,prefix+"prparm.",sep,true);
+          getParms(prRuntimeParms, ctlAndPr).put(ctlAndPr.s3, value);
+        } else if(key.startsWith(prefix+"prinit.")) {
+          ctlAndPr = Utils.getCtrlPrParm(key,prefix+"prinit.",sep,true);
+          getParms(prInitParms, ctlAndPr).put(ctlAndPr.s3, value);
+        } else if(key.startsWith(prefix+"prrun.")) {
+          ctlAndPr = Utils.getCtrlPrParm(key,prefix+"prrun.",sep,false);
+          // true or false is a flag as before, anything else an expression
+          getParms(prRuntimeParms, ctlAndPr).put("$$RUNFLAG$$", RunCondition.runFlag(value));
+        } else if(key.startsWith(prefix+"docfeature.")) {
+          String fname = key.substring((prefix+"docfeature.").length());
+          docFeaturesOverridable.put(fname, true);
+          docFeatures.put(fname, value);
+        } else if(key.startsWith(prefix+"udocfeature.")) {
+          String fname = key.substring((prefix+"udocfeature.").length());
+          docFeaturesOverridable.put(fname, false);
+          docFeatures.put(fname, value);
+        } else {
+          throw new GateRuntimeException("Odd property with the modular pipelines prefix encountered: "+key);
+        }
+      }
+    }
+    LOGGER.debug("Built config override layer from "+sources.size()+" sources");
+    return new Layer(scope, prefix, sep, sources.toArray(new Properties[sources.size()]), matched, sizes,
+            Collections.unmodifiableMap(prRuntimeParms),
+            Collections.unmodifiableMap(prInitParms),
+            Collections.unmodifiableMap(docFeatures),
+            Collections.unmodifiableMap(docFeaturesOverridable));
+  }
+
+  private static Map<String,Object> getParms(Map<PrKey,Map<String,Object>> parms, Utils.StringTriple ctlAndPr) {
+    PrKey key = new PrKey(ctlAndPr.s1, ctlAndPr.s2);
+    Map<String,Object> prparm = parms.get(key);
+    if(prparm == null) {
+      prparm = new HashMap<>();
+      parms.put(key, prparm);
+    }
+    return prparm;
+  }
+
+}
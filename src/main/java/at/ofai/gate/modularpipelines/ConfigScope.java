@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.creole.ResourceInstantiationException;
+import gate.persist.PersistenceException;
+import gate.util.GateRuntimeException;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import org.apache.log4j.Logger;
+
+/**
+ * A configuration context for one top-level application.
+ *
+ * Without a scope, the config file override, the propset settings and the
+ * override properties are all taken from or written to the system
+ * properties, so they affect all the applications in the VM. An
+ * application loaded with a scope current (see load and call) keeps that
+ * scope for its whole controller tree: all its ParametrizedCorpusControllers
+ * and Pipelines, including sub-pipelines which get loaded later or in other
+ * threads and duplicates, then read their configs within it.
+ * <p>
+ * Within a scope, properties are looked up in the properties of the scope
+ * first and then in the system properties. The propset settings of config
+ * files are written to the properties of the scope only, and the override
+ * properties of the scope override those from the system properties and
+ * from the sources registered with ConfigOverrides.
+ *
+ * @author Johann Petrak
+ */
+public class ConfigScope {
+
+  protected static final Logger LOGGER = Logger.getLogger(ConfigScope.class);
+
+  private static final ThreadLocal<ConfigScope> CURRENT = new ThreadLocal<>();
+
+  private final String name;
+  private final Properties properties = new Properties();
+  // the override layer built from the properties of this scope
+  volatile ConfigOverrides.Layer layer = null;
+
+  /**
+   * Create a new, empty scope.
+   * @param name the name of the scope, used for logging
+   */
+  public ConfigScope(String name) {
+    this.name = name;
+  }
+
+  /**
+   * The name of the scope.
+   * @return name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The properties of the scope.
+   *
+   * These can be modified at any time, the changes are picked up the next
+   * time a config gets read within the scope.
+   *
+   * @return the properties object of the scope
+   */
+  public Properties getProperties() {
+    return properties;
+  }
+
+  /**
+   * Get a property from the scope, or from the system properties if the
+   * scope does not have it.
+   *
+   * @param key the property name
+   * @return the value or null
+   */
+  public String getProperty(String key) {
+    String value = properties.getProperty(key);
+    return value == null ? System.getProperty(key) : value;
+  }
+
+  /**
+   * Load an application from a URL with this scope current.
+   *
+   * @param url the URL of the xgapp file
+   * @return the loaded object
+   * @throws PersistenceException if the application cannot be restored
+   * @throws IOException if the file cannot be read
+   * @throws ResourceInstantiationException if a resource cannot be created
+   */
+  public Object load(URL url)
+          throws PersistenceException, IOException, ResourceInstantiationException {
+    ConfigScope previous = enter(this);
+    try {
+      LOGGER.debug("Loading "+url+" in config scope "+name);
+      return PipelineFileCache.loadObjectFromUrl(url);
+    } finally {
+      restore(previous);
+    }
+  }
+
+  /**
+   * Run something with this scope current, e.g. create a controller with
+   * the Factory.
+   *
+   * @param <T> the type of the result
+   * @param callable what to run
+   * @return the result of the callable
+   */
+  public <T> T call(Callable<T> callable) {
+    ConfigScope previous = enter(this);
+    try {
+      return callable.call();
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Error running in config scope "+name, ex);
+    } finally {
+      restore(previous);
+    }
+  }
+
+  /**
+   * The scope which is current for the calling thread.
+   * @return the scope or null if none is current
+   */
+  public static ConfigScope current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Make a scope current for the calling thread.
+   * @param scope the scope, may be null
+   * @return the scope that was current before, to pass to restore
+   */
+  static ConfigScope enter(ConfigScope scope) {
+    ConfigScope previous = CURRENT.get();
+    CURRENT.set(scope);
+    return previous;
+  }
+
+  /**
+   * Make the scope current again which was current before enter was called.
+   * @param previous the scope returned by enter
+   */
+  static void restore(ConfigScope previous) {
+    if(previous == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(previous);
+    }
+  }
+
+  /**
+   * Get a property from the scope if there is one, otherwise from the
+   * system properties.
+   *
+   * @param scope the scope or null
+   * @param key the property name
+   * @return the value or null
+   */
+  static String getProperty(ConfigScope scope, String key) {
+    return scope == null ? System.getProperty(key) : scope.getProperty(key);
+  }
+
+  @Override
+  public String toString() {
+    return "ConfigScope "+name;
+  }
+
+}
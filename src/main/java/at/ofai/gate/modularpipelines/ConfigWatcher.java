@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI). 
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.log4j.Logger;
+
+/**
+ * Watches config files for changes and notifies listeners.
+ *
+ * All watched files share a single WatchService and a single daemon 
+ * thread which is started when the first file gets watched and stopped
+ * again when the last registration got cancelled. Listeners 
+ * are invoked on that thread, so anything they do happens in the 
+ * background and not on any thread which is processing documents.
+ * <p>
+ * Editors and tools often write a file in several steps, so the listeners
+ * only get notified once the file did not change for a short quiet period.
+ * The changed file then gets parsed once and the same parsed Config is 
+ * passed to all the listeners of the file.
+ *
+ * @author Johann Petrak
+ */
+public class ConfigWatcher {
+
+  protected static final Logger LOGGER = Logger.getLogger(ConfigWatcher.class);
+
+  private static WatchService watchService;
+  private static Thread watchThread;
+  // the directories we have registered with the watch service
+  private static final ConcurrentMap<Path, WatchKey> DIRECTORIES = new ConcurrentHashMap<>();
+  // the listeners for each canonical file path
+  private static final ConcurrentMap<Path, List<Consumer<Config>>> LISTENERS = new ConcurrentHashMap<>();
+  
+  // the time in milliseconds a file must not change before its listeners
+  // get notified
+  static final long QUIET_PERIOD = 200;
+
+  private ConfigWatcher() {}
+
+  /**
+   * A registration of a listener for a file, used to stop watching.
+   */
+  public static class Registration {
+    private final Path file;
+    private final Consumer<Config> listener;
+    private Registration(Path file, Consumer<Config> listener) {
+      this.file = file;
+      this.listener = listener;
+    }
+    /**
+     * The canonical path of the watched file.
+     * @return the path
+     */
+    public Path getFile() {
+      return file;
+    }
+    /**
+     * Stop notifying the listener about changes of the file.
+     */
+    public void cancel() {
+      unwatch(file, listener);
+    }
+  }
+
+  /**
+   * Start watching a file.
+   *
+   * The listener gets invoked on the watcher thread whenever the file
+   * was created or modified.
+   *
+   * @param file the file to watch
+   * @param listener the listener to invoke
+   * @return the registration which can be used to stop watching
+   */
+  public static Registration watch(File file, Runnable listener) {
+    return watch(file, config -> listener.run());
+  }
+
+  /**
+   * Start watching a config file.
+   *
+   * The listener gets invoked on the watcher thread with the newly parsed
+   * config whenever the file was created or modified. The config is 
+   * shared by all the listeners of the file and must not be modified.
+   * If the changed file cannot be parsed, the listeners are not invoked.
+   *
+   * @param file the file to watch
+   * @param listener the listener to invoke
+   * @return the registration which can be used to stop watching
+   */
+  public static synchronized Registration watch(File file, Consumer<Config> listener) {
+    Path path;
+    try {
+      path = file.getCanonicalFile().toPath();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Cannot get canonical pathname for config file "+file,ex);
+    }
+    Path dir = path.getParent();
+    try {
+      if (watchService == null) {
+        WatchService service = FileSystems.getDefault().newWatchService();
+        watchService = service;
+        watchThread = new Thread(() -> run(service), "ModularPipelines-ConfigWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+      }
+      if (!DIRECTORIES.containsKey(dir)) {
+        DIRECTORIES.put(dir, dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Cannot watch config file "+file,ex);
+    }
+    LISTENERS.computeIfAbsent(path, p -> new CopyOnWriteArrayList<>()).add(listener);
+    LOGGER.debug("ConfigWatcher: watching "+path);
+    return new Registration(path, listener);
+  }
+
+  private static synchronized void unwatch(Path file, Consumer<Config> listener) {
+    List<Consumer<Config>> listeners = LISTENERS.get(file);
+    if (listeners == null || !listeners.remove(listener) || !listeners.isEmpty()) {
+      return;
+    }
+    LISTENERS.remove(file);
+    LOGGER.debug("ConfigWatcher: not watching "+file+" any more");
+    Path dir = file.getParent();
+    for (Path other : LISTENERS.keySet()) {
+      if (dir.equals(other.getParent())) {
+        return;
+      }
+    }
+    WatchKey key = DIRECTORIES.remove(dir);
+    if (key != null) {
+      key.cancel();
+    }
+    if (LISTENERS.isEmpty() && watchService != null) {
+      // the thread ends when its watch service gets closed
+      try {
+        watchService.close();
+      } catch (IOException ex) {
+        LOGGER.warn("Could not close the config watch service", ex);
+      }
+      watchService = null;
+      watchThread = null;
+      LOGGER.debug("ConfigWatcher: stopped");
+    }
+  }
+
+  /**
+   * The number of files currently watched.
+   * @return number of files
+   */
+  public static int getWatchedFileCount() {
+    return LISTENERS.size();
+  }
+
+  /**
+   * Check if the watcher thread is running.
+   * @return true if some file is watched
+   */
+  public static synchronized boolean isRunning() {
+    return watchThread != null;
+  }
+
+  private static void run(WatchService service) {
+    // the changed files, with the time when they will have been quiet for
+    // long enough, only used on this thread
+    Map<Path, Long> pending = new HashMap<>();
+    while (true) {
+      WatchKey key;
+      try {
+        if (pending.isEmpty()) {
+          key = service.take();
+        } else {
+          long wait = Long.MAX_VALUE;
+          for (long due : pending.values()) {
+            wait = Math.min(wait, due - System.currentTimeMillis());
+          }
+          key = wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : null;
+        }
+      } catch (InterruptedException | ClosedWatchServiceException ex) {
+        return;
+      }
+      if (key != null) {
+        Path dir = (Path)key.watchable();
+        long due = System.currentTimeMillis() + QUIET_PERIOD;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            // we lost events, so tell everyone in this directory
+            for (Path file : LISTENERS.keySet()) {
+              if (dir.equals(file.getParent())) {
+                pending.put(file, due);
+              }
+            }
+          } else {
+            Path file = dir.resolve((Path)event.context());
+            if (LISTENERS.containsKey(file)) {
+              pending.put(file, due);
+            }
+          }
+        }
+        key.reset();
+      }
+      long now = System.currentTimeMillis();
+      for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<Path, Long> entry = it.next();
+        if (entry.getValue() <= now) {
+          it.remove();
+          notifyListeners(entry.getKey());
+        }
+      }
+    }
+  }
+
+  private static void notifyListeners(Path file) {
+    List<Consumer<Config>> listeners = LISTENERS.get(file);
+    if (listeners == null) {
+      return;
+    }
+    LOGGER.debug("ConfigWatcher: file changed "+file);
+    // the file may have changed without a change of size within the 
+    // resolution of the modification time, so always parse it again
+    Config config;
+    try {
+      ConfigCache.invalidate(file.toFile());
+      config = ConfigCache.get(file.toFile());
+    } catch (RuntimeException ex) {
+      LOGGER.error("Could not read changed config file "+file+", keeping the old config", ex);
+      return;
+    }
+    for (Consumer<Config> listener : listeners) {
+      try {
+        listener.accept(config);
+      } catch (RuntimeException ex) {
+        LOGGER.error("Error when processing change of config file "+file, ex);
+      }
+    }
+  }
+
+}
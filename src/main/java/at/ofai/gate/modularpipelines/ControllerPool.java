@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Controller;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Factory;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * A fixed size pool of instances of a sub-pipeline controller which is
+ * shared by a Pipeline PR and all its duplicates.
+ *
+ * Each Pipeline borrows an instance from the pool for executing the
+ * sub-pipeline on a document and returns it afterwards, so if there are
+ * more Pipeline duplicates than instances, a Pipeline may have to wait for
+ * an instance to become available. The time spent waiting is recorded.
+ * <p>
+ * The controller callbacks of the pooled instances are invoked once for
+ * all the Pipelines which use the pool: the started callback when the
+ * first Pipeline gets started, the finished or aborted callback when the
+ * last Pipeline has finished.
+ *
+ * @author Johann Petrak
+ */
+public class ControllerPool {
+
+  protected static final Logger LOGGER = Logger.getLogger(ControllerPool.class);
+
+  private final List<Controller> controllers;
+  private final BlockingQueue<Controller> idle;
+  private final String name;
+
+  // number of Pipelines which use this pool
+  private int users = 0;
+  // number of Pipelines between started and finished/aborted callbacks
+  private int running = 0;
+  private Throwable abortedWith = null;
+
+  private final LongAdder borrows = new LongAdder();
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  /**
+   * Create a pool from the given controller and size-1 duplicates of it.
+   *
+   * @param controller the controller which becomes the first instance
+   * @param size the number of instances
+   * @param name the name used for logging
+   * @throws ResourceInstantiationException if a duplicate cannot be created
+   */
+  ControllerPool(Controller controller, int size, String name)
+          throws ResourceInstantiationException {
+    if(size < 1) {
+      throw new GateRuntimeException("Pool size must be at least 1 for "+name);
+    }
+    this.name = name;
+    List<Controller> instances = new ArrayList<>(size);
+    instances.add(controller);
+    // Each instance must be duplicated in a context of its own, otherwise
+    // all instances would share the same duplicated resources.
+    for(int i = 1; i < size; i++) {
+      instances.add((Controller)Factory.duplicate(controller));
+    }
+    controllers = Collections.unmodifiableList(instances);
+    idle = new ArrayBlockingQueue<>(size, false, instances);
+    LOGGER.debug("Created pool of "+size+" controllers for "+name);
+  }
+
+  /**
+   * Borrow an instance, waiting until one is available if necessary.
+   *
+   * @return the controller instance
+   */
+  Controller borrow() {
+    borrows.increment();
+    Controller c = idle.poll();
+    if(c != null) {
+      return c;
+    }
+    long start = System.nanoTime();
+    try {
+      c = idle.take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GateRuntimeException("Interrupted while waiting for a controller of "+name,ex);
+    }
+    long waited = System.nanoTime() - start;
+    waits.increment();
+    waitNanos.add(waited);
+    long max;
+    while(waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited)) {
+      // retry
+    }
+    return c;
+  }
+
+  /**
+   * Give back an instance which was borrowed.
+   * @param c the controller instance
+   */
+  void release(Controller c) {
+    idle.add(c);
+  }
+
+  /**
+   * All the controller instances of this pool.
+   * @return unmodifiable list of the instances
+   */
+  public List<Controller> getControllers() {
+    return controllers;
+  }
+
+  /**
+   * The number of controller instances in the pool.
+   * @return pool size
+   */
+  public int getSize() {
+    return controllers.size();
+  }
+
+  /**
+   * Number of times an instance was borrowed.
+   * @return count
+   */
+  public long getBorrowCount() {
+    return borrows.sum();
+  }
+
+  /**
+   * Number of times no instance was available and a Pipeline had to wait.
+   * @return count
+   */
+  public long getWaitCount() {
+    return waits.sum();
+  }
+
+  /**
+   * Total time spent waiting for an instance, in nanoseconds.
+   * @return nanoseconds
+   */
+  public long getTotalWaitNanos() {
+    return waitNanos.sum();
+  }
+
+  /**
+   * Longest time a Pipeline had to wait for an instance, in nanoseconds.
+   * @return nanoseconds
+   */
+  public long getMaxWaitNanos() {
+    return maxWaitNanos.get();
+  }
+
+  synchronized void addUser() {
+    users++;
+  }
+
+  /**
+   * Remove a user of the pool, if it was the last one, delete all instances.
+   */
+  synchronized void removeUser() {
+    users--;
+    if(users == 0) {
+      LOGGER.debug("Deleting pool for "+name+", borrowed "+getBorrowCount()+
+              " times, waited "+getWaitCount()+" times for "+(getTotalWaitNanos()/1000000)+"ms");
+      for(Controller c : controllers) {
+        Factory.deleteResource(c);
+      }
+    }
+  }
+
+  synchronized void controllerExecutionStarted(Controller c, Corpus corpus)
+          throws ExecutionException {
+    if(running++ == 0) {
+      abortedWith = null;
+      for(Controller pooled : controllers) {
+        if(pooled instanceof ControllerAwarePR) {
+          if(pooled instanceof CorpusController) {
+            ((CorpusController)pooled).setCorpus(corpus);
+          }
+          ((ControllerAwarePR)pooled).controllerExecutionStarted(c);
+        }
+      }
+    }
+  }
+
+  synchronized void controllerExecutionFinished(Controller c, Corpus corpus)
+          throws ExecutionException {
+    if(--running == 0) {
+      for(Controller pooled : controllers) {
+        if(pooled instanceof ControllerAwarePR) {
+          if(pooled instanceof CorpusController) {
+            ((CorpusController)pooled).setCorpus(corpus);
+          }
+          if(abortedWith == null) {
+            ((ControllerAwarePR)pooled).controllerExecutionFinished(c);
+          } else {
+            ((ControllerAwarePR)pooled).controllerExecutionAborted(c, abortedWith);
+          }
+          if(pooled instanceof CorpusController) {
+            ((CorpusController)pooled).setCorpus(null);
+          }
+        }
+      }
+    }
+  }
+
+  synchronized void controllerExecutionAborted(Controller c, Corpus corpus, Throwable t)
+          throws ExecutionException {
+    if(abortedWith == null) {
+      abortedWith = t;
+    }
+    controllerExecutionFinished(c, corpus);
+  }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Document;
+import gate.util.GateRuntimeException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * The time budget for processing a document.
+ *
+ * When the budget runs out, whatever processes the document gets 
+ * interrupted through its interrupt() method, which makes controllers stop 
+ * before the next PR and asks the running PR to stop.
+ *
+ * @author Johann Petrak
+ */
+final class DocumentDeadline implements Runnable {
+
+  protected static final Logger LOGGER = Logger.getLogger(DocumentDeadline.class);
+
+  public static final String POLICY_CONTINUE = "continue";
+  public static final String POLICY_ABORT = "abort";
+
+  private static final ScheduledExecutorService SCHEDULER =
+          Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ModularPipelines-Deadline");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final Runnable onExpiry;
+  private volatile boolean expired = false;
+  private volatile ScheduledFuture<?> future;
+
+  private DocumentDeadline(Runnable onExpiry) {
+    this.onExpiry = onExpiry;
+  }
+
+  /**
+   * Start the time budget.
+   *
+   * @param onExpiry what to run when the budget runs out, usually the 
+   * interrupt() method of whatever processes the document
+   * @param millis the budget in milliseconds
+   * @return the deadline
+   */
+  static DocumentDeadline start(Runnable onExpiry, long millis) {
+    DocumentDeadline deadline = new DocumentDeadline(onExpiry);
+    deadline.future = SCHEDULER.schedule(deadline, millis, TimeUnit.MILLISECONDS);
+    return deadline;
+  }
+
+  @Override
+  public void run() {
+    expired = true;
+    onExpiry.run();
+  }
+
+  /**
+   * Check if the budget ran out.
+   * @return true if the target got interrupted
+   */
+  boolean hasExpired() {
+    return expired;
+  }
+
+  /**
+   * Stop the deadline, if it has not expired yet it will not.
+   * @return true if the budget ran out before
+   */
+  boolean cancel() {
+    future.cancel(false);
+    return expired;
+  }
+
+  /**
+   * Check if the policy says to abort processing the document.
+   * @param policy the policy name, null for the default
+   * @return true for the abort policy
+   */
+  static boolean isAbort(String policy) {
+    if(policy == null || policy.equalsIgnoreCase(POLICY_CONTINUE)) {
+      return false;
+    } else if(policy.equalsIgnoreCase(POLICY_ABORT)) {
+      return true;
+    }
+    throw new GateRuntimeException("Unknown timeout policy: "+policy);
+  }
+
+  /**
+   * Record that the budget of something ran out for the document.
+   *
+   * @param doc the document, may be null
+   * @param name the name of the sub-pipeline or PR
+   * @param node the node for the execution metrics, may be null
+   */
+  static void timedOut(Document doc, String name, ExecutionTimer node) {
+    LOGGER.warn("Time budget of "+name+" ran out for document "+(doc == null ? null : doc.getName()));
+    if(doc != null) {
+      doc.getFeatures().put(DocumentTimeoutException.TIMEOUT_FEATURE, name);
+    }
+    if(node != null) {
+      node.recordTimeout();
+    }
+  }
+
+}
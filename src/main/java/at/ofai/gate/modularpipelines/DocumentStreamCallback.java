@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Document;
+import gate.creole.ExecutionException;
+
+/**
+ * Gets invoked for each document of a stream processed by 
+ * ParametrizedCorpusController.executeStream.
+ *
+ * Unless the caller kept the ownership of the documents when starting
+ * to process the stream, the document gets deleted as soon as the 
+ * callback returns, so anything that is still needed must be taken from 
+ * it or copied here. If the 
+ * controller processes the stream with several threads, the callback is
+ * invoked from all of them.
+ *
+ * @author Johann Petrak
+ */
+@FunctionalInterface
+public interface DocumentStreamCallback {
+
+  /**
+   * The controller has finished processing the document.
+   *
+   * @param document the processed document
+   * @throws ExecutionException to abort processing the stream
+   */
+  void documentFinished(Document document) throws ExecutionException;
+
+}
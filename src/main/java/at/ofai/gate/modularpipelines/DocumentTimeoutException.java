@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.util.GateRuntimeException;
+
+/**
+ * Thrown when a sub-pipeline ran out of its time budget for a document
+ * and the timeout policy says that processing of the document should be
+ * aborted.
+ *
+ * The controller which processes the corpus skips the remaining PRs for
+ * the document and continues with the next document.
+ *
+ * @author Johann Petrak
+ */
+public class DocumentTimeoutException extends GateRuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The document feature which gets set to the name of the sub-pipeline
+   * or PR which ran out of its time budget.
+   */
+  public static final String TIMEOUT_FEATURE = "modularpipelines.timeout";
+
+  public DocumentTimeoutException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the execution metrics of controllers and PRs.
+ *
+ * Metrics are only recorded while enabled, which they initially are if
+ * the system property at.ofai.gate.modularpipelines.metrics is set to true
+ * when this class gets loaded, and can be changed at any time with
+ * setEnabled. Once enabled, the metrics are also available through the
+ * MXBean at.ofai.gate.modularpipelines:type=ExecutionMetrics.
+ * <p>
+ * The metrics are kept for the nesting path of each PR, starting with
+ * the name of the outermost controller, followed by the names of the PRs
+ * at each level, e.g. Main/Sub01/groovy where Sub01 is a Pipeline PR or
+ * a nested controller in the controller Main. The node of the PR which is
+ * currently running is kept for the thread so that nested controllers can
+ * find their place in the tree. The metrics of an outermost controller
+ * are removed when the last controller or Pipeline PR which recorded 
+ * them gets deleted.
+ *
+ * @author Johann Petrak
+ */
+public final class ExecutionMetrics {
+
+  protected static final Logger LOGGER = Logger.getLogger(ExecutionMetrics.class);
+
+  public static final String ENABLED_PROPERTY = "at.ofai.gate.modularpipelines.metrics";
+
+  public static final String MBEAN_NAME = "at.ofai.gate.modularpipelines:type=ExecutionMetrics";
+
+  private static volatile boolean enabled = false;
+  private static boolean registered = false;
+
+  // the node of each outermost controller and the resources recording to it
+  private static final class Root {
+    final ExecutionTimer timer;
+    final Set<Object> users = ConcurrentHashMap.newKeySet();
+    Root(String name) {
+      timer = new ExecutionTimer(name);
+    }
+  }
+
+  private static final ConcurrentHashMap<String,Root> ROOTS = new ConcurrentHashMap<>();
+
+  private static final ThreadLocal<ExecutionTimer> CURRENT = new ThreadLocal<>();
+
+  static {
+    setEnabled(Boolean.getBoolean(ENABLED_PROPERTY));
+  }
+
+  private ExecutionMetrics() {}
+
+  /**
+   * Check if metrics are recorded.
+   * @return true if enabled
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Start or stop recording metrics. The metrics recorded so far are kept.
+   * @param flag true to record metrics
+   */
+  public static synchronized void setEnabled(boolean flag) {
+    if(flag && !registered) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(MBEAN_NAME));
+      } catch (Exception ex) {
+        LOGGER.warn("Could not register the execution metrics MBean", ex);
+      }
+      registered = true;
+    }
+    enabled = flag;
+  }
+
+  /**
+   * Get the node of an outermost controller.
+   * @param name the name of the controller
+   * @param user the controller or PR which records the metrics
+   * @return the node
+   */
+  static ExecutionTimer root(String name, Object user) {
+    String key = String.valueOf(name);
+    Root root = ROOTS.get(key);
+    if(root == null || !root.users.contains(user)) {
+      root = ROOTS.compute(key, (k, old) -> {
+        Root r = old == null ? new Root(k) : old;
+        r.users.add(user);
+        return r;
+      });
+    }
+    return root.timer;
+  }
+
+  /**
+   * Forget the metrics of the outermost controllers for which the resource
+   * was the last one to record metrics, e.g. because it gets deleted.
+   * @param user the controller or PR
+   */
+  static void release(Object user) {
+    for(String key : ROOTS.keySet()) {
+      ROOTS.computeIfPresent(key, (k, root) -> {
+        root.users.remove(user);
+        return root.users.isEmpty() ? null : root;
+      });
+    }
+  }
+
+  /**
+   * The node of the PR which is running in this thread.
+   * @return the node or null if there is none
+   */
+  static ExecutionTimer current() {
+    return CURRENT.get();
+  }
+
+  static void setCurrent(ExecutionTimer timer) {
+    CURRENT.set(timer);
+  }
+
+  /**
+   * Get the metrics of all nodes.
+   * @return map from path to the metrics, ordered by path
+   */
+  public static Map<String,ExecutionTimer.Snapshot> snapshot() {
+    Map<String,ExecutionTimer.Snapshot> all = new TreeMap<>();
+    for(Root root : ROOTS.values()) {
+      root.timer.collect(all);
+    }
+    return all;
+  }
+
+  /**
+   * Forget all the metrics recorded so far.
+   */
+  public static void reset() {
+    ROOTS.clear();
+  }
+
+  private static final class Bean implements ExecutionMetricsMXBean {
+    @Override
+    public List<ExecutionTimer.Snapshot> getTimers() {
+      return new ArrayList<>(snapshot().values());
+    }
+    @Override
+    public void reset() {
+      ExecutionMetrics.reset();
+    }
+  }
+
+}
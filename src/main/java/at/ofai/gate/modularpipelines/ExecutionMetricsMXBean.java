@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.util.List;
+
+/**
+ * The JMX view of the execution metrics of all controllers and PRs.
+ *
+ * @author Johann Petrak
+ */
+public interface ExecutionMetricsMXBean {
+
+  /**
+   * The metrics of all the nodes, ordered by path.
+   * @return the snapshots
+   */
+  List<ExecutionTimer.Snapshot> getTimers();
+
+  /**
+   * Forget all the metrics recorded so far.
+   */
+  void reset();
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The execution metrics for one node of the nesting path of controllers
+ * and PRs, e.g. Main/Sub01/groovy.
+ *
+ * Recording a run or skip does not allocate any objects: the latencies
+ * are counted in a histogram with one bucket for each power of two
+ * nanoseconds.
+ *
+ * @author Johann Petrak
+ */
+public final class ExecutionTimer {
+
+  static final int BUCKETS = 64;
+
+  private final String path;
+  private final ConcurrentHashMap<String,ExecutionTimer> children = new ConcurrentHashMap<>();
+  private final LongAdder runs = new LongAdder();
+  private final LongAdder skips = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+  ExecutionTimer(String path) {
+    this.path = path;
+  }
+
+  /**
+   * The path of this node.
+   * @return path
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Get the node for a PR or controller nested in this one.
+   *
+   * @param name the name of the PR or controller
+   * @return the node, created when first needed
+   */
+  ExecutionTimer child(String name) {
+    String key = String.valueOf(name);
+    ExecutionTimer child = children.get(key);
+    if(child == null) {
+      child = children.computeIfAbsent(key, n -> new ExecutionTimer(path+"/"+n));
+    }
+    return child;
+  }
+
+  void recordRun(long nanos) {
+    runs.increment();
+    totalNanos.add(nanos);
+    histogram.incrementAndGet(bucket(nanos));
+    long max;
+    while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+      // retry
+    }
+  }
+
+  void recordSkip() {
+    skips.increment();
+  }
+
+  void recordTimeout() {
+    timeouts.increment();
+  }
+
+  // bucket b > 0 counts latencies from 2^(b-1) up to below 2^b nanoseconds
+  static int bucket(long nanos) {
+    return nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+  }
+
+  void collect(Map<String,Snapshot> into) {
+    into.put(path, snapshot());
+    for(ExecutionTimer child : children.values()) {
+      child.collect(into);
+    }
+  }
+
+  /**
+   * Get a copy of the current metrics of this node.
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    for(int i = 0; i < BUCKETS; i++) {
+      counts[i] = histogram.get(i);
+    }
+    return new Snapshot(path, runs.sum(), skips.sum(), timeouts.sum(), totalNanos.sum(),
+            maxNanos.get(), counts);
+  }
+
+  /**
+   * The metrics of a node at some point in time.
+   */
+  public static final class Snapshot {
+    private final String path;
+    private final long runs;
+    private final long skips;
+    private final long timeouts;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] histogram;
+
+    @ConstructorProperties({"path", "runs", "skips", "timeouts", "totalNanos", "maxNanos", "histogram"})
+    public Snapshot(String path, long runs, long skips, long timeouts, long totalNanos,
+            long maxNanos, long[] histogram) {
+      this.path = path;
+      this.runs = runs;
+      this.skips = skips;
+      this.timeouts = timeouts;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+      this.histogram = histogram.clone();
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * Number of times the PR was run.
+     * @return count
+     */
+    public long getRuns() {
+      return runs;
+    }
+
+    /**
+     * Number of times the PR was not run because of its running strategy.
+     * @return count
+     */
+    public long getSkips() {
+      return skips;
+    }
+
+    /**
+     * Number of documents for which the time budget ran out.
+     * @return count
+     */
+    public long getTimeouts() {
+      return timeouts;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    public long getMeanNanos() {
+      return runs == 0 ? 0 : totalNanos / runs;
+    }
+
+    /**
+     * The number of runs for each bucket, bucket b counts the runs which
+     * took from 2^(b-1) up to below 2^b nanoseconds.
+     * @return the counts
+     */
+    public long[] getHistogram() {
+      return histogram.clone();
+    }
+
+    /**
+     * An upper bound of the given percentile of the latencies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket which contains the percentile
+     */
+    public long getPercentileNanos(double percentile) {
+      if(runs == 0) {
+        return 0;
+      }
+      long rank = (long)Math.ceil(runs * percentile / 100.0);
+      long seen = 0;
+      for(int b = 0; b < histogram.length; b++) {
+        seen += histogram[b];
+        if(seen >= rank && seen > 0) {
+          return b == 0 ? 0 : (b >= 63 ? Long.MAX_VALUE : 1L << b);
+        }
+      }
+      return maxNanos;
+    }
+
+    public long getMedianNanos() {
+      return getPercentileNanos(50);
+    }
+
+    public long getP99Nanos() {
+      return getPercentileNanos(99);
+    }
+
+    @Override
+    public String toString() {
+      return path+": runs="+runs+" skips="+skips+" timeouts="+timeouts+" mean="+getMeanNanos()+"ns p99<="+
+              getP99Nanos()+"ns max="+maxNanos+"ns";
+    }
+  }
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.ProcessingResource;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.ResourceInstantiationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Processes the documents of a corpus or a stream with several copies of a
+ * ParametrizedCorpusController in parallel.
+ *
+ * The controller itself is the first worker and runs in the calling thread,
+ * the other workers are duplicates of it, each running in a thread of its
+ * own. The workers take the index of the next document to process from a
+ * shared counter, or the next document from the stream, until all documents 
+ * have been processed or processing failed or got interrupted.
+ * <p>
+ * Each duplicate gets the controller callbacks invoked exactly once for a
+ * run, if the callbacks are enabled for the controller, which gets its own
+ * callbacks invoked by its execute() method as usual. For each document,
+ * a duplicate uses the config of the controller at the time the document
+ * is started, just like the controller would. The threads of the workers
+ * are created once together with the duplicates and stopped by cleanup().
+ *
+ * @author Johann Petrak
+ */
+class ParallelCorpusRunner {
+
+  protected static final Logger LOGGER = Logger.getLogger(ParallelCorpusRunner.class);
+
+  private final ParametrizedCorpusController controller;
+  // the controller followed by its duplicates
+  private final List<ParametrizedCorpusController> workers;
+  // the PRs of the controller when the duplicates were created
+  private final List<ProcessingResource> prs;
+  // the threads for the duplicates
+  private final ExecutorService executor;
+
+  /**
+   * Create the duplicates of the controller.
+   *
+   * @param controller the controller
+   * @param n the number of workers, including the controller
+   * @throws ResourceInstantiationException if a duplicate cannot be created
+   */
+  ParallelCorpusRunner(ParametrizedCorpusController controller, int n)
+          throws ResourceInstantiationException {
+    this.controller = controller;
+    this.prs = new ArrayList<>(controller.getPRs());
+    List<ParametrizedCorpusController> list = new ArrayList<>(n);
+    list.add(controller);
+    try {
+      for(int i = 1; i < n; i++) {
+        list.add((ParametrizedCorpusController)Factory.duplicate(controller));
+      }
+    } catch (ResourceInstantiationException ex) {
+      for(int i = 1; i < list.size(); i++) {
+        deleteDuplicate(list.get(i));
+      }
+      throw ex;
+    }
+    workers = Collections.unmodifiableList(list);
+    final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    final AtomicInteger number = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(Math.max(n-1, 1), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ModularPipelines-Worker-"+controller.getName()+"-"+number.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setContextClassLoader(loader);
+        return thread;
+      }
+    });
+    LOGGER.debug("Created "+(n-1)+" worker duplicates of "+controller.getName());
+  }
+
+  /**
+   * Check if the workers can still be used for the controller.
+   *
+   * @param n the number of workers needed
+   * @return true if there are n workers and the PRs of the controller did not change
+   */
+  boolean isFor(int n) {
+    return workers.size() == n && prs.equals(controller.getPRs());
+  }
+
+  /**
+   * Process all the documents of the corpus.
+   *
+   * @param corpus the corpus
+   * @param callbacks if the controller callbacks should be invoked for the duplicates
+   * @throws ExecutionException if processing any document failed
+   */
+  void run(Corpus corpus, boolean callbacks) throws ExecutionException {
+    if(corpus == null) {
+      throw new ExecutionException("(ParametrizedCorpusController) \""+controller.getName()+"\":\n"+
+              "The corpus supplied for execution was null!");
+    }
+    final AtomicInteger next = new AtomicInteger();
+    run(corpus, "corpus "+corpus.getName(), worker -> {
+      int i = next.getAndIncrement();
+      Document doc;
+      boolean wasLoaded;
+      synchronized(corpus) {
+        if(i >= corpus.size()) {
+          return false;
+        }
+        wasLoaded = corpus.isDocumentLoaded(i);
+        doc = corpus.get(i);
+      }
+      try {
+        worker.executeDocument(doc);
+      } finally {
+        if(!wasLoaded) {
+          synchronized(corpus) {
+            corpus.unloadDocument(doc);
+          }
+          Factory.deleteResource(doc);
+        }
+      }
+      return true;
+    }, callbacks);
+  }
+
+  /**
+   * Process all the documents of a stream.
+   * 
+   * @param documents the documents
+   * @param callback the callback for each processed document
+   * @param delete if each document should be deleted after it was passed to 
+   * the document callback, otherwise the documents belong to the caller
+   * @param callbacks if the controller callbacks should be invoked for the duplicates
+   * @throws ExecutionException if processing any document failed
+   */
+  void run(Iterator<? extends Document> documents, DocumentStreamCallback callback, 
+          boolean delete, boolean callbacks) throws ExecutionException {
+    run(null, "document stream", worker -> {
+      Document doc;
+      synchronized(documents) {
+        if(!documents.hasNext()) {
+          return false;
+        }
+        doc = documents.next();
+      }
+      try {
+        worker.executeDocument(doc);
+        callback.documentFinished(doc);
+      } finally {
+        if(delete) {
+          Factory.deleteResource(doc);
+        }
+      }
+      return true;
+    }, callbacks);
+  }
+
+  // Processes the next document with a worker, false if there is none.
+  private interface DocumentSource {
+    boolean processNext(ParametrizedCorpusController worker) throws ExecutionException;
+  }
+
+  private void run(Corpus corpus, String what, DocumentSource source, boolean callbacks) 
+          throws ExecutionException {
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Future<?>> futures = new ArrayList<>();
+    for(int i = 1; i < workers.size(); i++) {
+      final ParametrizedCorpusController worker = workers.get(i);
+      futures.add(executor.submit(() -> work(worker, corpus, source, failure, callbacks)));
+    }
+    work(controller, corpus, source, failure, callbacks);
+    for(Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        failure.compareAndSet(null, ex);
+      } catch (java.util.concurrent.ExecutionException ex) {
+        failure.compareAndSet(null, ex.getCause());
+      }
+    }
+    Throwable t = failure.get();
+    if(t instanceof ExecutionException) {
+      throw (ExecutionException)t;
+    } else if(t instanceof RuntimeException) {
+      throw (RuntimeException)t;
+    } else if(t instanceof Error) {
+      throw (Error)t;
+    } else if(t != null) {
+      throw new ExecutionException("Error processing "+what+" in "+controller.getName(), t);
+    }
+    if(controller.isInterrupted()) {
+      throw new ExecutionInterruptedException("The execution of the \""+controller.getName()+
+              "\" application has been abruptly interrupted!");
+    }
+  }
+
+  /**
+   * Interrupt all the workers.
+   */
+  void interrupt() {
+    for(int i = 1; i < workers.size(); i++) {
+      workers.get(i).interrupt();
+    }
+  }
+
+  /**
+   * Stop the worker threads and delete the duplicates and the duplicated 
+   * PRs they contain.
+   */
+  void cleanup() {
+    executor.shutdownNow();
+    for(int i = 1; i < workers.size(); i++) {
+      deleteDuplicate(workers.get(i));
+    }
+  }
+
+  private static void deleteDuplicate(ParametrizedCorpusController duplicate) {
+    List<ProcessingResource> duplicatedPrs = new ArrayList<>(duplicate.getPRs());
+    Factory.deleteResource(duplicate);
+    for(ProcessingResource pr : duplicatedPrs) {
+      // PRs shared with the controller are deleted with the controller
+      if(!SharedPRs.isShared(pr)) {
+        Factory.deleteResource(pr);
+      }
+    }
+  }
+
+  private Void work(ParametrizedCorpusController worker, Corpus corpus, DocumentSource source,
+          AtomicReference<Throwable> failure, boolean callbacks) throws ExecutionException {
+    boolean duplicate = worker != controller;
+    boolean started = false;
+    try {
+      if(duplicate) {
+        worker.setCorpus(corpus);
+        worker.config = controller.config;
+        worker.checkpointer = controller.checkpointer;
+        if(callbacks) {
+          started = true;
+          worker.invokeControllerExecutionStarted();
+        }
+      }
+      while(failure.get() == null && !controller.isInterrupted()) {
+        if(duplicate) {
+          worker.config = controller.config;
+        }
+        if(!source.processNext(worker)) {
+          break;
+        }
+      }
+    } catch (Throwable t) {
+      failure.compareAndSet(null, t);
+    }
+    if(started) {
+      Throwable t = failure.get();
+      if(t == null) {
+        worker.invokeControllerExecutionFinished();
+      } else {
+        worker.invokeControllerExecutionAborted(t);
+      }
+    }
+    if(duplicate) {
+      worker.setCorpus(null);
+      worker.checkpointer = null;
+    }
+    return null;
+  }
+
+}
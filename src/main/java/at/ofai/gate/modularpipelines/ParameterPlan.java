@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Controller;
+import gate.Document;
+import gate.ProcessingResource;
+import gate.creole.AnalyserRunningStrategy;
+import gate.creole.ConditionalController;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.RunningStrategy;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * The runtime parameter and run mode settings of a Config, compiled for
+ * the PRs of one specific controller.
+ *
+ * Compiling resolves the "controllerName\tprName" ids of the config to the
+ * actual PR and running strategy objects once, so that applying the settings
+ * again later only needs to walk over the pre-resolved settings. A plan
+ * stays valid for as long as the controller has the same name and the
+ * same PR instances with the same names and the same running strategies, 
+ * and the same Config instance is used.
+ * <p>
+ * Parameter values are set through setters cached in ParameterSetters and
+ * only if the value differs from the value which was last set by a plan 
+ * for the same controller. The values last set are handed on from a plan to
+ * the plan compiled to replace it, so after a config change only the 
+ * parameters whose values actually changed get set again. 
+ * <p>
+ * The settings of the named profiles of the config are compiled as well,
+ * as differences to the base settings. Switching from one profile to 
+ * another only sets the parameters and run modes which either of the two
+ * profiles changes, the transition between two profiles is computed once
+ * when it is first needed. 
+ * <p>
+ * Parameters of PRs which the controller shares with other controllers
+ * are not set with the others, as another controller may be running the
+ * PR: the controller sets them with applyShared while it holds the lock
+ * of the PR, right before running it.
+ *
+ * @author Johann Petrak
+ */
+class ParameterPlan {
+
+  protected static final Logger LOGGER = Logger.getLogger(ParameterPlan.class);
+
+  private final Config config;
+  private final String controllerName;
+  private final ProcessingResource[] prs;
+  // the names the PRs had when the plan was compiled, the settings were
+  // resolved by these names
+  private final String[] prNames;
+  private final RunningStrategy[] strategies;
+  // the PRs shared with other controllers when the plan was compiled
+  private final Set<ProcessingResource> sharedPRs;
+  private final PrParm[] prParms;
+  private final RunFlag[] runFlags;
+  // For each PR, the condition from a prrun expression which must hold for
+  // a document to run the PR, or null 
+  private final RunCondition[] conditions;
+  // For each PR, the parameter values last set by a plan
+  private final Map<ProcessingResource, Map<String, Object>> appliedValues;
+
+  // For each PR, the values parameters changed by a profile had before 
+  // any profile was used, if the base settings do not set them
+  private final Map<ProcessingResource, Map<String, Object>> defaultValues;
+  // For each running strategy, the run mode it had before any profile was 
+  // used
+  private final Map<AnalyserRunningStrategy, Integer> defaultRunModes;
+  // the settings of each profile
+  private final Map<String, Delta> profiles;
+  // the settings which restore the base settings for anything changed by 
+  // any profile
+  private final Delta base;
+  // the transitions computed so far, by "fromProfile\ntoProfile"
+  private final Map<String, Delta> transitions = new HashMap<>();
+  // the name of the profile which is currently set, null for the base settings
+  private String currentProfile = null;
+
+  // marks a parameter which has not been set by a plan yet
+  private static final Object NOT_APPLIED = new Object();
+
+  /**
+   * A single runtime parameter value to set for a PR.
+   */
+  static class PrParm {
+    final String prId;
+    final ProcessingResource pr;
+    final String name;
+    final Object value;
+    final ParameterSetters.Setter setter;
+    final Map<String, Object> applied;
+    // set by applyShared only
+    final boolean shared;
+    PrParm(String prId, ProcessingResource pr, String name, Object value,
+            Map<String, Object> applied, boolean shared) {
+      this.prId = prId;
+      this.pr = pr;
+      this.name = name;
+      this.value = value;
+      this.setter = ParameterSetters.get(pr, name);
+      this.applied = applied;
+      this.shared = shared;
+    }
+    void apply() {
+      if (shared) {
+        return;
+      }
+      Object last = applied.containsKey(name) ? applied.get(name) : NOT_APPLIED;
+      if (last != NOT_APPLIED && (last == null ? value == null : last.equals(value))) {
+        return;
+      }
+      set();
+      applied.put(name, value);
+    }
+    void set() {
+      try {
+        setter.set(pr, name, value);
+      } catch (ResourceInstantiationException ex) {
+        throw new GateRuntimeException("Could not set parameter " + name + " for PR id " + prId + " to value " + value,ex);
+      }
+    }
+  }
+
+  /**
+   * A run mode to set for the running strategy of a PR, and the condition
+   * from a prrun expression for the PR, if there is one.
+   */
+  static class RunFlag {
+    final AnalyserRunningStrategy strategy;
+    final int runMode;
+    final RunCondition[] conditions;
+    final int index;
+    final RunCondition condition;
+    RunFlag(AnalyserRunningStrategy strategy, int runMode, 
+            RunCondition[] conditions, int index, RunCondition condition) {
+      this.strategy = strategy;
+      this.runMode = runMode;
+      this.conditions = conditions;
+      this.index = index;
+      this.condition = condition;
+    }
+    void apply() {
+      strategy.setRunMode(runMode);
+      conditions[index] = condition;
+    }
+  }
+
+  /**
+   * Parameter values and run modes to set, keyed by "prId\tparmName" and
+   * by prId, respectively.
+   */
+  static class Delta {
+    final Map<String, PrParm> prParms = new LinkedHashMap<>();
+    final Map<String, RunFlag> runFlags = new LinkedHashMap<>();
+    void apply() {
+      for (RunFlag runFlag : runFlags.values()) {
+        runFlag.apply();
+      }
+      for (PrParm prParm : prParms.values()) {
+        prParm.apply();
+      }
+    }
+  }
+
+  private ParameterPlan(Config config, String controllerName,
+          ProcessingResource[] prs, String[] prNames, RunningStrategy[] strategies,
+          Set<ProcessingResource> sharedPRs, PrParm[] prParms, RunFlag[] runFlags, RunCondition[] conditions,
+          Map<ProcessingResource, Map<String, Object>> appliedValues,
+          Map<ProcessingResource, Map<String, Object>> defaultValues,
+          Map<AnalyserRunningStrategy, Integer> defaultRunModes,
+          Map<String, Delta> profiles, Delta base) {
+    this.config = config;
+    this.controllerName = controllerName;
+    this.prs = prs;
+    this.prNames = prNames;
+    this.strategies = strategies;
+    this.sharedPRs = sharedPRs;
+    this.prParms = prParms;
+    this.runFlags = runFlags;
+    this.conditions = conditions;
+    this.appliedValues = appliedValues;
+    this.defaultValues = defaultValues;
+    this.defaultRunModes = defaultRunModes;
+    this.profiles = profiles;
+    this.base = base;
+  }
+
+  /**
+   * Compile the runtime parameter and run mode settings of the config
+   * for the given controller.
+   *
+   * If a previous plan for the same controller is given, the information
+   * about which parameter values have already been set is taken over 
+   * from it.
+   * 
+   * @param cntrlr the controller
+   * @param config the config
+   * @param previous the plan which gets replaced or null
+   * @return the compiled plan
+   */
+  static ParameterPlan compile(Controller cntrlr, Config config, ParameterPlan previous) {
+    String cName = cntrlr.getName();
+    List<ProcessingResource> prList = new ArrayList<>(cntrlr.getPRs());
+    ProcessingResource[] prs = prList.toArray(new ProcessingResource[prList.size()]);
+    String[] prNames = new String[prs.length];
+    for (int i = 0; i < prs.length; i++) {
+      prNames[i] = prs[i].getName();
+    }
+    RunningStrategy[] strategies = null;
+    if (cntrlr instanceof ConditionalController) {
+      List<RunningStrategy> strategyList = ((ConditionalController) cntrlr).getRunningStrategies();
+      strategies = strategyList.toArray(new RunningStrategy[strategyList.size()]);
+    }
+    Set<ProcessingResource> sharedPRs = cntrlr instanceof ParametrizedCorpusController ?
+            ((ParametrizedCorpusController) cntrlr).getSharedPRs() : 
+            Collections.<ProcessingResource>emptySet();
+    // only keep what we know about PRs which are still in the controller
+    Map<ProcessingResource, Map<String, Object>> appliedValues = new IdentityHashMap<>();
+    Map<ProcessingResource, Map<String, Object>> defaultValues = new IdentityHashMap<>();
+    Map<AnalyserRunningStrategy, Integer> defaultRunModes = new IdentityHashMap<>();
+    for (ProcessingResource pr : prs) {
+      Map<String, Object> applied = previous == null ? null : previous.appliedValues.get(pr);
+      appliedValues.put(pr, applied == null ? new HashMap<String, Object>() : applied);
+      Map<String, Object> defaults = previous == null ? null : previous.defaultValues.get(pr);
+      defaultValues.put(pr, defaults == null ? new HashMap<String, Object>() : defaults);
+    }
+    if (previous != null) {
+      defaultRunModes.putAll(previous.defaultRunModes);
+    }
+    RunCondition[] conditions = new RunCondition[prs.length];
+    Delta baseSettings = new Delta();
+    Map<String, Delta> profiles = new LinkedHashMap<>();
+    if (config.prRuntimeParms != null) {
+      // create a map that maps names to prs for this controller
+      Map<String, Integer> prNums = new HashMap<>();
+      for (int i = 0; i < prs.length; i++) {
+        String id = cName + "\t" + prNames[i];
+        if (prNums.containsKey(id)) {
+          throw new GateRuntimeException("Cannot set PR parameters the PR name appears twice: " + id);
+        }
+        prNums.put(id, i);
+      }
+      resolve(cName, config.prRuntimeParms, prNums, prs, strategies, conditions, appliedValues, 
+              sharedPRs, baseSettings);
+      for (Map.Entry<String, Map<String, Map<String, Object>>> profile : config.profileRuntimeParms.entrySet()) {
+        Delta delta = new Delta();
+        resolve(cName, profile.getValue(), prNums, prs, strategies, conditions, appliedValues, 
+                sharedPRs, delta);
+        profiles.put(profile.getKey(), delta);
+      }
+    } else {
+      LOGGER.debug("prRuntimeParms is null!");
+    }
+    // for everything changed by some profile, find the value to restore 
+    // if no profile is used
+    Delta restore = new Delta();
+    for (Delta delta : profiles.values()) {
+      for (Map.Entry<String, PrParm> entry : delta.prParms.entrySet()) {
+        String key = entry.getKey();
+        if (restore.prParms.containsKey(key)) {
+          continue;
+        }
+        PrParm parm = baseSettings.prParms.get(key);
+        if (parm == null) {
+          PrParm profileParm = entry.getValue();
+          Map<String, Object> defaults = defaultValues.get(profileParm.pr);
+          if (!defaults.containsKey(profileParm.name) && profileParm.shared) {
+            // other controllers may have set their values already
+            defaults.put(profileParm.name, SharedPRs.getDefaultValue(profileParm.pr, profileParm.name));
+          } else if (!defaults.containsKey(profileParm.name)) {
+            try {
+              defaults.put(profileParm.name, profileParm.pr.getParameterValue(profileParm.name));
+            } catch (ResourceInstantiationException ex) {
+              throw new GateRuntimeException("Could not get parameter " + profileParm.name + " for PR id " + profileParm.prId,ex);
+            }
+          }
+          parm = new PrParm(profileParm.prId, profileParm.pr, profileParm.name, 
+                  defaults.get(profileParm.name), appliedValues.get(profileParm.pr), 
+                  profileParm.shared);
+        }
+        restore.prParms.put(key, parm);
+      }
+      for (Map.Entry<String, RunFlag> entry : delta.runFlags.entrySet()) {
+        String key = entry.getKey();
+        if (restore.runFlags.containsKey(key)) {
+          continue;
+        }
+        RunFlag flag = baseSettings.runFlags.get(key);
+        if (flag == null) {
+          AnalyserRunningStrategy str = entry.getValue().strategy;
+          Integer mode = defaultRunModes.get(str);
+          if (mode == null) {
+            mode = str.getRunMode();
+            defaultRunModes.put(str, mode);
+          }
+          flag = new RunFlag(str, mode, conditions, entry.getValue().index, null);
+        }
+        restore.runFlags.put(key, flag);
+      }
+    }
+    LOGGER.debug("Compiled parameter plan for " + cName + ": " + baseSettings.prParms.size() +
+            " parameters, " + baseSettings.runFlags.size() + " run modes, " + 
+            profiles.size() + " profiles");
+    return new ParameterPlan(config, cName, prs, prNames, strategies, sharedPRs,
+            baseSettings.prParms.values().toArray(new PrParm[baseSettings.prParms.size()]),
+            baseSettings.runFlags.values().toArray(new RunFlag[baseSettings.runFlags.size()]), 
+            conditions, appliedValues, defaultValues, defaultRunModes, profiles, restore);
+  }
+
+  /**
+   * Resolve the settings for the controller from a map of runtime parameter
+   * settings as used in the Config.
+   */
+  private static void resolve(String cName, Map<String, Map<String, Object>> runtimeParms,
+          Map<String, Integer> prNums, ProcessingResource[] prs, RunningStrategy[] strategies,
+          RunCondition[] conditions, Map<ProcessingResource, Map<String, Object>> appliedValues, 
+          Set<ProcessingResource> sharedPRs, Delta delta) {
+    for (String prId : runtimeParms.keySet()) {
+      String[] contrprname = prId.split("\t");
+      if (contrprname[0].equals(cName)) {
+        Integer id = prNums.get(prId);
+        if (id == null) {
+          throw new GateRuntimeException("Cannot set PR parameter, no PR found with id: " + prId);
+        }
+        ProcessingResource pr = prs[id];
+        Map<String, Object> prparm = runtimeParms.get(prId);
+        for (String parmName : prparm.keySet()) {
+          Object parmValue = prparm.get(parmName);
+          if (parmName.equals("$$RUNFLAG$$")) {
+            if (strategies != null) {
+              AnalyserRunningStrategy str = (AnalyserRunningStrategy) strategies[id];
+              if (parmValue instanceof RunCondition) {
+                delta.runFlags.put(prId, new RunFlag(str, AnalyserRunningStrategy.RUN_ALWAYS,
+                        conditions, id, (RunCondition) parmValue));
+              } else {
+                boolean flag = (Boolean) parmValue;
+                delta.runFlags.put(prId, new RunFlag(str,
+                        flag ? AnalyserRunningStrategy.RUN_ALWAYS : AnalyserRunningStrategy.RUN_NEVER,
+                        conditions, id, null));
+              }
+            }
+          } else {
+            delta.prParms.put(prId + "\t" + parmName, 
+                    new PrParm(prId, pr, parmName, parmValue, appliedValues.get(pr), 
+                            sharedPRs.contains(pr)));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Check if this plan can still be used for the controller and config.
+   *
+   * This is the case if the config is the same instance the plan was
+   * compiled from and the controller still has the same name and
+   * exactly the same PRs and running strategies in the same order, and
+   * none of the PRs got renamed, and it still shares the same PRs.
+   *
+   * @param cntrlr the controller
+   * @param config the config
+   * @return true if the plan can be applied as it is
+   */
+  boolean isValidFor(Controller cntrlr, Config config) {
+    if (config != this.config || !controllerName.equals(cntrlr.getName())) {
+      return false;
+    }
+    if (cntrlr instanceof ParametrizedCorpusController && 
+        ((ParametrizedCorpusController) cntrlr).getSharedPRs() != sharedPRs) {
+      return false;
+    }
+    Collection<ProcessingResource> currentPrs = cntrlr.getPRs();
+    if (currentPrs.size() != prs.length) {
+      return false;
+    }
+    int i = 0;
+    for (ProcessingResource pr : currentPrs) {
+      if (pr != prs[i] || !Objects.equals(prNames[i], pr.getName())) {
+        return false;
+      }
+      i++;
+    }
+    if (cntrlr instanceof ConditionalController) {
+      if (strategies == null) {
+        return false;
+      }
+      List<RunningStrategy> currentStrategies = ((ConditionalController) cntrlr).getRunningStrategies();
+      if (currentStrategies.size() != strategies.length) {
+        return false;
+      }
+      i = 0;
+      for (RunningStrategy strategy : currentStrategies) {
+        if (strategy != strategies[i++]) {
+          return false;
+        }
+      }
+    } else if (strategies != null) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Set all the run modes of the plan and all parameter values which 
+   * differ from what was last set.
+   * 
+   * If a profile is currently set, the base settings are restored first.
+   */
+  void apply() {
+    switchProfile(null);
+    for (RunFlag runFlag : runFlags) {
+      runFlag.apply();
+    }
+    for (PrParm prParm : prParms) {
+      prParm.apply();
+    }
+  }
+
+  /**
+   * Set the parameter values of the current settings for a PR which is 
+   * shared with other controllers.
+   * 
+   * The caller must hold the lock of the PR. Nothing is set if the PR still
+   * has the values of these settings, because no other controller set 
+   * its own since they were set.
+   * 
+   * @param pr the shared PR
+   */
+  void applyShared(ProcessingResource pr) {
+    Delta current = currentProfile == null ? base : profiles.get(currentProfile);
+    if (!SharedPRs.setAppliedSettings(pr, current)) {
+      return;
+    }
+    for (PrParm prParm : prParms) {
+      if (prParm.pr == pr) {
+        prParm.set();
+      }
+    }
+    // the base settings for anything a profile may have changed, then 
+    // the settings of the current profile
+    for (PrParm prParm : base.prParms.values()) {
+      if (prParm.pr == pr) {
+        prParm.set();
+      }
+    }
+    if (current != base) {
+      for (PrParm prParm : current.prParms.values()) {
+        if (prParm.pr == pr) {
+          prParm.set();
+        }
+      }
+    }
+  }
+
+  /**
+   * Check if the condition of a prrun expression for the PR holds for the
+   * document, if there is one.
+   * 
+   * @param index the index of the PR
+   * @param doc the document
+   * @return false if the PR should not run for the document
+   */
+  boolean conditionHolds(int index, Document doc) {
+    RunCondition condition = index < conditions.length ? conditions[index] : null;
+    return condition == null || doc == null || condition.test(doc);
+  }
+
+  /**
+   * Check if the config this plan was compiled for has any profiles.
+   * @return true if there is at least one profile
+   */
+  boolean hasProfiles() {
+    return !profiles.isEmpty();
+  }
+
+  /**
+   * Switch the settings to those of the named profile.
+   * 
+   * Only the settings which are changed by the current or the new profile
+   * are set, and of those only the ones with a different value.
+   * 
+   * @param profile the name of the profile or null for the base settings
+   */
+  void switchProfile(String profile) {
+    if (profile == null ? currentProfile == null : profile.equals(currentProfile)) {
+      return;
+    }
+    if (profile != null && !profiles.containsKey(profile)) {
+      throw new GateRuntimeException("Controller " + controllerName + ": no profile " + profile + " in the config");
+    }
+    String key = currentProfile + "\n" + profile;
+    Delta transition = transitions.get(key);
+    if (transition == null) {
+      transition = new Delta();
+      Delta from = currentProfile == null ? null : profiles.get(currentProfile);
+      Delta to = profile == null ? null : profiles.get(profile);
+      if (from != null) {
+        for (String k : from.prParms.keySet()) {
+          transition.prParms.put(k, base.prParms.get(k));
+        }
+        for (String k : from.runFlags.keySet()) {
+          transition.runFlags.put(k, base.runFlags.get(k));
+        }
+      }
+      if (to != null) {
+        transition.prParms.putAll(to.prParms);
+        transition.runFlags.putAll(to.runFlags);
+      }
+      transitions.put(key, transition);
+      LOGGER.debug("Computed transition for " + controllerName + " from profile " + currentProfile + 
+              " to " + profile + ": " + transition.prParms.size() + " parameters, " + 
+              transition.runFlags.size() + " run modes");
+    }
+    transition.apply();
+    currentProfile = profile;
+  }
+
+}
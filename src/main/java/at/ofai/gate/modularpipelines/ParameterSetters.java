@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Resource;
+import gate.creole.AbstractResource;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import java.beans.IntrospectionException;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of parameter setters for resource classes.
+ *
+ * Setting a parameter through Resource.setParameterValue looks up the
+ * bean info of the resource class and searches the property descriptors
+ * every time. Here the setter method for a parameter of a class is
+ * resolved once to a MethodHandle which can then be invoked directly.
+ * <p>
+ * The handle is only used if the value is already of the type of the
+ * parameter, otherwise the value is set through setParameterValue so that
+ * GATE can do its usual conversion, e.g. from a String.
+ *
+ * @author Johann Petrak
+ */
+class ParameterSetters {
+
+  protected static final Logger LOGGER = Logger.getLogger(ParameterSetters.class);
+
+  private static final MethodType SETTER_TYPE =
+          MethodType.methodType(void.class, Object.class, Object.class);
+
+  private static final Map<Class<?>, Class<?>> BOXED_TYPES = new HashMap<>();
+  static {
+    BOXED_TYPES.put(boolean.class, Boolean.class);
+    BOXED_TYPES.put(byte.class, Byte.class);
+    BOXED_TYPES.put(char.class, Character.class);
+    BOXED_TYPES.put(short.class, Short.class);
+    BOXED_TYPES.put(int.class, Integer.class);
+    BOXED_TYPES.put(long.class, Long.class);
+    BOXED_TYPES.put(float.class, Float.class);
+    BOXED_TYPES.put(double.class, Double.class);
+  }
+
+  // Setter used if no handle could be resolved, this always delegates
+  // to setParameterValue
+  private static final Setter GENERIC_SETTER = new Setter(null, null);
+
+  private static final ClassValue<ConcurrentMap<String, Setter>> SETTERS =
+          new ClassValue<ConcurrentMap<String, Setter>>() {
+    @Override
+    protected ConcurrentMap<String, Setter> computeValue(Class<?> type) {
+      return new ConcurrentHashMap<>();
+    }
+  };
+
+  private ParameterSetters() {}
+
+  /**
+   * A resolved setter for one parameter of a resource class.
+   */
+  static class Setter {
+    private final MethodHandle handle;
+    private final Class<?> valueType;
+    Setter(MethodHandle handle, Class<?> valueType) {
+      this.handle = handle;
+      this.valueType = valueType;
+    }
+    void set(Resource resource, String name, Object value) throws ResourceInstantiationException {
+      if (handle != null && value != null && valueType.isInstance(value)) {
+        try {
+          handle.invokeExact((Object)resource, value);
+        } catch (RuntimeException | Error ex) {
+          throw ex;
+        } catch (Exception ex) {
+          throw new ResourceInstantiationException("Could not set parameter "+name+" of "+resource.getName(), ex);
+        } catch (Throwable ex) {
+          throw new GateRuntimeException("Could not set parameter "+name+" of "+resource.getName(), ex);
+        }
+      } else {
+        resource.setParameterValue(name, value);
+      }
+    }
+  }
+
+  /**
+   * Get the setter for a parameter of the given resource.
+   *
+   * @param resource the resource
+   * @param name the parameter name
+   * @return the setter, never null
+   */
+  static Setter get(Resource resource, String name) {
+    if (!(resource instanceof AbstractResource)) {
+      // we do not know how some other implementation sets its parameters
+      return GENERIC_SETTER;
+    }
+    final Class<? extends Resource> clazz = resource.getClass();
+    return SETTERS.get(clazz).computeIfAbsent(name, n -> resolve(clazz, n));
+  }
+
+  private static Setter resolve(Class<? extends Resource> clazz, String name) {
+    try {
+      PropertyDescriptor[] properties = AbstractResource.getBeanInfo(clazz).getPropertyDescriptors();
+      if (properties != null) {
+        for (PropertyDescriptor prop : properties) {
+          if (prop.getName().equals(name)) {
+            Method setMethod = prop.getWriteMethod();
+            if (setMethod == null) {
+              break;
+            }
+            Class<?> type = prop.getPropertyType();
+            if (BOXED_TYPES.containsKey(type)) {
+              type = BOXED_TYPES.get(type);
+            }
+            MethodHandle handle = MethodHandles.publicLookup().unreflect(setMethod).asType(SETTER_TYPE);
+            LOGGER.debug("Resolved setter for parameter "+name+" of "+clazz.getName());
+            return new Setter(handle, type);
+          }
+        }
+      }
+    } catch (IntrospectionException | IllegalAccessException ex) {
+      LOGGER.debug("Could not resolve setter for parameter "+name+" of "+clazz.getName()+": "+ex);
+    }
+    // let setParameterValue deal with it and report any error
+    return GENERIC_SETTER;
+  }
+
+}
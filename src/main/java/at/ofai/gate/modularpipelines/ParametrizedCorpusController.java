@@ -23,27 +23,41 @@ package at.ofai.gate.modularpipelines;
 import gate.Controller;
 import gate.CreoleRegister;
 import gate.Document;
+import gate.Factory;
 import gate.FeatureMap;
 import gate.Gate;
 import gate.GateConstants;
 import gate.LanguageAnalyser;
 import gate.ProcessingResource;
 import gate.Resource;
+import gate.creole.AnalyserRunningStrategy;
 import gate.creole.ConditionalSerialAnalyserController;
 import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
 import gate.creole.ResourceData;
 import gate.creole.ResourceInstantiationException;
+import gate.creole.RunningStrategy;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.gui.ActionsPublisher;
 import gate.gui.MainFrame;
 import gate.gui.NewResourceDialog;
+import gate.util.GateRuntimeException;
 import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import static javax.swing.Action.SHORT_DESCRIPTION;
@@ -113,7 +127,7 @@ import org.apache.log4j.Logger;
         comment = "A conditional corpus controller that can be parametrized from a config file",
         helpURL = "https://github.com/johann-petrak/gateplugin-modularpipelines/wiki/ParametrziedCorpusController")
 public class ParametrizedCorpusController extends ConditionalSerialAnalyserController
-        implements ActionsPublisher {
+        implements ActionsPublisher, BatchProcessingResource {
 
   private static final long serialVersionUID = 5865826552244553897L;
 
@@ -129,10 +143,10 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
         config = new Config();
       } else if(config.origUrl == null && fileUrl != null) {
         logger.debug("Controller: read config in set1 "+fileUrl);
-        config = Utils.readConfigFile(fileUrl);      
+        config = Utils.readConfigFile(fileUrl, configScope);      
       } else if(config.origUrl != null && !config.origUrl.toString().equals(fileUrl.toString())) {
         logger.debug("Controller: read config in set2 "+fileUrl);
-        config = Utils.readConfigFile(fileUrl);      
+        config = Utils.readConfigFile(fileUrl, configScope);      
       } else {
         logger.debug("doing nothing config.origUrl="+config.origUrl+" fileUrl="+fileUrl);       
       }
@@ -154,13 +168,148 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
     }
     
     configFileUrl = fileUrl;
+    if(weAreInitialized) {
+      updateConfigWatch();
+    }
   }
 
   public URL getConfigFileUrl() {
     return configFileUrl;
   }
   protected URL configFileUrl = null;
-  transient Config config = new Config();
+  
+  @Optional
+  @CreoleParameter(
+          comment = "If true, watch the config file and reload it when it changes, this is also applied to all sub-pipelines",
+          defaultValue = "false")
+  public void setWatchConfigFile(Boolean flag) {
+    watchConfigFile = flag != null && flag;
+    if(weAreInitialized) {
+      updateConfigWatch();
+      setWatchConfigFileForSubControllers(watchConfigFile);
+    }
+  }
+  public Boolean getWatchConfigFile() {
+    return watchConfigFile;
+  }
+  protected boolean watchConfigFile = false;
+
+  @Optional
+  @CreoleParameter(
+          comment = "Maximum number of consecutive independent Pipeline PRs to run in parallel on a document, 1 or less to run all PRs serially",
+          defaultValue = "1")
+  public void setBranchParallelism(Integer value) {
+    branchParallelism = value == null ? 1 : value;
+  }
+  public Integer getBranchParallelism() {
+    return branchParallelism;
+  }
+  protected int branchParallelism = 1;
+
+  @Optional
+  @CreoleParameter(
+          comment = "Number of workers for processing the documents of a corpus in parallel, 1 or less to process them one after the other",
+          defaultValue = "1")
+  public void setCorpusParallelism(Integer value) {
+    corpusParallelism = value == null ? 1 : value;
+  }
+  public Integer getCorpusParallelism() {
+    return corpusParallelism;
+  }
+  protected int corpusParallelism = 1;
+
+  // the workers for processing a corpus in parallel, created when first needed
+  private transient ParallelCorpusRunner corpusRunner;
+
+  // the threads for running Pipelines in parallel, created when first needed
+  private transient BranchExecutor branchExecutor;
+
+  @Optional
+  @CreoleParameter(
+          comment = "If true, each PR runs as a stage in threads of its own when processing a corpus, see the stageThreads parameter of the Pipeline PR",
+          defaultValue = "false")
+  public void setStagedExecution(Boolean flag) {
+    stagedExecution = flag != null && flag;
+  }
+  public Boolean getStagedExecution() {
+    return stagedExecution;
+  }
+  protected boolean stagedExecution = false;
+
+  @Optional
+  @CreoleParameter(
+          comment = "The maximum number of documents waiting for each stage in staged mode",
+          defaultValue = "4")
+  public void setStageQueueSize(Integer size) {
+    stageQueueSize = size == null ? 4 : size;
+  }
+  public Integer getStageQueueSize() {
+    return stageQueueSize;
+  }
+  protected int stageQueueSize = 4;
+
+  // the stages for staged mode, created when first needed
+  private transient StagedRunner stagedRunner;
+
+  @Optional
+  @CreoleParameter(
+          comment = "If set, the state of each document is saved to this directory after each Pipeline PR with checkpoint set to true, and a run over the same corpus continues from there")
+  public void setCheckpointDirectoryURL(URL url) {
+    checkpointDirectoryURL = url;
+  }
+  public URL getCheckpointDirectoryURL() {
+    return checkpointDirectoryURL;
+  }
+  protected URL checkpointDirectoryURL;
+
+  // the checkpointer while processing a corpus with checkpoints, our
+  // parallel workers use the same
+  transient Checkpointer checkpointer;
+  // the checkpointer for the directory, created when first needed
+  private transient Checkpointer checkpointWriter;
+  // the index of the first PR to run for the current document, when 
+  // resuming from a checkpoint
+  private transient int resumeFrom = 0;
+
+  // When running Pipeline PRs in parallel, the index of the first PR after
+  // the group which has already been run for the current document.
+  private transient int parallelDoneUntil = 0;
+
+  // True while this controller processes whole documents itself, as 
+  // opposed to running on a document for some outer controller.
+  private transient boolean ownsDocument = false;
+  // The time budget of the current document, if there is one, the policy
+  // to apply when it runs out, and the PRs to interrupt when it does.
+  private transient DocumentDeadline docDeadline;
+  private transient String docTimeoutPolicy;
+  private transient volatile List<ProcessingResource> runningPRs = Collections.emptyList();
+  // true if the remaining PRs should not be run for the current document
+  private transient boolean documentAborted = false;
+
+  // The PRs this controller shares with the controller it was duplicated 
+  // from or with its own duplicates, see duplicate(), and the document 
+  // the controller currently processes, since the document of a shared PR
+  // may have been set by another controller.
+  private transient volatile Set<ProcessingResource> sharedPRs = Collections.emptySet();
+  private transient Document currentDocument;
+  // the shared PRs which only one controller at a time may run
+  private transient volatile Set<ProcessingResource> lockedPRs = Collections.emptySet();
+
+  // The config is replaced as a whole whenever it is (re-)loaded, possibly
+  // from the config watcher thread while documents are being processed,
+  // so the field is volatile and any code which uses the config for some 
+  // document must only read it once.
+  transient volatile Config config = new Config();
+  // the config for which the runtime parameters were last set
+  private transient Config appliedConfig;
+  // the runtime parameter settings of the config compiled for our PRs, 
+  // this gets re-compiled whenever the config or the PRs change
+  private transient volatile ParameterPlan parameterPlan;
+  // our registration with the config watcher, if we watch the config file
+  private transient ConfigWatcher.Registration configWatch;
+  // the scope which was current when we got created, all our configs get
+  // read within it, also when reloaded from another thread
+  private transient ConfigScope configScope;
 
   protected static final Logger logger = Logger
           .getLogger(ParametrizedCorpusController.class);
@@ -182,7 +331,9 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
    */
   @Override
   public Resource init() throws ResourceInstantiationException {    
-    config = Utils.readConfigFile(getConfigFileUrl()); 
+    configScope = ConfigScope.current();
+    config = Utils.readConfigFile(getConfigFileUrl(), configScope); 
+    updateConfigWatch();
     // TODO: we need to find out somehow if this instance was loaded from
     // a file (in which case the globalConfigFileUrl processing will happen
     // in afterLoadCompleted) or if we got created by custom duplication
@@ -192,6 +343,14 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
   }
   
   public void afterLoadCompleted() {    
+    // Sub-pipelines may get loaded in parallel in the background, wait until
+    // all of them are complete so that we are only complete after them.
+    // Sub-pipelines which are loaded lazily are not loaded here.
+    for (ProcessingResource pr : prList) {
+      if (pr instanceof Pipeline) {
+        ((Pipeline) pr).awaitBackgroundLoad();
+      }
+    }
     logger.debug("****** Controller: "+this.getName()+" read config in afterLoadCompleted "+getConfigFileUrl()+" config="+config);
     //logger.debug("Config loaded for "+this.getName()+" config is "+config);
     // If the config file we just read contains the "inheritconfig" setting,
@@ -204,6 +363,9 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
       logger.debug("Controller/afterLoadCompleted: "+this.getName()+" set config for sub controllers to "+config.globalConfigFileUrl);
       setConfigForSubControllers(config.globalConfigFileUrl);
     }    
+    if(watchConfigFile) {
+      setWatchConfigFileForSubControllers(true);
+    }
     weAreInitialized = true;
   }
 
@@ -233,6 +395,553 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
     super.execute();
   }
 
+  /**
+   * Process the corpus, or only the document if it is set.
+   * 
+   * If corpusParallelism is greater than 1 and no document is set, the
+   * documents of the corpus are processed in parallel by this controller 
+   * and duplicates of it.
+   * 
+   * @throws ExecutionException 
+   */
+  @Override
+  protected void executeImpl() throws ExecutionException {
+    if(document != null || checkpointDirectoryURL == null) {
+      executeCorpusOrDocument();
+      return;
+    }
+    Checkpointer current = getCheckpointer();
+    if(stagedExecution) {
+      logger.warn("Checkpoints are only used when processing one document after the other, in batches or in parallel");
+    }
+    checkpointer = current;
+    try {
+      executeCorpusOrDocument();
+    } finally {
+      checkpointer = null;
+      current.flush();
+    }
+  }
+  
+  private void executeCorpusOrDocument() throws ExecutionException {
+    if(corpusParallelism > 1 && document == null) {
+      getCorpusRunner().run(corpus, controllerCallbacksEnabled);
+    } else if(document == null && stagedExecution && !prList.isEmpty()) {
+      Config runConfig = applyCurrentConfig();
+      if(parameterPlan.hasProfiles()) {
+        logger.warn("Config of "+this.getName()+" has profiles, not running in staged mode");
+        super.executeImpl();
+      } else {
+        getStagedRunner().run(corpus, runConfig, controllerCallbacksEnabled);
+      }
+    } else if(document == null && config.batchSize > 1) {
+      executeCorpusInBatches(config.batchSize, config.batchMaxWait);
+    } else if(document != null && (corpus == null || !sharedPRs.isEmpty())) {
+      executeSingleDocument();
+    } else if(!sharedPRs.isEmpty()) {
+      executeCorpusSharing();
+    } else {
+      ownsDocument = document == null;
+      try {
+        super.executeImpl();
+      } finally {
+        ownsDocument = false;
+      }
+    }
+  }
+  
+  /**
+   * Process the document like the inherited executeImpl does, except that
+   * no corpus is needed, e.g. when processing a stream, and that
+   * the document of shared PRs is not set here, as other controllers may 
+   * be running them: it is only set while the PR runs for this controller,
+   * see runComponentOrBranches.
+   * 
+   * @throws ExecutionException 
+   */
+  private void executeSingleDocument() throws ExecutionException {
+    checkParameters();
+    interrupted = false;
+    for(ProcessingResource pr : prList) {
+      if(pr instanceof LanguageAnalyser && !sharedPRs.contains(pr)) {
+        ((LanguageAnalyser)pr).setCorpus(corpus);
+        ((LanguageAnalyser)pr).setDocument(document);
+      }
+    }
+    try {
+      for(int i = 0; i < prList.size(); i++) {
+        if(isInterrupted()) {
+          throw new ExecutionInterruptedException("The execution of the \""+getName()+
+                  "\" application has been abruptly interrupted!");
+        }
+        runComponent(i);
+      }
+    } finally {
+      for(ProcessingResource pr : prList) {
+        if(pr instanceof LanguageAnalyser && !sharedPRs.contains(pr)) {
+          ((LanguageAnalyser)pr).setDocument(null);
+        }
+      }
+    }
+  }
+  
+  private void executeCorpusSharing() throws ExecutionException {
+    interrupted = false;
+    for(int i = 0; i < corpus.size(); i++) {
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("The execution of the \""+getName()+
+                "\" application has been abruptly interrupted!");
+      }
+      boolean wasLoaded = corpus.isDocumentLoaded(i);
+      Document doc = corpus.get(i);
+      try {
+        executeDocument(doc);
+      } finally {
+        if(!wasLoaded) {
+          corpus.unloadDocument(doc);
+          Factory.deleteResource(doc);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Take the current config and, if it was replaced since the runtime 
+   * parameters were set, set them now.
+   * 
+   * @return the config to use for the next document or documents
+   */
+  private Config applyCurrentConfig() {
+    Config current = config;
+    if(current != appliedConfig) {
+      logger.debug("Config of "+this.getName()+" was replaced, setting runtime parameters");
+      parameterPlan = Utils.setControllerParms(this, current, parameterPlan);
+      appliedConfig = current;
+    }
+    return current;
+  }
+  
+  /**
+   * Process the documents of the corpus in batches.
+   * 
+   * A batch is processed as soon as it has the given number of documents
+   * or the maximum time was spent collecting its documents, e.g. because 
+   * loading documents from a persistent corpus is slow.
+   * 
+   * @param size the maximum number of documents in a batch
+   * @param maxWaitMillis the maximum time to collect documents, 0 for no limit
+   * @throws ExecutionException 
+   */
+  protected void executeCorpusInBatches(int size, long maxWaitMillis) throws ExecutionException {
+    if(corpus == null) {
+      throw new ExecutionException("(ParametrizedCorpusController) \""+getName()+"\":\n"+
+              "The corpus supplied for execution was null!");
+    }
+    interrupted = false;
+    List<Document> batch = new ArrayList<>(size);
+    List<Document> toUnload = new ArrayList<>(size);
+    long batchStart = 0;
+    for(int i = 0; i < corpus.size(); i++) {
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("The execution of the \""+getName()+
+                "\" application has been abruptly interrupted!");
+      }
+      boolean wasLoaded = corpus.isDocumentLoaded(i);
+      Document doc = corpus.get(i);
+      if(batch.isEmpty()) {
+        batchStart = System.nanoTime();
+      }
+      batch.add(doc);
+      if(!wasLoaded) {
+        toUnload.add(doc);
+      }
+      if(batch.size() >= size || 
+         (maxWaitMillis > 0 && System.nanoTime() - batchStart >= maxWaitMillis * 1000000L)) {
+        processCorpusBatch(batch, toUnload);
+      }
+    }
+    processCorpusBatch(batch, toUnload);
+  }
+  
+  private void processCorpusBatch(List<Document> batch, List<Document> toUnload) 
+          throws ExecutionException {
+    try {
+      if(!batch.isEmpty()) {
+        executeBatch(batch);
+      }
+    } finally {
+      for(Document doc : toUnload) {
+        corpus.unloadDocument(doc);
+        Factory.deleteResource(doc);
+      }
+      batch.clear();
+      toUnload.clear();
+    }
+  }
+  
+  /**
+   * Process a batch of documents.
+   * 
+   * The config gets applied to each document just like when the documents 
+   * are processed one by one. Then each PR is run on all the documents
+   * of the batch before the next PR is run: PRs which implement 
+   * BatchProcessingResource get all documents for which they should run at
+   * once, all other PRs get run for each document like when processing a
+   * single document, including the prrun conditions and the metrics. 
+   * If the config has profiles, the settings may be different for each 
+   * document, and the time budget of the config, checkpoints and parallel
+   * branches are all per document, so the documents are processed one by 
+   * one if any of these is used.
+   * 
+   * @param documents the documents to process
+   * @throws ExecutionException 
+   */
+  @Override
+  public void executeBatch(List<Document> documents) throws ExecutionException {
+    interrupted = false;
+    Config docConfig = applyCurrentConfig();
+    if(parameterPlan.hasProfiles() || docConfig.timeBudget > 0 || checkpointer != null ||
+       branchParallelism > 1) {
+      for(Document doc : documents) {
+        executeDocument(doc);
+      }
+      return;
+    }
+    if(docConfig.docFeatures != null && !docConfig.docFeatures.isEmpty()) {
+      for(Document doc : documents) {
+        Utils.setDocumentFeatures(doc.getFeatures(), docConfig);
+      }
+    }
+    // documents for which a Pipeline ran out of time with the abort policy
+    Set<Document> aborted = Collections.newSetFromMap(new IdentityHashMap<Document,Boolean>());
+    for(int i = 0; i < prList.size(); i++) {
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("The execution of the \""+getName()+
+                "\" application has been abruptly interrupted!");
+      }
+      ProcessingResource pr = prList.get(i);
+      if(!(pr instanceof LanguageAnalyser)) {
+        runComponentTimed(i);
+        continue;
+      }
+      if(lockedPRs.contains(pr)) {
+        // other controllers may not run the PR at the same time
+        synchronized(pr) {
+          parameterPlan.applyShared(pr);
+          runComponentOnBatch(i, documents, aborted);
+        }
+      } else if(sharedPRs.contains(pr)) {
+        synchronized(pr) {
+          parameterPlan.applyShared(pr);
+        }
+        runComponentOnBatch(i, documents, aborted);
+      } else {
+        runComponentOnBatch(i, documents, aborted);
+      }
+    }
+  }
+  
+  private void runComponentOnBatch(int i, List<Document> documents, Set<Document> aborted) 
+          throws ExecutionException {
+    ProcessingResource pr = prList.get(i);
+    LanguageAnalyser analyser = (LanguageAnalyser)pr;
+    analyser.setCorpus(corpus);
+    try {
+      // a Pipeline with a time budget runs for one document at a time, 
+      // so that only the document which ran out of time gets aborted
+      if(pr instanceof BatchProcessingResource &&
+         !(pr instanceof Pipeline && ((Pipeline)pr).hasTimeBudget())) {
+        List<Document> selected = new ArrayList<>(documents.size());
+        for(Document doc : documents) {
+          analyser.setDocument(doc);
+          if(!aborted.contains(doc) && strategiesList.get(i).shouldRun() && conditionHolds(i)) {
+            selected.add(doc);
+          }
+        }
+        analyser.setDocument(null);
+        if(!selected.isEmpty()) {
+          runBatchTimed(i, selected);
+        }
+      } else {
+        for(Document doc : documents) {
+          if(aborted.contains(doc)) {
+            continue;
+          }
+          currentDocument = doc;
+          if(!sharedPRs.contains(pr)) {
+            analyser.setDocument(doc);
+          }
+          try {
+            runComponentTimed(i);
+          } catch (DocumentTimeoutException ex) {
+            logger.warn(ex.getMessage()+", skipping the remaining PRs of "+getName());
+            aborted.add(doc);
+          }
+        }
+      }
+    } finally {
+      currentDocument = null;
+      analyser.setDocument(null);
+      analyser.setCorpus(null);
+    }
+  }
+  
+  // Run a BatchProcessingResource on the documents and record the metrics
+  // for it like runComponentWithMetrics, a Pipeline PR records its own.
+  private void runBatchTimed(int i, List<Document> documents) throws ExecutionException {
+    BatchProcessingResource pr = (BatchProcessingResource)prList.get(i);
+    if(!ExecutionMetrics.isEnabled()) {
+      pr.executeBatch(documents);
+      return;
+    }
+    ExecutionTimer parent = ExecutionMetrics.current();
+    ExecutionTimer node = parent != null ? parent : ExecutionMetrics.root(getName(), this);
+    if(pr instanceof Pipeline) {
+      ExecutionMetrics.setCurrent(node);
+      try {
+        pr.executeBatch(documents);
+      } finally {
+        ExecutionMetrics.setCurrent(parent);
+      }
+      return;
+    }
+    ExecutionTimer prNode = node.child(pr.getName());
+    ExecutionMetrics.setCurrent(prNode);
+    long start = System.nanoTime();
+    try {
+      pr.executeBatch(documents);
+    } finally {
+      prNode.recordRun(System.nanoTime() - start);
+      ExecutionMetrics.setCurrent(parent);
+    }
+  }
+  
+  /**
+   * Process the documents of a stream, without a corpus.
+   * 
+   * The controller owns the documents of the stream: the documents are 
+   * taken from the iterator one at a time, and each document gets deleted
+   * after it has been processed and passed to the callback, or when 
+   * processing it failed, so the memory needed does not depend on the 
+   * length of the stream. To process documents which are still needed
+   * afterwards, use executeStream(Iterator, DocumentStreamCallback, boolean).
+   * The controller callbacks, if enabled, are invoked once before
+   * the first and after the last document of the stream. If corpusParallelism
+   * is greater than 1, the documents are processed in parallel as for a 
+   * corpus, with the iterator only used by one thread at a time. Batches 
+   * and staged execution are not used for streams, checkpoints are. 
+   * <p>
+   * Sub-pipelines only get the document: ParametrizedCorpusControllers do 
+   * not need a corpus for this, other corpus controllers still do.
+   * 
+   * @param documents the documents to process
+   * @param callback invoked for each processed document before it gets deleted
+   * @throws ExecutionException if processing a document or the callback failed
+   */
+  public void executeStream(Iterator<? extends Document> documents, DocumentStreamCallback callback) 
+          throws ExecutionException {
+    executeStream(documents, callback, true);
+  }
+  
+  /**
+   * Process the documents of a stream, see executeStream(Iterator, DocumentStreamCallback),
+   * deleting the documents or leaving them to the caller.
+   * 
+   * @param documents the documents to process
+   * @param callback invoked for each processed document
+   * @param deleteDocuments if true, each document gets deleted after the 
+   * callback, otherwise the documents still belong to the caller, who has
+   * to delete them when they are not needed any more
+   * @throws ExecutionException if processing a document or the callback failed
+   */
+  public void executeStream(Iterator<? extends Document> documents, DocumentStreamCallback callback,
+          boolean deleteDocuments) throws ExecutionException {
+    if(stagedExecution || config.batchSize > 1) {
+      logger.warn("Documents of a stream are only processed one after the other or in parallel by "+getName());
+    }
+    if(controllerCallbacksEnabled) {
+      invokeControllerExecutionStarted();
+    }
+    Checkpointer current = null;
+    if(checkpointDirectoryURL != null) {
+      current = getCheckpointer();
+      checkpointer = current;
+    }
+    try {
+      if(corpusParallelism > 1) {
+        getCorpusRunner().run(documents, callback, deleteDocuments, controllerCallbacksEnabled);
+      } else {
+        interrupted = false;
+        while(documents.hasNext()) {
+          if(isInterrupted()) {
+            throw new ExecutionInterruptedException("The execution of the \""+getName()+
+                    "\" application has been abruptly interrupted!");
+          }
+          Document doc = documents.next();
+          try {
+            executeDocument(doc);
+            callback.documentFinished(doc);
+          } finally {
+            if(deleteDocuments) {
+              Factory.deleteResource(doc);
+            }
+          }
+        }
+      }
+    } catch (ExecutionException | RuntimeException | Error ex) {
+      if(controllerCallbacksEnabled) {
+        invokeControllerExecutionAborted(ex);
+      }
+      throw ex;
+    } finally {
+      if(current != null) {
+        checkpointer = null;
+        current.flush();
+      }
+    }
+    if(controllerCallbacksEnabled) {
+      invokeControllerExecutionFinished();
+    }
+  }
+  
+  /**
+   * Process the documents of a stream, see executeStream(Iterator, DocumentStreamCallback).
+   * The stream gets closed when done.
+   * 
+   * @param documents the documents to process
+   * @param callback invoked for each processed document before it gets deleted
+   * @throws ExecutionException if processing a document or the callback failed
+   */
+  public void executeStream(Stream<? extends Document> documents, DocumentStreamCallback callback) 
+          throws ExecutionException {
+    try {
+      executeStream(documents.iterator(), callback);
+    } finally {
+      documents.close();
+    }
+  }
+  
+  /**
+   * Process the documents returned by a supplier until it returns null, 
+   * see executeStream(Iterator, DocumentStreamCallback).
+   * 
+   * @param documents the supplier of the documents to process
+   * @param callback invoked for each processed document before it gets deleted
+   * @throws ExecutionException if processing a document or the callback failed
+   */
+  public void executeStream(Supplier<? extends Document> documents, DocumentStreamCallback callback) 
+          throws ExecutionException {
+    executeStream(new Iterator<Document>() {
+      private Document next = null;
+      private boolean fetched = false;
+      @Override
+      public boolean hasNext() {
+        if(!fetched) {
+          next = documents.get();
+          fetched = true;
+        }
+        return next != null;
+      }
+      @Override
+      public Document next() {
+        if(!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        fetched = false;
+        return next;
+      }
+    }, callback);
+  }
+  
+  /**
+   * Process a single document of the corpus or a stream, e.g. as a worker of a parallel run.
+   * 
+   * @param doc the document
+   * @throws ExecutionException 
+   */
+  void executeDocument(Document doc) throws ExecutionException {
+    setDocument(doc);
+    ownsDocument = true;
+    try {
+      if(sharedPRs.isEmpty() && corpus != null) {
+        super.executeImpl();
+      } else {
+        executeSingleDocument();
+      }
+    } finally {
+      ownsDocument = false;
+      setDocument(null);
+    }
+  }
+  
+  private synchronized ParallelCorpusRunner getCorpusRunner() throws ExecutionException {
+    if(corpusRunner == null || !corpusRunner.isFor(corpusParallelism)) {
+      if(corpusRunner != null) {
+        corpusRunner.cleanup();
+        corpusRunner = null;
+      }
+      try {
+        corpusRunner = new ParallelCorpusRunner(this, corpusParallelism);
+      } catch (ResourceInstantiationException ex) {
+        throw new ExecutionException("Could not create the workers for "+this.getName(), ex);
+      }
+    }
+    return corpusRunner;
+  }
+  
+  private synchronized Checkpointer getCheckpointer() {
+    File directory = gate.util.Files.fileFromURL(checkpointDirectoryURL);
+    if(checkpointWriter == null || !checkpointWriter.isFor(directory)) {
+      if(checkpointWriter != null) {
+        checkpointWriter.close();
+      }
+      checkpointWriter = new Checkpointer(this.getName(), directory);
+    }
+    return checkpointWriter;
+  }
+  
+  private synchronized BranchExecutor getBranchExecutor() {
+    if(branchExecutor == null || !branchExecutor.isFor(branchParallelism)) {
+      if(branchExecutor != null) {
+        branchExecutor.cleanup();
+      }
+      branchExecutor = new BranchExecutor(this.getName(), branchParallelism);
+    }
+    return branchExecutor;
+  }
+  
+  private synchronized StagedRunner getStagedRunner() throws ExecutionException {
+    if(stagedRunner == null || !stagedRunner.isFor(stageQueueSize)) {
+      if(stagedRunner != null) {
+        stagedRunner.cleanup();
+        stagedRunner = null;
+      }
+      try {
+        stagedRunner = new StagedRunner(this, stageQueueSize);
+      } catch (ResourceInstantiationException ex) {
+        throw new ExecutionException("Could not create the stages for "+this.getName(), ex);
+      }
+    }
+    return stagedRunner;
+  }
+  
+  /**
+   * The statistics of each stage of the current or last run in staged mode.
+   * 
+   * @return the statistics for each PR, empty if not run in staged mode
+   */
+  public synchronized List<StageStatistics> getStageStatistics() {
+    return stagedRunner == null ? Collections.<StageStatistics>emptyList() : stagedRunner.getStatistics();
+  }
+  
+  @Override
+  public synchronized void interrupt() {
+    super.interrupt();
+    if(corpusRunner != null) {
+      corpusRunner.interrupt();
+    }
+  }
+
   /**
    * If a controller is run on a whole corpus, this method will get called
    * for each component and each document and each component will have its
@@ -252,29 +961,313 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
   protected void runComponent(int componentIndex) throws ExecutionException{
     logger.debug("Running "+this.getName()+"/runComponent "+componentIndex);    
     if(componentIndex == 0) {
-      Document doc = ((LanguageAnalyser)prList.get(componentIndex)).getDocument();
-      if(doc != null && config.docFeatures != null && !config.docFeatures.isEmpty()) {
-        logger.debug("DEBUG parametrized controller pipeline "+this.getName()+"/runComponent: setting document features "+config.docFeatures);
-        Utils.setDocumentFeatures(doc.getFeatures(), config);
+      // Take the config for this document: if the config got replaced 
+      // since the runtime parameters were set, set them now, before any PR 
+      // runs on the document. 
+      Config docConfig = applyCurrentConfig();
+      Document doc = document != null ? document : ((LanguageAnalyser)prList.get(componentIndex)).getDocument();
+      currentDocument = doc;
+      // When a corpus run with checkpoints is run again, skip what was 
+      // already done for the document, restoring its state from the 
+      // last checkpoint or as it was when finished.
+      resumeFrom = 0;
+      if(doc != null && ownsDocument && checkpointer != null) {
+        if(checkpointer.restoreFinished(doc)) {
+          resumeFrom = prList.size();
+        } else {
+          List<String> prNames = new ArrayList<>(prList.size());
+          for(ProcessingResource pr : prList) {
+            prNames.add(pr.getName());
+          }
+          resumeFrom = checkpointer.restore(doc, prNames) + 1;
+        }
+      }
+      if(doc != null && docConfig.docFeatures != null && !docConfig.docFeatures.isEmpty()) {
+        logger.debug("DEBUG parametrized controller pipeline "+this.getName()+"/runComponent: setting document features "+docConfig.docFeatures);
+        Utils.setDocumentFeatures(doc.getFeatures(), docConfig);
       } else {
-        logger.debug("DEBUG parametrized controller pipeline "+this.getName()+"/runComponent: NOT setting document features, document="+doc+" config="+config);
+        logger.debug("DEBUG parametrized controller pipeline "+this.getName()+"/runComponent: NOT setting document features, document="+doc+" config="+docConfig);
+      }
+      // If the config has profiles, the profile feature of the document 
+      // selects the settings to use, if there is no such feature, the 
+      // base settings are used. 
+      if(doc != null && parameterPlan.hasProfiles()) {
+        Object profile = doc.getFeatures().get(docConfig.profileFeature);
+        parameterPlan.switchProfile(profile == null ? null : profile.toString());
+      }
+      // The time budget from the config is for the whole document, so only
+      // applies if we process the document ourselves, when run by a 
+      // Pipeline PR, the PR applies it. 
+      documentAborted = false;
+      if(docDeadline != null) {
+        docDeadline.cancel();
+      }
+      docDeadline = null;
+      if(ownsDocument && docConfig.timeBudget > 0 && resumeFrom < prList.size()) {
+        docTimeoutPolicy = docConfig.timeoutPolicy;
+        docDeadline = DocumentDeadline.start(this::interruptRunningPRs, docConfig.timeBudget);
       }
     } else {
       logger.debug("DEBUG  parametrized controller pipeline "+this.getName()+"/runComponent: set document features already done");
     }
     
-    // MAYBE TODO: here we should also deal with any special document features
-    // which should be used to set other things in the pipeline.
-    // This would make it possible for the webservice to influence the 
-    // config settings on a doc by doc basis easily.
-    // The way to do this should probably be:
-    // = process all features which start with a certain prefix
-    // = update the config datastructure based on these values. Not sure yet
-    //   how, probably by structured names??
-    
-    // now delegate to the correct super implementation of runComponent 
+    if(documentAborted) {
+      logger.debug("Not running "+prList.get(componentIndex).getName()+", processing of the document was aborted");
+    } else if(componentIndex < resumeFrom) {
+      logger.debug("Not running "+prList.get(componentIndex).getName()+", already done before the checkpoint");
+      return;
+    } else if(docDeadline == null && !ownsDocument) {
+      runComponentTimed(componentIndex);
+    } else {
+      runComponentWithinBudget(componentIndex);
+    }
+    if(checkpointer != null && ownsDocument) {
+      checkpoint(componentIndex);
+    }
+  }
+  
+  // Save the document if the PR is a Pipeline for which to do that, and
+  // record when the document is finished.
+  private void checkpoint(int componentIndex) {
+    ProcessingResource pr = prList.get(componentIndex);
+    Document doc = documentOf(componentIndex);
+    if(doc == null) {
+      return;
+    }
+    if(componentIndex == prList.size() - 1) {
+      checkpointer.finished(doc);
+    } else if(!documentAborted && pr instanceof Pipeline && ((Pipeline)pr).getCheckpoint()) {
+      checkpointer.checkpoint(doc, componentIndex, pr.getName());
+    }
+  }
+  
+  private void runComponentTimed(int componentIndex) throws ExecutionException {
+    if(ExecutionMetrics.isEnabled()) {
+      runComponentWithMetrics(componentIndex);
+    } else {
+      runComponentOrBranches(componentIndex);
+    }
+  }
+  
+  /**
+   * Run the component when we process the whole document ourselves.
+   * 
+   * If the time budget of the document ran out, the running PR got 
+   * interrupted and whatever it throws is ignored. If a Pipeline PR ran
+   * out of its own time budget with the abort policy, or our budget ran 
+   * out with that policy, the remaining PRs are not run for the document.
+   * 
+   * @param componentIndex
+   * @throws ExecutionException 
+   */
+  private void runComponentWithinBudget(int componentIndex) throws ExecutionException {
+    boolean ok = false;
+    runningPRs = Collections.singletonList(prList.get(componentIndex));
+    try {
+      runComponentTimed(componentIndex);
+      ok = true;
+    } catch (DocumentTimeoutException ex) {
+      logger.warn(ex.getMessage()+", skipping the remaining PRs of "+getName());
+      documentAborted = true;
+      ok = true;
+    } catch (ExecutionException | RuntimeException ex) {
+      if(docDeadline == null || !docDeadline.hasExpired()) {
+        throw ex;
+      }
+      ok = true;
+    } finally {
+      runningPRs = Collections.emptyList();
+      if(docDeadline != null && 
+         (!ok || docDeadline.hasExpired() || componentIndex == prList.size() - 1)) {
+        endDocumentDeadline(componentIndex);
+      }
+    }
+  }
+  
+  private void endDocumentDeadline(int componentIndex) {
+    DocumentDeadline deadline = docDeadline;
+    docDeadline = null;
+    if(deadline.cancel()) {
+      Document doc = documentOf(componentIndex);
+      ExecutionTimer node = null;
+      if(ExecutionMetrics.isEnabled()) {
+        ExecutionTimer parent = ExecutionMetrics.current();
+        node = parent != null ? parent : ExecutionMetrics.root(getName(), this);
+      }
+      DocumentDeadline.timedOut(doc, getName(), node);
+      if(DocumentDeadline.isAbort(docTimeoutPolicy)) {
+        documentAborted = true;
+      }
+    }
+  }
+  
+  private void interruptRunningPRs() {
+    for(ProcessingResource pr : runningPRs) {
+      pr.interrupt();
+    }
+  }
+  
+  /**
+   * Run the component and record the execution metrics for it.
+   * 
+   * The node of this controller is the node of the PR which runs this 
+   * controller, if there is one, otherwise this is an outermost controller.
+   * A Pipeline PR records its own runs, since it can also be run elsewhere.
+   * 
+   * @param componentIndex
+   * @throws ExecutionException 
+   */
+  private void runComponentWithMetrics(int componentIndex) throws ExecutionException {
+    ExecutionTimer parent = ExecutionMetrics.current();
+    ExecutionTimer node = parent != null ? parent : ExecutionMetrics.root(getName(), this);
+    ProcessingResource pr = prList.get(componentIndex);
+    ExecutionTimer prNode = node.child(pr.getName());
+    boolean run = strategiesList.get(componentIndex).shouldRun();
+    if(!run) {
+      prNode.recordSkip();
+    }
+    if(pr instanceof Pipeline || !run) {
+      ExecutionMetrics.setCurrent(node);
+      try {
+        if(!runComponentOrBranches(componentIndex) && run) {
+          prNode.recordSkip();
+        }
+      } finally {
+        ExecutionMetrics.setCurrent(parent);
+      }
+    } else {
+      ExecutionMetrics.setCurrent(prNode);
+      long start = System.nanoTime();
+      boolean ran = false;
+      try {
+        ran = runComponentOrBranches(componentIndex);
+      } finally {
+        if(ran) {
+          prNode.recordRun(System.nanoTime() - start);
+        } else {
+          prNode.recordSkip();
+        }
+        ExecutionMetrics.setCurrent(parent);
+      }
+    }
+  }
+  
+  // The document the PR runs on, for a shared PR the document of this 
+  // controller, which is set on the PR when it runs.
+  private Document documentOf(int componentIndex) {
+    ProcessingResource pr = prList.get(componentIndex);
+    if(sharedPRs.contains(pr)) {
+      return currentDocument;
+    }
+    return ((LanguageAnalyser)pr).getDocument();
+  }
+  
+  ParameterPlan getParameterPlan() {
+    return parameterPlan;
+  }
+  
+  /**
+   * The PRs this controller shares with other controllers.
+   * 
+   * @return the shared PRs, a set which is replaced but never changed
+   */
+  Set<ProcessingResource> getSharedPRs() {
+    return sharedPRs;
+  }
+  
+  /**
+   * Check the condition of a prrun expression for the PR, if there is one.
+   * 
+   * @param componentIndex the index of the PR
+   * @return false if the expression says not to run the PR for its document
+   */
+  boolean conditionHolds(int componentIndex) {
+    ParameterPlan plan = parameterPlan;
+    ProcessingResource pr = prList.get(componentIndex);
+    return plan == null || !(pr instanceof LanguageAnalyser) ||
+            plan.conditionHolds(componentIndex, ((LanguageAnalyser)pr).getDocument());
+  }
+  
+  // returns false if the PR was not run because of its prrun expression
+  private boolean runComponentOrBranches(int componentIndex) throws ExecutionException {
+    if(branchParallelism > 1) {
+      if(componentIndex == 0) {
+        parallelDoneUntil = 0;
+      }
+      if(componentIndex < parallelDoneUntil) {
+        // already run as part of a group of parallel Pipelines
+        return true;
+      }
+      int end = BranchExecutor.findGroupEnd(prList, componentIndex, branchParallelism);
+      if(end - componentIndex > 1) {
+        runBranches(componentIndex, end);
+        parallelDoneUntil = end;
+        return true;
+      }
+    }
+    ProcessingResource pr = prList.get(componentIndex);
+    if(lockedPRs.contains(pr)) {
+      // other controllers may not run the PR at the same time, so hold it
+      // while it has our document and parameters
+      synchronized(pr) {
+        parameterPlan.applyShared(pr);
+        return runSharedComponent(componentIndex);
+      }
+    } else if(sharedPRs.contains(pr)) {
+      // the PR may run concurrently, but its parameters are only set by
+      // one controller at a time
+      synchronized(pr) {
+        parameterPlan.applyShared(pr);
+      }
+      return runSharedComponent(componentIndex);
+    }
+    return runComponentIfConditionHolds(componentIndex);
+  }
+  
+  private boolean runSharedComponent(int componentIndex) throws ExecutionException {
+    LanguageAnalyser pr = (LanguageAnalyser)prList.get(componentIndex);
+    pr.setDocument(currentDocument);
+    pr.setCorpus(corpus);
+    try {
+      return runComponentIfConditionHolds(componentIndex);
+    } finally {
+      pr.setDocument(null);
+    }
+  }
+  
+  private boolean runComponentIfConditionHolds(int componentIndex) throws ExecutionException {
+    if(!conditionHolds(componentIndex)) {
+      logger.debug("Not running "+prList.get(componentIndex).getName()+", the prrun expression does not hold");
+      return false;
+    }
+
+    // now delegate to the correct super implementation of runComponent
     // which will eventually decide if to run the PR and then run it.
-    super.runComponent(componentIndex);    
+    super.runComponent(componentIndex);
+    return true;
+  }
+
+  /**
+   * Run the Pipeline PRs from start to end (exclusive) in parallel, as far
+   * as their running strategies say they should run for the document.
+   *
+   * @param start index of the first PR
+   * @param end index after the last PR
+   * @throws ExecutionException
+   */
+  protected void runBranches(int start, int end) throws ExecutionException {
+    Document doc = ((LanguageAnalyser)prList.get(start)).getDocument();
+    List<Pipeline> branches = new ArrayList<>(end - start);
+    for(int i = start; i < end; i++) {
+      if(strategiesList.get(i).shouldRun() && conditionHolds(i)) {
+        branches.add((Pipeline)prList.get(i));
+      }
+    }
+    logger.debug("Running "+branches.size()+" pipelines in parallel in "+this.getName());
+    if(docDeadline != null) {
+      runningPRs = new ArrayList<ProcessingResource>(branches);
+    }
+    getBranchExecutor().run(doc, branches);
   }
   
   
@@ -291,16 +1284,240 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
   @Override
   public void controllerExecutionStarted(Controller c)
       throws ExecutionException {
-    Utils.setControllerParms(this, config);
+    Config current = config;
+    parameterPlan = Utils.setControllerParms(this, current, parameterPlan);
+    appliedConfig = current;
     super.controllerExecutionStarted(c);    
   }
   @Override
   public void invokeControllerExecutionStarted()
       throws ExecutionException {
-    Utils.setControllerParms(this, config);
+    Config current = config;
+    parameterPlan = Utils.setControllerParms(this, current, parameterPlan);
+    appliedConfig = current;
     super.invokeControllerExecutionStarted();    
   }
   
+  /**
+   * Re-read the config file and replace the config.
+   * 
+   * The new config is read completely before it replaces the old one in 
+   * a single assignment. Documents which are already being processed 
+   * continue to use the old config, the runtime parameters from the new 
+   * config get set before the next document is processed. 
+   * If the config file cannot be read, the old config is kept. 
+   * If the new config has the inheritconfig setting, it is passed on to 
+   * the sub-pipelines before it replaces the old config.
+   */
+  public void reloadConfig() {
+    Config newConfig;
+    // the file may have changed without a change of size within the 
+    // resolution of the modification time, so always parse it again
+    File oldFile = config.sourceFile;
+    if(oldFile != null) {
+      ConfigCache.invalidate(oldFile);
+    }
+    try {
+      newConfig = Utils.readConfigFile(getConfigFileUrl(), configScope);
+    } catch (GateRuntimeException ex) {
+      logger.error("Could not reload config file for "+this.getName()+", keeping the old config", ex);
+      return;
+    }
+    replaceConfig(newConfig);
+  }
+  
+  /**
+   * Replace the config after the watched config file changed, with the
+   * file as parsed once by the config watcher for all the controllers
+   * which watch it.
+   * 
+   * @param parsed the parsed config file
+   */
+  private void configFileChanged(Config parsed) {
+    File file = config.sourceFile;
+    if(file != null) {
+      replaceConfig(Utils.readConfig(parsed, file, getConfigFileUrl(), configScope));
+    }
+  }
+  
+  private void replaceConfig(Config newConfig) {
+    if(newConfig.globalConfigFileUrl != null) {
+      setConfigForSubControllers(newConfig.globalConfigFileUrl);
+    }
+    config = newConfig;
+    logger.info("Reloaded config file for "+this.getName()+" from "+newConfig.sourceFile);
+  }
+  
+  /**
+   * Start, stop or change watching the config file as necessary.
+   */
+  protected synchronized void updateConfigWatch() {
+    File toWatch = watchConfigFile ? config.sourceFile : null;
+    if(configWatch != null) {
+      if(toWatch != null && configWatch.getFile().toFile().equals(canonicalFile(toWatch))) {
+        return;
+      }
+      configWatch.cancel();
+      configWatch = null;
+    }
+    if(toWatch != null) {
+      configWatch = ConfigWatcher.watch(toWatch, this::configFileChanged);
+    }
+  }
+  
+  private static File canonicalFile(File file) {
+    try {
+      return file.getCanonicalFile();
+    } catch (IOException ex) {
+      return file.getAbsoluteFile();
+    }
+  }
+  
+  @Override
+  public void cleanup() {
+    synchronized(this) {
+      if(configWatch != null) {
+        configWatch.cancel();
+        configWatch = null;
+      }
+      if(corpusRunner != null) {
+        corpusRunner.cleanup();
+        corpusRunner = null;
+      }
+      if(stagedRunner != null) {
+        stagedRunner.cleanup();
+        stagedRunner = null;
+      }
+      if(branchExecutor != null) {
+        branchExecutor.cleanup();
+        branchExecutor = null;
+      }
+      if(checkpointWriter != null) {
+        checkpointWriter.close();
+        checkpointWriter = null;
+      }
+    }
+    ExecutionMetrics.release(this);
+    // a shared PR which is still used by other controllers must not get
+    // deleted together with this one
+    for(ProcessingResource pr : sharedPRs) {
+      if(!SharedPRs.removeUser(pr)) {
+        remove(pr);
+      }
+    }
+    sharedPRs = Collections.emptySet();
+    lockedPRs = Collections.emptySet();
+    super.cleanup();
+  }
+  
+  /**
+   * Duplicate the controller, sharing the PRs for which the config says so.
+   * 
+   * The PRs with a prshare setting in the config are not duplicated, the
+   * duplicate uses the very same instance instead, which saves the memory 
+   * for large resources which do not change after initialisation, like 
+   * gazetteer lists or models. Only the running strategy and the document
+   * are per controller: a shared PR gets the document of the controller 
+   * which runs it, and the runtime parameters from the config of that
+   * controller, which are set right before the PR runs. A shared PR gets 
+   * deleted together with the last controller which uses it. Pipeline PRs 
+   * cannot be shared, the PRs of their sub-pipelines can.
+   * <p>
+   * Only one controller at a time sets the parameters of and runs a shared
+   * PR, which works for any PR, but makes the other controllers wait for
+   * it, so parallel workers get serialized on the PR. If the prshare 
+   * setting has lock: false, the controllers run the PR at the same time, 
+   * so the PR must be safe for concurrent use, including its document 
+   * parameter, and all the controllers must use the same runtime parameters
+   * for it, as a controller may change them while another one runs the PR.
+   * 
+   * @param ctx the duplication context
+   * @return the duplicate
+   * @throws ResourceInstantiationException 
+   */
+  @Override
+  public Resource duplicate(Factory.DuplicationContext ctx) throws ResourceInstantiationException {
+    // the duplicate and any sub-pipelines it loads get created in our scope
+    ConfigScope previous = ConfigScope.enter(configScope);
+    try {
+      return duplicateSharing(ctx);
+    } finally {
+      ConfigScope.restore(previous);
+    }
+  }
+
+  private Resource duplicateSharing(Factory.DuplicationContext ctx) throws ResourceInstantiationException {
+    Config current = config;
+    Set<ProcessingResource> toShare = Collections.newSetFromMap(new IdentityHashMap<ProcessingResource,Boolean>());
+    if(!current.sharedPRs.isEmpty()) {
+      for(ProcessingResource pr : prList) {
+        if(current.sharedPRs.contains(getName()+"\t"+pr.getName())) {
+          if(pr instanceof Pipeline || !(pr instanceof LanguageAnalyser)) {
+            logger.warn("Cannot share PR "+pr.getName()+" of "+getName()+", only PRs which are not Pipeline PRs can be shared");
+          } else {
+            toShare.add(pr);
+          }
+        }
+      }
+    }
+    if(toShare.isEmpty()) {
+      return super.duplicate(ctx);
+    }
+    // like the inherited duplication, but the shared PRs are not duplicated
+    ParametrizedCorpusController duplicate = 
+            (ParametrizedCorpusController)Factory.defaultDuplicate(this, ctx);
+    List<ProcessingResource> prs = new ArrayList<>(prList.size());
+    for(ProcessingResource pr : prList) {
+      prs.add(toShare.contains(pr) ? pr : (ProcessingResource)Factory.duplicate(pr, ctx));
+    }
+    duplicate.setPRs(prs);
+    List<RunningStrategy> strategies = new ArrayList<>(prs.size());
+    for(int i = 0; i < prs.size(); i++) {
+      RunningStrategy strategy = strategiesList.get(i);
+      if(strategy instanceof AnalyserRunningStrategy) {
+        AnalyserRunningStrategy ars = (AnalyserRunningStrategy)strategy;
+        strategies.add(new AnalyserRunningStrategy((LanguageAnalyser)prs.get(i), 
+                ars.getRunMode(), ars.getFeatureName(), ars.getFeatureValue()));
+      } else {
+        strategies.add(new RunningStrategy.UnconditionalRunningStrategy(prs.get(i), 
+                !(strategy instanceof RunningStrategy.UnconditionalRunningStrategy) || 
+                strategy.shouldRun()));
+      }
+    }
+    duplicate.setRunningStrategies(strategies);
+    Set<ProcessingResource> toLock = Collections.newSetFromMap(new IdentityHashMap<ProcessingResource,Boolean>());
+    for(ProcessingResource pr : toShare) {
+      SharedPRs.addUser(pr);
+      if(current.lockedPRs.contains(getName()+"\t"+pr.getName())) {
+        toLock.add(pr);
+      }
+    }
+    // we may already share PRs with earlier duplicates, which we keep 
+    // sharing, and the parameters get compiled for the new sets
+    Set<ProcessingResource> shared = Collections.newSetFromMap(new IdentityHashMap<ProcessingResource,Boolean>());
+    shared.addAll(sharedPRs);
+    shared.addAll(toShare);
+    Set<ProcessingResource> locked = Collections.newSetFromMap(new IdentityHashMap<ProcessingResource,Boolean>());
+    locked.addAll(lockedPRs);
+    locked.addAll(toLock);
+    sharedPRs = Collections.unmodifiableSet(shared);
+    lockedPRs = Collections.unmodifiableSet(locked);
+    appliedConfig = null;
+    duplicate.sharedPRs = Collections.unmodifiableSet(toShare);
+    duplicate.lockedPRs = Collections.unmodifiableSet(toLock);
+    logger.debug("Duplicated "+getName()+" sharing "+toShare.size()+" PRs with the duplicate");
+    return duplicate;
+  }
+  
+  
+  /**
+   * The config scope this controller reads its configs in.
+   * 
+   * @return the scope or null if the controller was not created within one
+   */
+  public ConfigScope getConfigScope() {
+    return configScope;
+  }
   
   public void setConfigForSubControllers(URL configFileUrl) {
     logger.debug("Running setConfigForSubControllers in "+this.getName()+" config="+configFileUrl+" have components: "+prList);
@@ -308,15 +1525,31 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
       ProcessingResource pr = prList.get(componentIndex);
       if (pr instanceof ParametrizedCorpusController) {
         logger.debug("Setting config file for embedded pipeline " + pr.getName());
-        ((ParametrizedCorpusController) pr).setConfigFileUrl(config.globalConfigFileUrl);
+        ((ParametrizedCorpusController) pr).setConfigFileUrl(configFileUrl);
       } else if (pr instanceof Pipeline) {
         logger.debug("From controller "+this.getName()+" Setting config file for PipelinePR " + pr.getName());
-        ((Pipeline) pr).setConfig4Pipeline(config.globalConfigFileUrl);
+        ((Pipeline) pr).setConfig4Pipeline(configFileUrl);
       }
     }
   }
   
   
+  /**
+   * Enable or disable watching the config file for all directly included
+   * sub-pipelines, which will in turn do the same for theirs.
+   * 
+   * @param flag true to watch the config files
+   */
+  public void setWatchConfigFileForSubControllers(boolean flag) {
+    for (ProcessingResource pr : prList) {
+      if (pr instanceof ParametrizedCorpusController) {
+        ((ParametrizedCorpusController) pr).setWatchConfigFile(flag);
+      } else if (pr instanceof Pipeline) {
+        ((Pipeline) pr).setWatchConfig4Pipeline(flag);
+      }
+    }
+  }
+  
   private List<Action> actions;
 
   @Override
@@ -338,7 +1571,7 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
         @Override
         public void actionPerformed(ActionEvent evt) {
           if (getConfigFileUrl() != null) {
-            config = Utils.readConfigFile(getConfigFileUrl());
+            config = Utils.readConfigFile(getConfigFileUrl(), configScope);
             logger.debug("Reloaded config file " + getConfigFileUrl());
           } else {
             logger.debug("Nothing re-loaded, not config file set");
@@ -389,7 +1622,7 @@ public class ParametrizedCorpusController extends ConditionalSerialAnalyserContr
             }
             setConfigFileUrl(newUrl);
             if (newUrl != null) {
-              config = Utils.readConfigFile(getConfigFileUrl());
+              config = Utils.readConfigFile(getConfigFileUrl(), configScope);
               logger.debug("Reloaded config file " + getConfigFileUrl());
             } else {
               config = new Config();
@@ -43,6 +43,11 @@ public class ParametrizedCorpusControllerPersistence extends  ConditionalSerialA
   
   @Override
   public Object createObject() throws PersistenceException, ResourceInstantiationException {
+    // keep what got parsed from the pipeline file before anything changes it
+    PipelineFileCache.capture(this, containingControllerName);
+    // the pipeline file has been read, other loader threads may read theirs
+    // while the PRs get initialised
+    PipelineLoader.finishedReading();
     initParams = PersistenceManager.getTransientRepresentation(
             initParams,containingControllerName,initParamOverrides);
     FeatureMap ourParms = (FeatureMap)initParams;
@@ -52,8 +57,10 @@ public class ParametrizedCorpusControllerPersistence extends  ConditionalSerialA
     // we would need to be able to somehow know here at this point what the
     // parent pipeline setting is. However, I cannot see any reasonably simple
     // mechanism that would allow us to do this, so we need to stick with 
-    // the general strategy of using the global system property for this.
-    // Unfortunately that strategy will affect all pipelines in the whole VM!
+    // the general strategy of using a property for this. The property is
+    // looked up in the ConfigScope current while the application is loaded,
+    // so it only affects all the pipelines in the VM if it is set as a
+    // system property or the application is loaded without a scope.
     
     // NOTE2: one possible approach would be to allow the initParams object already to get
     // passed to PersistenceManager.loadObjectFromUrl (e.g. as second, optional parameter). 
@@ -79,7 +86,18 @@ public class ParametrizedCorpusControllerPersistence extends  ConditionalSerialA
     // method. However, not everythin will be in place at that point because the
     // createObject method for the controller will only deserialize the PRs after
     // the resource has been created. 
-    ParametrizedCorpusController obj = (ParametrizedCorpusController)super.createObject();
+    // The Pipeline PRs get created while the PRs are restored, so the load
+    // parallelism of our config, if it sets one, has to be current until then.
+    Integer previous = PipelineLoader.current();
+    if(config != null && config.loadParallelism > 0) {
+      PipelineLoader.enter(config.loadParallelism);
+    }
+    ParametrizedCorpusController obj;
+    try {
+      obj = (ParametrizedCorpusController)super.createObject();
+    } finally {
+      PipelineLoader.restore(previous);
+    }
     // here we should not only have the init parameters but the object should actually 
     // have been created and initialized (our own init method has been called, but
     // only with a partly initialized object, which did not yet have the PR list.
@@ -21,6 +21,7 @@
 package at.ofai.gate.modularpipelines;
 
 import gate.Controller;
+import gate.Document;
 import gate.CorpusController;
 import gate.Factory;
 import gate.Factory.DuplicationContext;
@@ -28,6 +29,7 @@ import gate.FeatureMap;
 import gate.LanguageAnalyser;
 import gate.ProcessingResource;
 import gate.Resource;
+import gate.corpora.DocumentImpl;
 import gate.creole.AbstractLanguageAnalyser;
 import gate.creole.ConditionalSerialAnalyserController;
 import gate.creole.ControllerAwarePR;
@@ -38,12 +40,24 @@ import gate.creole.SerialAnalyserController;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.HiddenCreoleParameter;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
 import gate.persist.PersistenceException;
 import gate.util.GateRuntimeException;
-import gate.util.persistence.PersistenceManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.log4j.Logger;
 
@@ -64,7 +78,7 @@ import org.apache.log4j.Logger;
         comment = "Represents a pipeline or corpus pipeline loaded from a xgapp/gapp file",
         helpURL="https://github.com/johann-petrak/gateplugin-modularpipelines/wiki/Pipline-PR")
 public class Pipeline  extends AbstractLanguageAnalyser
-  implements ProcessingResource, CustomDuplication, ControllerAwarePR {
+  implements ProcessingResource, CustomDuplication, ControllerAwarePR, BatchProcessingResource {
   private static final long serialVersionUID = 1L;
 
   @CreoleParameter(comment="The URL of the saved pipeline file")
@@ -85,9 +99,220 @@ public class Pipeline  extends AbstractLanguageAnalyser
     return isCustomDuplicated;
   }
   protected boolean isCustomDuplicated = false;
+  
+  @Optional
+  @CreoleParameter(
+          comment="If > 0, this PR and all its duplicates share a pool of that many instances of the pipeline",
+          defaultValue="0")
+  public void setControllerPoolSize(Integer size) {
+    controllerPoolSize = size == null ? 0 : size;
+  }
+  public Integer getControllerPoolSize() {
+    return controllerPoolSize;
+  }
+  protected int controllerPoolSize = 0;
+  
+  @Optional
+  @CreoleParameter(
+          comment="If true, the pipeline is only loaded when this PR is executed for the first time",
+          defaultValue="false")
+  public void setLazyLoading(Boolean flag) {
+    lazyLoading = flag != null && flag;
+  }
+  public Boolean getLazyLoading() {
+    return lazyLoading;
+  }
+  protected boolean lazyLoading = false;
+  
+  // The annotation sets and document features the pipeline reads and 
+  // writes. These are only used by a ParametrizedCorpusController which
+  // runs branches in parallel, see there. The empty string stands for the
+  // default annotation set. 
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Annotation sets read by the pipeline, if not set, all sets may be read")
+  public void setReadsAnnotationSets(List<String> names) {
+    readsAnnotationSets = names;
+  }
+  public List<String> getReadsAnnotationSets() {
+    return readsAnnotationSets;
+  }
+  protected List<String> readsAnnotationSets;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Annotation sets written by the pipeline, must be set for running the pipeline in parallel with others")
+  public void setWritesAnnotationSets(List<String> names) {
+    writesAnnotationSets = names;
+  }
+  public List<String> getWritesAnnotationSets() {
+    return writesAnnotationSets;
+  }
+  protected List<String> writesAnnotationSets;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Document features read by the pipeline, if not set, all features may be read")
+  public void setReadsDocumentFeatures(List<String> names) {
+    readsDocumentFeatures = names;
+  }
+  public List<String> getReadsDocumentFeatures() {
+    return readsDocumentFeatures;
+  }
+  protected List<String> readsDocumentFeatures;
+  
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="Document features written by the pipeline")
+  public void setWritesDocumentFeatures(List<String> names) {
+    writesDocumentFeatures = names;
+  }
+  public List<String> getWritesDocumentFeatures() {
+    return writesDocumentFeatures;
+  }
+  protected List<String> writesDocumentFeatures;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment="Number of threads for this PR when its controller runs in staged mode",
+          defaultValue="1")
+  public void setStageThreads(Integer n) {
+    stageThreads = n == null ? 1 : n;
+  }
+  public Integer getStageThreads() {
+    return stageThreads;
+  }
+  protected int stageThreads = 1;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment="Maximum time in milliseconds for running the pipeline on a document, 0 for no limit",
+          defaultValue="0")
+  public void setTimeBudget(Integer millis) {
+    timeBudget = millis == null ? 0 : millis;
+  }
+  public Integer getTimeBudget() {
+    return timeBudget;
+  }
+  protected int timeBudget = 0;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment="What to do with a document when the time budget ran out: continue or abort",
+          defaultValue="continue")
+  public void setTimeoutPolicy(String policy) {
+    timeoutPolicy = policy;
+  }
+  public String getTimeoutPolicy() {
+    return timeoutPolicy;
+  }
+  protected String timeoutPolicy = DocumentDeadline.POLICY_CONTINUE;
+
+  // the number of documents for which the time budget ran out
+  protected final LongAdder timeouts = new LongAdder();
+
+  /**
+   * The number of documents for which the time budget of the pipeline ran out.
+   * @return count
+   */
+  public long getTimeoutCount() {
+    return timeouts.sum();
+  }
+
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment="If true, the annotations and features the pipeline adds are cached and replayed for documents with the same input, the pipeline must not remove or change anything",
+          defaultValue="false")
+  public void setMemoize(Boolean flag) {
+    memoize = flag != null && flag;
+  }
+  public Boolean getMemoize() {
+    return memoize;
+  }
+  protected boolean memoize = false;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment="The maximum number of results to keep in memory when memoizing",
+          defaultValue="1000")
+  public void setMemoCacheSize(Integer size) {
+    memoCacheSize = size == null ? 1000 : size;
+  }
+  public Integer getMemoCacheSize() {
+    return memoCacheSize;
+  }
+  protected int memoCacheSize = 1000;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(comment="If set, the directory where memoized results are also kept on disk")
+  public void setMemoDirectoryURL(URL url) {
+    memoDirectoryURL = url;
+  }
+  public URL getMemoDirectoryURL() {
+    return memoDirectoryURL;
+  }
+  protected URL memoDirectoryURL;
+
+  @Optional
+  @RunTime
+  @CreoleParameter(
+          comment="If true and the controller has a checkpoint directory, the state of the document is saved after this PR",
+          defaultValue="false")
+  public void setCheckpoint(Boolean flag) {
+    checkpoint = flag != null && flag;
+  }
+  public Boolean getCheckpoint() {
+    return checkpoint;
+  }
+  protected boolean checkpoint = false;
+
+  // the hash of everything the results depend on besides the document, 
+  // for the memoization keys
+  private transient PipelineDigest pipelineDigest;
+  
+  // the cache of the memoized results, shared with our duplicates
+  private transient ResultCache resultCache;
+  
+  // the config scope which was current when we got created, the pipeline
+  // gets loaded within it, also when loaded later or in another thread
+  private transient ConfigScope configScope;
+  // the load parallelism for this and the sub-pipelines of the loaded controller
+  private transient int loadParallelism = 1;
     
   protected Controller controller;
   
+  // if the PR got duplicated with a controller pool size > 0, the pool
+  // shared with all the duplicates, otherwise null
+  protected ControllerPool pool;
+  
+  // the controller currently executing, if any
+  private volatile Controller executing;
+  
+  // if the controller is being loaded in the background or will be loaded
+  // lazily, the task that loads it, otherwise null
+  private volatile FutureTask<Controller> loading;
+  // true while the controller will only be loaded when first needed
+  private volatile boolean loadDeferred = false;
+  // settings for the controller received while it was not loaded yet
+  private URL pendingConfigFileUrl = null;
+  private boolean havePendingConfigFileUrl = false;
+  private Boolean pendingWatchConfig = null;
+  // if not loaded yet, the controller for which the started callback
+  // was received and has to be replayed after loading
+  private Controller startedFor = null;
+  
+  // how long it took to load the controller and the approximate 
+  // increase of used heap memory while it was loaded
+  private long loadTimeNanos = -1;
+  private long loadHeapBytes = -1;
+  
   
   protected static final Logger LOGGER = Logger
           .getLogger(Pipeline.class);
@@ -98,13 +323,28 @@ public class Pipeline  extends AbstractLanguageAnalyser
     if(getPipelineFileURL() == null) {
       throw new ResourceInstantiationException("pipelineFileURL must be set");
     }
+    // if we are created while our parent pipeline gets loaded, its file 
+    // has been read, so other loader threads may read theirs
+    PipelineLoader.finishedReading();
+    configScope = ConfigScope.current();
+    loadParallelism = PipelineLoader.getParallelism();
     try {
       // TODO: not sure how the controller can ever be non-null in init()
       // therefore, we add some debugging code here ...
       if(controller == null) {
         if(!getIsCustomDuplicated()) {
-          LOGGER.debug("Pipeline.init(): No controller, initializing pipeline from URL "+getPipelineFileURL());
-          initialise_pipeline();
+          if(lazyLoading) {
+            LOGGER.debug("Pipeline.init(): No controller, will load pipeline on first use from URL "+getPipelineFileURL());
+            loading = new FutureTask<>(() -> loadPipeline());
+            loadDeferred = true;
+          } else if(loadParallelism > 1) {
+            LOGGER.debug("Pipeline.init(): No controller, loading pipeline in the background from URL "+getPipelineFileURL());
+            loading = new FutureTask<>(() -> loadPipeline());
+            PipelineLoader.submit(loading, loadParallelism);
+          } else {
+            LOGGER.debug("Pipeline.init(): No controller, initializing pipeline from URL "+getPipelineFileURL());
+            initialise_pipeline();
+          }
         } else {
           LOGGER.debug("Pipeline.init(): No controller, but not initialising pipeline, we got called from custom duplication for URL "+getPipelineFileURL());
         }
@@ -121,7 +361,17 @@ public class Pipeline  extends AbstractLanguageAnalyser
   
   @Override
   public void reInit() {
-    Factory.deleteResource(controller);
+    if(loadDeferred) {
+      // nothing loaded yet, the pipeline file will be read on first use anyway
+      return;
+    }
+    ensureLoaded();
+    if(pool != null) {
+      pool.removeUser();
+      pool = null;
+    } else {
+      Factory.deleteResource(controller);
+    }
     try {
       controller = null;
       initialise_pipeline();
@@ -133,37 +383,507 @@ public class Pipeline  extends AbstractLanguageAnalyser
   
   @Override
   public void interrupt() {
-    controller.interrupt();
+    Controller c = executing;
+    if(c != null) {
+      c.interrupt();
+    } else if(pool == null && controller != null) {
+      controller.interrupt();
+    }
+  }
+  
+  /**
+   * Make sure the controller is loaded.
+   * 
+   * If the controller is being loaded in the background, wait for it, if
+   * no loader thread has started loading the controller yet or if it is
+   * loaded lazily, it is loaded in the calling thread. If loading failed, 
+   * a GateRuntimeException which mentions the pipeline URL is thrown. 
+   */
+  public void ensureLoaded() {
+    FutureTask<Controller> task = loading;
+    if(task == null) {
+      return;
+    }
+    synchronized(this) {
+      if(loading == null) {
+        return;
+      }
+      // this does nothing if the task has already been started elsewhere
+      task.run();
+      try {
+        controller = task.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new GateRuntimeException("Interrupted while loading pipeline "+getPipelineFileURL(),ex);
+      } catch (java.util.concurrent.ExecutionException ex) {
+        throw new GateRuntimeException("Could not load pipeline "+getPipelineFileURL(),ex.getCause());
+      }
+      loading = null;
+      if(loadDeferred) {
+        loadDeferred = false;
+        applyPendingSettings();
+      }
+    }
+  }
+  
+  /**
+   * Wait for the controller if it is loaded in the background, but do not
+   * load it if it is loaded lazily. 
+   */
+  void awaitBackgroundLoad() {
+    if(!loadDeferred) {
+      ensureLoaded();
+    }
+  }
+  
+  /**
+   * Check if the controller has been loaded.
+   * @return false if the controller is still waiting to be loaded lazily or
+   * being loaded in the background
+   */
+  public boolean isLoaded() {
+    return loading == null && controller != null;
+  }
+  
+  /**
+   * The time it took to load the controller in milliseconds.
+   * @return the time or -1 if the controller has not been loaded by this PR
+   */
+  public long getLoadTimeMillis() {
+    return loadTimeNanos < 0 ? -1 : loadTimeNanos / 1000000;
+  }
+  
+  /**
+   * The approximate increase of used heap memory while the controller was
+   * loaded. This includes anything allocated by other threads at the same 
+   * time, e.g. if several pipelines are loaded in parallel.
+   * @return number of bytes or -1 if the controller has not been loaded by
+   * this PR
+   */
+  public long getLoadHeapBytes() {
+    return loadHeapBytes;
+  }
+  
+  // pass on what we received while the controller was not loaded yet
+  private void applyPendingSettings() {
+    if(havePendingConfigFileUrl) {
+      havePendingConfigFileUrl = false;
+      setConfig4Pipeline(pendingConfigFileUrl);
+    }
+    if(pendingWatchConfig != null) {
+      setWatchConfig4Pipeline(pendingWatchConfig);
+      pendingWatchConfig = null;
+    }
+    if(startedFor != null) {
+      Controller c = startedFor;
+      startedFor = null;
+      try {
+        controllerExecutionStarted(c);
+      } catch (ExecutionException ex) {
+        throw new GateRuntimeException("Error starting pipeline "+getPipelineFileURL(),ex);
+      }
+    }
+  }
+  
+  /**
+   * Get the pool of controller instances shared with the duplicates of
+   * this PR.
+   * 
+   * @return the pool or null if no pool is used
+   */
+  public ControllerPool getControllerPool() {
+    return pool;
+  }
+  
+  // all the controller instances this PR may use
+  private List<Controller> getControllers() {
+    ensureLoaded();
+    if(pool != null) {
+      return pool.getControllers();
+    } else {
+      return Collections.singletonList(controller);
+    }
   }
   
   @Override
   public void execute() {
+    if(!ExecutionMetrics.isEnabled()) {
+      executeMemoized();
+      return;
+    }
+    // record the metrics below the node of the controller running this
+    // PR, if there is one
+    ExecutionTimer parent = ExecutionMetrics.current();
+    ExecutionTimer node = parent == null ? ExecutionMetrics.root(getName(), this) : parent.child(getName());
+    ExecutionMetrics.setCurrent(node);
+    long start = System.nanoTime();
+    try {
+      executeMemoized();
+    } finally {
+      node.recordRun(System.nanoTime() - start);
+      ExecutionMetrics.setCurrent(parent);
+    }
+  }
+  
+  /**
+   * Get the cache of the results of the pipeline, if results are memoized.
+   * 
+   * @return the cache, or null if memoize is false
+   */
+  public synchronized ResultCache getResultCache() {
+    if(!memoize || pipelineFileURL == null) {
+      return null;
+    }
+    File directory = null;
+    if(memoDirectoryURL != null) {
+      directory = gate.util.Files.fileFromURL(memoDirectoryURL);
+    }
+    String name = pipelineFileURL.toExternalForm();
+    if(resultCache == null || !resultCache.isFor(name, memoCacheSize, directory)) {
+      resultCache = ResultCache.create(name, memoCacheSize, directory);
+    }
+    return resultCache;
+  }
+  
+  // Replay the result of the pipeline for the same input, if there is one, 
+  // otherwise run the pipeline and cache the result.
+  private void executeMemoized() {
+    if(!memoize || !(document instanceof DocumentImpl)) {
+      executeController();
+      return;
+    }
+    ensureLoaded();
+    ResultCache cache = getResultCache();
+    String key = memoKey(document);
+    if(key == null) {
+      executeController();
+      return;
+    }
+    if(replay(cache, key, document)) {
+      return;
+    }
+    CachedResult.Recorder recorder = new CachedResult.Recorder(document);
+    long timeoutsBefore = timeouts.sum();
+    executeController();
+    if(timeouts.sum() == timeoutsBefore) {
+      store(cache, key, recorder, document);
+    }
+  }
+  
+  // Like executeMemoized for a batch: the documents for which there is no
+  // cached result are passed on to the pipeline as one batch.
+  private void executeBatchMemoized(List<Document> documents) throws ExecutionException {
+    if(hasTimeBudget()) {
+      // the budget is per document, so run the pipeline like execute() for
+      // each document
+      Document batchDocument = document;
+      try {
+        for(Document doc : documents) {
+          document = doc;
+          executeMemoized();
+        }
+      } finally {
+        document = batchDocument;
+      }
+      return;
+    }
+    if(!memoize) {
+      executeControllerOnBatch(documents);
+      return;
+    }
+    ensureLoaded();
+    ResultCache cache = getResultCache();
+    List<Document> missed = new ArrayList<>(documents.size());
+    List<String> keys = new ArrayList<>(documents.size());
+    List<CachedResult.Recorder> recorders = new ArrayList<>(documents.size());
+    for(Document doc : documents) {
+      String key = doc instanceof DocumentImpl ? memoKey(doc) : null;
+      if(key != null && replay(cache, key, doc)) {
+        continue;
+      }
+      missed.add(doc);
+      keys.add(key);
+      recorders.add(key == null ? null : new CachedResult.Recorder(doc));
+    }
+    if(missed.isEmpty()) {
+      return;
+    }
+    executeControllerOnBatch(missed);
+    for(int i = 0; i < missed.size(); i++) {
+      if(keys.get(i) != null) {
+        store(cache, keys.get(i), recorders.get(i), missed.get(i));
+      }
+    }
+  }
+  
+  // The key for what the pipeline reads from the document, null if it 
+  // cannot be memoized
+  private String memoKey(Document doc) {
+    PipelineDigest digest = getPipelineDigest();
+    Collection<String> features = readsDocumentFeatures;
+    if(features != null && !digest.profileFeatures.isEmpty()) {
+      // the profile used for the document is selected by a feature
+      features = new LinkedHashSet<>(features);
+      features.addAll(digest.profileFeatures);
+    }
+    String key = CachedResult.key(doc, readsAnnotationSets, features, digest.digest);
+    if(key == null) {
+      LOGGER.debug("Pipeline "+getName()+": not memoizing "+doc.getName()+
+              ", it has feature values which cannot be part of the key");
+    }
+    return key;
+  }
+  
+  private boolean replay(ResultCache cache, String key, Document doc) {
+    CachedResult result = cache.lookup(key);
+    if(result == null) {
+      return false;
+    }
+    LOGGER.debug("Pipeline "+getName()+": replaying cached result for "+doc.getName());
+    result.replay(doc);
+    return true;
+  }
+  
+  private void store(ResultCache cache, String key, CachedResult.Recorder recorder, Document doc) {
+    CachedResult result = recorder.finish();
+    if(result == null) {
+      LOGGER.debug("Pipeline "+getName()+": not caching the result for "+doc.getName()+
+              ", the pipeline removed annotations or features or changed existing annotations");
+    } else {
+      cache.store(key, result);
+    }
+  }
+  
+  /**
+   * What the results of a pipeline depend on besides the document.
+   */
+  private static class PipelineDigest {
+    // the configs of all the controllers, in the order in which the 
+    // controllers were visited
+    final List<Config> configs;
+    // the features which select a profile of the config of some controller
+    final Set<String> profileFeatures;
+    final String digest;
+    PipelineDigest(List<Config> configs, Set<String> profileFeatures, String digest) {
+      this.configs = configs;
+      this.profileFeatures = profileFeatures;
+      this.digest = digest;
+    }
+  }
+  
+  // The hash of the pipeline file, the files of all the nested sub-pipelines
+  // and the configs of all the controllers, computed again when any of the 
+  // configs got replaced. Sub-pipelines which are loaded lazily get loaded 
+  // for this. 
+  private PipelineDigest getPipelineDigest() {
+    List<Config> configs = new ArrayList<>();
+    Set<String> profileFeatures = new LinkedHashSet<>();
+    digestController(controller, configs, profileFeatures, null);
+    PipelineDigest digest = pipelineDigest;
+    if(digest != null && digest.configs.size() == configs.size()) {
+      boolean same = true;
+      for(int i = 0; same && i < configs.size(); i++) {
+        same = configs.get(i) == digest.configs.get(i);
+      }
+      if(same) {
+        return digest;
+      }
+    }
+    MessageDigest md = CachedResult.sha256();
+    digestFile(md, pipelineFileURL);
+    configs.clear();
+    profileFeatures.clear();
+    digestController(controller, configs, profileFeatures, md);
+    digest = new PipelineDigest(configs, profileFeatures, CachedResult.hex(md.digest()));
+    pipelineDigest = digest;
+    return digest;
+  }
+  
+  // Collect the configs of the controller and everything nested in it, 
+  // and add them and the nested pipeline files to the digest, if there is one
+  private static void digestController(Controller controller, List<Config> configs, 
+          Set<String> profileFeatures, MessageDigest md) {
+    if(controller instanceof ParametrizedCorpusController) {
+      Config config = ((ParametrizedCorpusController)controller).config;
+      configs.add(config);
+      if(!config.profileRuntimeParms.isEmpty()) {
+        profileFeatures.add(config.profileFeature);
+      }
+      if(md != null) {
+        CachedResult.update(md, "controller:"+controller.getName());
+        CachedResult.update(md, config.canonicalString());
+      }
+    }
+    for(ProcessingResource pr : controller.getPRs()) {
+      if(pr instanceof Controller) {
+        digestController((Controller)pr, configs, profileFeatures, md);
+      } else if(pr instanceof Pipeline) {
+        Pipeline pipeline = (Pipeline)pr;
+        pipeline.ensureLoaded();
+        if(md != null) {
+          CachedResult.update(md, "pipeline:"+pipeline.getName());
+          digestFile(md, pipeline.pipelineFileURL);
+        }
+        if(pipeline.controller != null) {
+          digestController(pipeline.controller, configs, profileFeatures, md);
+        }
+      }
+    }
+  }
+  
+  private static void digestFile(MessageDigest md, URL url) {
+    try (InputStream in = url.openStream()) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while((n = in.read(buffer)) > 0) {
+        md.update(buffer, 0, n);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read pipeline file "+url, ex);
+    }
+    md.update((byte)0);
+  }
+  
+  private void executeController() {
     // invoking a corpus controller will only work if the corpus is set,
     // even when the corpus is not used in a recursive invocation 
     // (if a corpus controller is invoked inside a corpus controller, the
     // document is set and the inner controller is only run on that single
-    // document while the corpus is ignored).
+    // document while the corpus is ignored). A ParametrizedCorpusController
+    // also runs on the document if the corpus is null, e.g. for a stream.
 
+    ensureLoaded();
+    Controller controller = pool == null ? this.controller : pool.borrow();
+    executing = controller;
     if(controller instanceof CorpusController) {      
       ((CorpusController)controller).setCorpus(corpus);      
     }
     if(controller instanceof LanguageAnalyser) {      
       ((LanguageAnalyser)controller).setDocument(document);      
     }
+    // the time budget set for the PR takes precedence over the one 
+    // from the config of the pipeline
+    long budget = timeBudget;
+    String policy = timeoutPolicy;
+    if(budget <= 0 && controller instanceof ParametrizedCorpusController) {
+      Config config = ((ParametrizedCorpusController)controller).config;
+      budget = config.timeBudget;
+      policy = config.timeoutPolicy;
+    }
+    DocumentDeadline deadline = null;
     try {
       LOGGER.debug(("Running pipeline "+controller.getName()+" on "+
               (document != null ? document.getName() : "(no document)" )));
       
       LOGGER.debug("PipelinePR "+this.getName()+" running execute of "+controller.getName());
+      if(budget > 0) {
+        deadline = DocumentDeadline.start(controller::interrupt, budget);
+      }
       controller.execute();
       
-    } catch (ExecutionException ex) {
-      throw new GateRuntimeException(
-        "Error executing pipeline "+pipelineFileURL,ex);
+    } catch (ExecutionException | RuntimeException ex) {
+      if(deadline == null || !deadline.cancel()) {
+        if(ex instanceof RuntimeException) {
+          throw (RuntimeException)ex;
+        }
+        throw new GateRuntimeException(
+          "Error executing pipeline "+pipelineFileURL,ex);
+      }
+      timeouts.increment();
+      DocumentDeadline.timedOut(document, getName(), ExecutionMetrics.current());
+      if(DocumentDeadline.isAbort(policy)) {
+        throw new DocumentTimeoutException("Time budget of "+budget+"ms ran out for pipeline "+
+                getName()+" on document "+(document == null ? null : document.getName()));
+      }
     } finally {
+      if(deadline != null) {
+        deadline.cancel();
+      }
       if(controller instanceof LanguageAnalyser) {      
         ((LanguageAnalyser)controller).setDocument(null);      
       }
+      executing = null;
+      if(pool != null) {
+        pool.release(controller);
+      }
+    }
+  }
+  
+  /**
+   * Check if the pipeline has a time budget for each document, either set
+   * for this PR or in the config of the pipeline.
+   * 
+   * @return true if there is a time budget
+   */
+  public boolean hasTimeBudget() {
+    if(timeBudget > 0) {
+      return true;
+    }
+    ensureLoaded();
+    return controller instanceof ParametrizedCorpusController &&
+           ((ParametrizedCorpusController)controller).config.timeBudget > 0;
+  }
+  
+  /**
+   * Run the pipeline on a batch of documents.
+   * 
+   * If the pipeline is a ParametrizedCorpusController, the whole batch is
+   * passed on to it, otherwise the pipeline is run for each document. 
+   * If results are memoized, cached results are replayed first and only 
+   * the remaining documents are passed on. If the pipeline has a time 
+   * budget, it is run like execute() for each document, so that the budget
+   * holds for each document: with the abort policy, the 
+   * DocumentTimeoutException ends the whole batch.
+   * 
+   * @param documents the documents
+   * @throws ExecutionException 
+   */
+  @Override
+  public void executeBatch(List<Document> documents) throws ExecutionException {
+    if(!ExecutionMetrics.isEnabled()) {
+      executeBatchMemoized(documents);
+      return;
+    }
+    ExecutionTimer parent = ExecutionMetrics.current();
+    ExecutionTimer node = parent == null ? ExecutionMetrics.root(getName(), this) : parent.child(getName());
+    ExecutionMetrics.setCurrent(node);
+    long start = System.nanoTime();
+    try {
+      executeBatchMemoized(documents);
+    } finally {
+      node.recordRun(System.nanoTime() - start);
+      ExecutionMetrics.setCurrent(parent);
+    }
+  }
+  
+  private void executeControllerOnBatch(List<Document> documents) throws ExecutionException {
+    ensureLoaded();
+    Controller controller = pool == null ? this.controller : pool.borrow();
+    executing = controller;
+    if(controller instanceof CorpusController) {
+      ((CorpusController)controller).setCorpus(corpus);
+    }
+    try {
+      LOGGER.debug("PipelinePR "+this.getName()+" running batch of "+documents.size()+
+              " documents with "+controller.getName());
+      if(controller instanceof BatchProcessingResource) {
+        ((BatchProcessingResource)controller).executeBatch(documents);
+      } else {
+        for(Document doc : documents) {
+          if(controller instanceof LanguageAnalyser) {
+            ((LanguageAnalyser)controller).setDocument(doc);
+          }
+          controller.execute();
+        }
+      }
+    } finally {
+      if(controller instanceof LanguageAnalyser) {
+        ((LanguageAnalyser)controller).setDocument(null);
+      }
+      executing = null;
+      if(pool != null) {
+        pool.release(controller);
+      }
     }
   }
   
@@ -181,27 +901,124 @@ public class Pipeline  extends AbstractLanguageAnalyser
   
   @Override
   public void cleanup() {
-    LOGGER.debug("Pipeline.cleanup(): Deleting controller"+controller.getName());
-    Factory.deleteResource(controller);
+    ExecutionMetrics.release(this);
+    synchronized(this) {
+      resultCache = null;
+    }
+    if(loadDeferred) {
+      LOGGER.debug("Pipeline.cleanup(): pipeline was never loaded: "+getPipelineFileURL());
+      loading = null;
+      return;
+    }
+    try {
+      ensureLoaded();
+    } catch (GateRuntimeException ex) {
+      LOGGER.debug("Pipeline.cleanup(): pipeline was never loaded: "+ex.getMessage());
+      return;
+    }
+    if(pool != null) {
+      LOGGER.debug("Pipeline.cleanup(): Releasing controller pool");
+      pool.removeUser();
+      pool = null;
+    } else {
+      LOGGER.debug("Pipeline.cleanup(): Deleting controller"+controller.getName());
+      Factory.deleteResource(controller);
+    }
   }
   
   
   protected void initialise_pipeline() throws PersistenceException,
+    IOException, ResourceInstantiationException {
+    controller = loadPipeline();
+  }
+  
+  private Controller loadPipeline() throws PersistenceException,
     IOException, ResourceInstantiationException {
     LOGGER.debug("(Re-)initialising pipeline "+pipelineFileURL);
-    controller = (Controller)PersistenceManager.loadObjectFromUrl(pipelineFileURL);
+    Runtime runtime = Runtime.getRuntime();
+    long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+    long start = System.nanoTime();
+    Controller c;
+    ConfigScope previous = ConfigScope.enter(configScope);
+    Integer previousParallelism = PipelineLoader.enter(loadParallelism);
+    PipelineLoader.startReading();
+    try {
+      c = (Controller)PipelineFileCache.loadObjectFromUrl(pipelineFileURL);
+    } finally {
+      PipelineLoader.finishedReading();
+      PipelineLoader.restore(previousParallelism);
+      ConfigScope.restore(previous);
+    }
+    loadTimeNanos = System.nanoTime() - start;
+    loadHeapBytes = Math.max(0, runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+    LOGGER.debug("Loaded pipeline "+pipelineFileURL+" in "+(loadTimeNanos/1000000)+
+            "ms, heap used grew by about "+(loadHeapBytes/(1024*1024))+"MB");
+    return c;
   }
   
   @Override
   public Resource duplicate(DuplicationContext ctx)
       throws ResourceInstantiationException {
+    // the duplicate gets created in our scope and with our load parallelism
+    ConfigScope previous = ConfigScope.enter(configScope);
+    Integer previousParallelism = PipelineLoader.enter(loadParallelism);
+    try {
+      return duplicatePipeline(ctx);
+    } finally {
+      PipelineLoader.restore(previousParallelism);
+      ConfigScope.restore(previous);
+    }
+  }
+  
+  private Resource duplicatePipeline(DuplicationContext ctx)
+      throws ResourceInstantiationException {
     LOGGER.debug("Pipeline.duplicate(): attempting to duplicate PiplinePR "+getPipelineFileURL());
+    synchronized(this) {
+      if(loadDeferred && controllerPoolSize <= 0) {
+        // nothing to duplicate yet: the duplicate will load the pipeline 
+        // itself if and when it gets used 
+        FeatureMap params = Factory.duplicate(getInitParameterValues(), ctx);
+        params.put("isCustomDuplicated", false);
+        params.putAll(Factory.duplicate(getRuntimeParameterValues(), ctx));
+        Pipeline resource = 
+                (Pipeline)Factory.createResource(
+                  this.getClass().getName(), params, 
+                  Factory.duplicate(this.getFeatures(), ctx), this.getName());
+        resource.pendingConfigFileUrl = pendingConfigFileUrl;
+        resource.havePendingConfigFileUrl = havePendingConfigFileUrl;
+        resource.pendingWatchConfig = pendingWatchConfig;
+        resource.resultCache = getResultCache();
+        return resource;
+      }
+    }
+    ensureLoaded();
     FeatureMap params = Factory.duplicate(getInitParameterValues(), ctx);
     // setting this hidden parameter will tell the init function not to 
     // load the controller even though the controller field will be null. 
     params.put("isCustomDuplicated", true); 
     params.putAll(Factory.duplicate(getRuntimeParameterValues(), ctx));
     FeatureMap features_here = Factory.duplicate(this.getFeatures(), ctx);
+    if(controllerPoolSize > 0) {
+      // instead of duplicating the controller, let the duplicate share
+      // the pool of controllers with us
+      ControllerPool thePool;
+      synchronized(this) {
+        if(pool == null) {
+          LOGGER.debug("Pipeline.duplicate(): creating pool of "+controllerPoolSize+" controllers for "+getPipelineFileURL());
+          pool = new ControllerPool(controller, controllerPoolSize, getName());
+          pool.addUser();
+        }
+        thePool = pool;
+      }
+      Pipeline resource = 
+              (Pipeline)Factory.createResource(
+                this.getClass().getName(), params, features_here, this.getName());
+      thePool.addUser();
+      resource.controller = controller;
+      resource.pool = thePool;
+      resource.resultCache = getResultCache();
+      return resource;
+    }
     // instead of letting the duplicate load the controller again, we 
     // create our own duplicated instance of the controller here ....
     LOGGER.debug("Pipeline.duplicate(): duplicating the controller for "+getPipelineFileURL());
@@ -215,11 +1032,24 @@ public class Pipeline  extends AbstractLanguageAnalyser
     // we just created
     LOGGER.debug("Pipeline.duplicate(): setting the controller of the duplicate for "+getPipelineFileURL());
     resource.controller = c;
+    resource.resultCache = getResultCache();
     return resource;
   }
   @Override
   public void controllerExecutionStarted(Controller c)
       throws ExecutionException {
+    synchronized(this) {
+      if(loadDeferred) {
+        // only load if we actually get executed, remember to pass this on
+        startedFor = c;
+        return;
+      }
+    }
+    ensureLoaded();
+    if(pool != null) {
+      pool.controllerExecutionStarted(c, corpus);
+      return;
+    }
     if(controller instanceof ControllerAwarePR) {
       if(controller instanceof CorpusController) {
         ((CorpusController)controller).setCorpus(corpus);
@@ -230,6 +1060,17 @@ public class Pipeline  extends AbstractLanguageAnalyser
   @Override
   public void controllerExecutionFinished(Controller c)
       throws ExecutionException {
+    synchronized(this) {
+      if(loadDeferred) {
+        startedFor = null;
+        return;
+      }
+    }
+    ensureLoaded();
+    if(pool != null) {
+      pool.controllerExecutionFinished(c, corpus);
+      return;
+    }
     if(controller instanceof ControllerAwarePR) {
       if(controller instanceof CorpusController) {
         ((CorpusController)controller).setCorpus(corpus);
@@ -243,6 +1084,17 @@ public class Pipeline  extends AbstractLanguageAnalyser
   @Override
   public void controllerExecutionAborted(Controller c, Throwable t)
       throws ExecutionException {
+    synchronized(this) {
+      if(loadDeferred) {
+        startedFor = null;
+        return;
+      }
+    }
+    ensureLoaded();
+    if(pool != null) {
+      pool.controllerExecutionAborted(c, corpus, t);
+      return;
+    }
     if(controller instanceof ControllerAwarePR) {
       if(controller instanceof CorpusController) {
         ((CorpusController)controller).setCorpus(corpus);
@@ -255,10 +1107,35 @@ public class Pipeline  extends AbstractLanguageAnalyser
   }
   
   public void setConfig4Pipeline(URL configFileUrl) {
-    if(controller instanceof ParametrizedCorpusController) {
-      ParametrizedCorpusController pcc = (ParametrizedCorpusController)controller;
-      LOGGER.debug("Re-setting the config file for sub pipeline "+pcc.getName());
-      pcc.setConfigFileUrl(configFileUrl);
+    synchronized(this) {
+      if(loadDeferred) {
+        pendingConfigFileUrl = configFileUrl;
+        havePendingConfigFileUrl = true;
+        return;
+      }
+    }
+    for(Controller controller : getControllers()) {
+      if(controller instanceof ParametrizedCorpusController) {
+        ParametrizedCorpusController pcc = (ParametrizedCorpusController)controller;
+        LOGGER.debug("Re-setting the config file for sub pipeline "+pcc.getName());
+        pcc.setConfigFileUrl(configFileUrl);
+      }
+    }
+  }
+  
+  public void setWatchConfig4Pipeline(boolean flag) {
+    synchronized(this) {
+      if(loadDeferred) {
+        pendingWatchConfig = flag;
+        return;
+      }
+    }
+    for(Controller controller : getControllers()) {
+      if(controller instanceof ParametrizedCorpusController) {
+        ParametrizedCorpusController pcc = (ParametrizedCorpusController)controller;
+        LOGGER.debug("Setting config file watching for sub pipeline "+pcc.getName()+" to "+flag);
+        pcc.setWatchConfigFile(flag);
+      }
     }
   }
   
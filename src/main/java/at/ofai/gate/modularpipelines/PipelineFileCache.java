@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Gate;
+import gate.creole.Plugin;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.ResourceReference;
+import gate.persist.PersistenceException;
+import gate.util.persistence.Persistence;
+import gate.util.persistence.PersistenceManager;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide cache of the parsed content of pipeline files.
+ *
+ * PersistenceManager.loadObjectFromUrl parses the XML of the pipeline file
+ * each time the file gets loaded. If the cache is enabled, the first load
+ * of a pipeline file keeps the persistence representation of the 
+ * ParametrizedCorpusController stored in it, as it was parsed from the 
+ * XML and before any resource got created from it, as a template in GATE's
+ * binary application format, in a temporary file. Every further load 
+ * restores the controller from the template with PersistenceManager, 
+ * which does not need to parse any XML, so every load creates and 
+ * initialises new resources, reads the config files and applies them 
+ * exactly as if the pipeline file had been loaded. The Pipeline PRs in 
+ * the template load their own pipeline files through the cache as well.
+ * <p>
+ * Templates are keyed by the canonical URL and validated against the 
+ * SHA-256 hash of the file content. For file URLs, the content is only 
+ * read and hashed again if the modification time or size of the file 
+ * changed, and if the content changed, the file gets loaded and the 
+ * template gets replaced. Relative URLs in the pipeline file get resolved
+ * when the template is made, and the template registers the plugins which
+ * were registered when the file was loaded, like a pipeline file saved at 
+ * that time would. Pipeline files which do not store a 
+ * ParametrizedCorpusController get loaded as usual. The cache holds at 
+ * most the number of templates given by the system property 
+ * at.ofai.gate.modularpipelines.pipelineCacheSize and deletes the least 
+ * recently used one. The size defaults to 0, which disables the cache. It
+ * pays off when the same pipeline file gets loaded several times, e.g. 
+ * because the same sub-pipeline is used by several Pipeline PRs or gets 
+ * re-initialised. While an application gets loaded by ApplicationSnapshot,
+ * templates are made and taken from the snapshot even if the cache is 
+ * disabled.
+ *
+ * @author Johann Petrak
+ */
+public class PipelineFileCache {
+
+  protected static final Logger LOGGER = Logger.getLogger(PipelineFileCache.class);
+
+  public static final String SIZE_PROPERTY = "at.ofai.gate.modularpipelines.pipelineCacheSize";
+
+  // access ordered, so the first entry is the least recently used one
+  private static final Map<String, Entry> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+  private static final AtomicLong HITS = new AtomicLong();
+  private static final AtomicLong MISSES = new AtomicLong();
+
+  // the pipeline files which are loaded by this thread, innermost first
+  private static final ThreadLocal<Deque<Capture>> CAPTURES = 
+          ThreadLocal.withInitial(() -> new ArrayDeque<>());
+
+  private PipelineFileCache() {}
+
+  private static class Entry {
+    final long lastModified;
+    final long length;
+    final byte[] hash;
+    final File template;
+    Entry(long lastModified, long length, byte[] hash, File template) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.hash = hash;
+      this.template = template;
+    }
+  }
+
+  // A template which gets made while a pipeline file is loaded
+  private static class Capture {
+    final URI uri;
+    byte[] template;
+    Capture(URI uri) {
+      this.uri = uri;
+    }
+  }
+
+  private static int getMaxSize() {
+    return Integer.getInteger(SIZE_PROPERTY, 0);
+  }
+
+  /**
+   * Load the object stored in a pipeline file, like
+   * PersistenceManager.loadObjectFromUrl, but restore it from the cached 
+   * template if possible.
+   *
+   * @param url the URL of the pipeline file
+   * @return the loaded object
+   * @throws PersistenceException if the file cannot be restored
+   * @throws IOException if the file cannot be read
+   * @throws ResourceInstantiationException if a resource cannot be created
+   */
+  public static Object loadObjectFromUrl(URL url)
+          throws PersistenceException, IOException, ResourceInstantiationException {
+    // a snapshot needs the templates even if the cache is not used
+    boolean snapshot = ApplicationSnapshot.isRecording();
+    if(!isEnabled() && !snapshot) {
+      return PersistenceManager.loadObjectFromUrl(url);
+    }
+    String key = getKey(url);
+    File file = toFile(url);
+    long lastModified = file == null ? -1 : file.lastModified();
+    long length = file == null ? -1 : file.length();
+    Entry entry = null;
+    if(isEnabled()) {
+      synchronized(CACHE) {
+        entry = CACHE.get(key);
+      }
+    }
+    if(entry != null && file != null && entry.lastModified == lastModified && entry.length == length) {
+      Object restored = restore(key, file, entry);
+      if(restored != null) {
+        return restored;
+      }
+    }
+    byte[] hash = sha256(read(url, file));
+    if(entry != null && Arrays.equals(entry.hash, hash)) {
+      // same content, only the file attributes changed
+      entry = put(key, entry, new Entry(lastModified, length, hash, entry.template));
+      Object restored = restore(key, file, entry);
+      if(restored != null) {
+        return restored;
+      }
+    }
+    File snapshotTemplate = snapshot ? ApplicationSnapshot.getTemplate(key, hash) : null;
+    if(snapshotTemplate != null) {
+      Object restored = restore(key, file, new Entry(lastModified, length, hash, snapshotTemplate));
+      if(restored != null) {
+        return restored;
+      }
+    }
+    MISSES.incrementAndGet();
+    LOGGER.debug("PipelineFileCache: loading pipeline file "+url);
+    Capture capture;
+    try {
+      capture = new Capture(url.toURI());
+    } catch (URISyntaxException ex) {
+      throw new PersistenceException(ex);
+    }
+    Object loaded;
+    CAPTURES.get().push(capture);
+    try {
+      loaded = PersistenceManager.loadObjectFromUrl(url);
+    } finally {
+      CAPTURES.get().pop();
+    }
+    if(capture.template != null) {
+      if(file != null) {
+        ApplicationSnapshot.recordTemplate(key, hash, capture.template);
+      }
+      if(isEnabled()) {
+        put(key, entry, new Entry(lastModified, length, hash, writeTemplate(capture.template)));
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Make the template for the pipeline file which is being loaded, if the
+   * given persistence representation is the object stored in it. 
+   * 
+   * This gets called by the ParametrizedCorpusControllerPersistence 
+   * before it creates anything from its data.
+   * 
+   * @param application the persistence representation of a controller
+   * @param containingControllerName the name of the controller which 
+   * contains the controller, null if it is not contained in one
+   */
+  static void capture(Persistence application, String containingControllerName) {
+    Capture capture = CAPTURES.get().peek();
+    if(capture == null || capture.template != null || containingControllerName != null ||
+       !capture.uri.equals(PersistenceManager.currentPersistenceURL().toURI())) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new TemplateOutputStream(bos)) {
+        // the plugins come first, like in a pipeline file
+        List<Object> plugins = new ArrayList<>();
+        for(Plugin plugin : Gate.getCreoleRegister().getPlugins()) {
+          if(plugin instanceof Plugin.Directory) {
+            plugins.add(((Plugin.Directory)plugin).getBaseURL());
+          } else if(plugin instanceof Serializable) {
+            plugins.add(plugin);
+          }
+        }
+        oos.writeObject(plugins);
+        oos.writeObject(application);
+      }
+      capture.template = bos.toByteArray();
+    } catch (IOException ex) {
+      LOGGER.warn("Cannot cache pipeline file "+capture.uri+": "+ex);
+    }
+  }
+
+  /**
+   * Remove and delete the cached templates for a pipeline file.
+   *
+   * @param url the URL of the pipeline file
+   */
+  public static void invalidate(URL url) {
+    Entry removed;
+    synchronized(CACHE) {
+      removed = CACHE.remove(getKey(url));
+    }
+    if(removed != null) {
+      removed.template.delete();
+    }
+  }
+
+  /**
+   * Remove and delete all templates and reset the hit and miss counters.
+   */
+  public static void clear() {
+    List<Entry> removed;
+    synchronized(CACHE) {
+      removed = new ArrayList<>(CACHE.values());
+      CACHE.clear();
+    }
+    for(Entry entry : removed) {
+      entry.template.delete();
+    }
+    HITS.set(0);
+    MISSES.set(0);
+  }
+
+  /**
+   * Number of loads which could use a cached template or one from a 
+   * snapshot.
+   * @return hit count
+   */
+  public static long getHitCount() {
+    return HITS.get();
+  }
+
+  /**
+   * Number of loads which had to load the pipeline file.
+   * @return miss count
+   */
+  public static long getMissCount() {
+    return MISSES.get();
+  }
+
+  /**
+   * Number of templates currently cached.
+   * @return number of entries
+   */
+  public static int size() {
+    synchronized(CACHE) {
+      return CACHE.size();
+    }
+  }
+
+  /**
+   * Check if pipeline files get cached with the current cache size.
+   * 
+   * @return true if the cache is used
+   */
+  static boolean isEnabled() {
+    return getMaxSize() > 0;
+  }
+
+  static byte[] sha256(byte[] content) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(content);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 not available",ex);
+    }
+  }
+
+  // Restore the object from the template, or return null if the template 
+  // got deleted because the entry was evicted meanwhile.
+  private static Object restore(String key, File file, Entry entry)
+          throws PersistenceException, IOException, ResourceInstantiationException {
+    try {
+      if(file != null && ApplicationSnapshot.isRecording()) {
+        ApplicationSnapshot.recordTemplate(key, entry.hash, Files.readAllBytes(entry.template.toPath()));
+      }
+      Object restored = PersistenceManager.loadObjectFromUrl(entry.template.toURI().toURL());
+      HITS.incrementAndGet();
+      return restored;
+    } catch (IOException | PersistenceException ex) {
+      if(entry.template.exists()) {
+        throw ex;
+      }
+      return null;
+    }
+  }
+
+  // Replace the expected entry, unless another thread already put one for
+  // the same content, evict what does not fit, delete the templates which
+  // are not used any more, and return the entry which is now in the cache.
+  private static Entry put(String key, Entry expected, Entry entry) {
+    List<File> removed = new ArrayList<>();
+    Entry result;
+    synchronized(CACHE) {
+      Entry current = CACHE.get(key);
+      if(current != null && current != expected && current.template != entry.template &&
+         Arrays.equals(current.hash, entry.hash)) {
+        removed.add(entry.template);
+        result = current;
+      } else {
+        if(current != null && current.template != entry.template) {
+          removed.add(current.template);
+        }
+        CACHE.put(key, entry);
+        result = entry;
+      }
+      Iterator<Entry> it = CACHE.values().iterator();
+      while(CACHE.size() > getMaxSize() && it.hasNext()) {
+        Entry eldest = it.next();
+        if(eldest != result) {
+          removed.add(eldest.template);
+          it.remove();
+        }
+      }
+    }
+    for(File template : removed) {
+      template.delete();
+    }
+    return result;
+  }
+
+  private static File writeTemplate(byte[] template) throws IOException {
+    File file = File.createTempFile("modularpipelines", ".gapp");
+    file.deleteOnExit();
+    Files.write(file.toPath(), template);
+    return file;
+  }
+
+  private static String getKey(URL url) {
+    File file = toFile(url);
+    if(file != null) {
+      try {
+        return file.getCanonicalFile().toURI().toString();
+      } catch (IOException ex) {
+        // fall back to the URL as given
+      }
+    }
+    return url.toExternalForm();
+  }
+
+  private static File toFile(URL url) {
+    if(!"file".equals(url.getProtocol())) {
+      return null;
+    }
+    try {
+      return new File(url.toURI());
+    } catch (URISyntaxException | IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  private static byte[] read(URL url, File file) throws IOException {
+    if(file != null) {
+      return Files.readAllBytes(file.toPath());
+    }
+    try (InputStream is = url.openStream()) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while((n = is.read(buffer)) > 0) {
+        bos.write(buffer, 0, n);
+      }
+      return bos.toByteArray();
+    }
+  }
+
+  // Writes a template and replaces the URLs and resource references, which
+  // may be relative to the pipeline file, by what they resolve to.
+  private static class TemplateOutputStream extends ObjectOutputStream {
+    TemplateOutputStream(OutputStream os) throws IOException {
+      super(os);
+      enableReplaceObject(true);
+    }
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+      try {
+        if(obj instanceof PersistenceManager.URLHolder) {
+          return new ResolvedURL((URL)((PersistenceManager.URLHolder)obj).createObject());
+        } else if(obj instanceof PersistenceManager.RRPersistence) {
+          return new ResolvedReference(
+                  ((ResourceReference)((PersistenceManager.RRPersistence)obj).createObject()).toURI());
+        }
+      } catch (PersistenceException | ResourceInstantiationException ex) {
+        throw new IOException("Cannot resolve "+obj, ex);
+      }
+      return obj;
+    }
+  }
+
+  private static class ResolvedURL implements Persistence {
+    private static final long serialVersionUID = 1L;
+    private URL url;
+    ResolvedURL(URL url) {
+      this.url = url;
+    }
+    @Override
+    public void extractDataFromSource(Object source) {
+      url = (URL)source;
+    }
+    @Override
+    public Object createObject() {
+      return url;
+    }
+  }
+
+  private static class ResolvedReference implements Persistence {
+    private static final long serialVersionUID = 1L;
+    private URI uri;
+    ResolvedReference(URI uri) {
+      this.uri = uri;
+    }
+    @Override
+    public void extractDataFromSource(Object source) {
+      uri = ((ResourceReference)source).toURI();
+    }
+    @Override
+    public Object createObject() throws PersistenceException {
+      try {
+        return new ResourceReference(uri);
+      } catch (URISyntaxException ex) {
+        throw new PersistenceException(ex);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.util.GateRuntimeException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Loads the controllers of Pipeline PRs in the background.
+ *
+ * The number of loader threads is set per controller with the config
+ * setting loadparallelism and applies to the Pipeline PRs of that controller
+ * and, unless they set their own, of its sub-pipelines. Without such a
+ * setting, the property at.ofai.gate.modularpipelines.loadParallelism is
+ * looked up in the current ConfigScope, or the system properties if there
+ * is none. If the number is greater than 1, the pipelines of sibling
+ * Pipeline PRs get loaded in parallel using that many threads. Whoever
+ * needs the controller of a Pipeline PR waits for its load task, or runs
+ * it itself if no loader thread has started it yet. Since a load can only
+ * wait for the loads of its own sub-pipelines, this never deadlocks,
+ * even if all loader threads are busy. Idle loader threads terminate
+ * after a while.
+ * <p>
+ * Only the initialisation of the resources runs in parallel: reading a 
+ * pipeline file registers the plugins it needs with the CreoleRegister,
+ * which is not safe for concurrent use, so only one thread at a time reads
+ * a pipeline file, until the resources in it get created. The state of 
+ * the PersistenceManager while a file is loaded is kept per thread, so 
+ * loads in different threads do not interfere otherwise.
+ *
+ * @author Johann Petrak
+ */
+class PipelineLoader {
+
+  protected static final Logger LOGGER = Logger.getLogger(PipelineLoader.class);
+
+  public static final String PARALLELISM_PROPERTY = "at.ofai.gate.modularpipelines.loadParallelism";
+
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  // the parallelism set by the config of the controller being loaded
+  private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+  private static final Map<Integer,ThreadPoolExecutor> EXECUTORS = new HashMap<>();
+
+  // held by the thread which is reading a pipeline file
+  private static final ReentrantLock READING = new ReentrantLock();
+
+  private PipelineLoader() {}
+
+  /**
+   * The number of loader threads to use for the Pipeline PRs created in 
+   * the calling thread.
+   * @return the parallelism, 1 or less means pipelines are loaded serially
+   */
+  static int getParallelism() {
+    Integer parallelism = CURRENT.get();
+    if(parallelism != null) {
+      return parallelism;
+    }
+    String value = ConfigScope.getProperty(ConfigScope.current(), PARALLELISM_PROPERTY);
+    if(value == null) {
+      return 1;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException ex) {
+      throw new GateRuntimeException("Property "+PARALLELISM_PROPERTY+" is not a number: "+value, ex);
+    }
+  }
+
+  /**
+   * The parallelism set for the calling thread.
+   * @return the parallelism or null if none is set
+   */
+  static Integer current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Make a parallelism current for the calling thread.
+   * @param parallelism the parallelism, null to use the property again
+   * @return the parallelism that was current before, to pass to restore
+   */
+  static Integer enter(Integer parallelism) {
+    Integer previous = CURRENT.get();
+    CURRENT.set(parallelism);
+    return previous;
+  }
+
+  /**
+   * Make the parallelism current again which was current before enter was called.
+   * @param previous the parallelism returned by enter
+   */
+  static void restore(Integer previous) {
+    if(previous == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(previous);
+    }
+  }
+
+  /**
+   * Start reading a pipeline file, after any other thread has finished
+   * reading one.
+   */
+  static void startReading() {
+    READING.lock();
+  }
+
+  /**
+   * Let other threads read pipeline files again, called when the file
+   * has been read and its resources get created, and after loading it. 
+   * Does nothing if the calling thread is not reading a file.
+   */
+  static void finishedReading() {
+    while(READING.isHeldByCurrentThread()) {
+      READING.unlock();
+    }
+  }
+
+  /**
+   * Start the given load task in the background.
+   * @param task the task
+   * @param parallelism the number of loader threads to use
+   */
+  static void submit(FutureTask<?> task, int parallelism) {
+    getExecutor(Math.max(parallelism, 1)).execute(task);
+  }
+
+  private static synchronized ThreadPoolExecutor getExecutor(int n) {
+    ThreadPoolExecutor executor = EXECUTORS.get(n);
+    if(executor == null) {
+      LOGGER.debug("Creating up to "+n+" pipeline loader threads");
+      final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      final AtomicInteger number = new AtomicInteger();
+      executor = new ThreadPoolExecutor(n, n, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ModularPipelines-Loader-"+n+"-"+number.incrementAndGet());
+          thread.setDaemon(true);
+          thread.setContextClassLoader(loader);
+          return thread;
+        }
+      });
+      executor.allowCoreThreadTimeOut(true);
+      EXECUTORS.put(n, executor);
+    }
+    return executor;
+  }
+
+}
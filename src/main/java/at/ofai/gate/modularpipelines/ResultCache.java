@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.persist.GateAwareObjectInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * The cache of the results of a sub-pipeline, for Pipeline PRs which
+ * memoize their results.
+ *
+ * Results are keyed by the SHA-256 hash of everything the sub-pipeline
+ * reads and of the sub-pipeline itself. The cache keeps the most recently
+ * used results in memory and, if a directory is given, all results on
+ * disk, so they survive the process. Each Pipeline PR has its own cache,
+ * which it shares with its duplicates and releases when it gets deleted;
+ * Pipeline PRs which use the same directory also share the results on 
+ * disk.
+ *
+ * @author Johann Petrak
+ */
+public class ResultCache {
+
+  protected static final Logger LOGGER = Logger.getLogger(ResultCache.class);
+
+  private final String name;
+  private final int maxEntries;
+  private final File configuredDirectory;
+  private final File directory;
+  private final Map<String,CachedResult> memory;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder stores = new LongAdder();
+
+  private ResultCache(String name, final int maxEntries, File configuredDirectory, File directory) {
+    this.name = name;
+    this.maxEntries = maxEntries;
+    this.configuredDirectory = configuredDirectory;
+    this.directory = directory;
+    this.memory = new LinkedHashMap<String,CachedResult>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,CachedResult> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Create a cache for a sub-pipeline.
+   *
+   * @param name the name of the sub-pipeline, usually its URL
+   * @param maxEntries the maximum number of results kept in memory
+   * @param directory the directory for keeping the results on disk, or null
+   * @return the cache
+   */
+  static ResultCache create(String name, int maxEntries, File directory) {
+    if(directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      LOGGER.warn("Cannot create the result cache directory "+directory+", not using it");
+      return new ResultCache(name, maxEntries, directory, null);
+    }
+    return new ResultCache(name, maxEntries, directory, directory);
+  }
+
+  /**
+   * Check if the cache was created with these settings.
+   *
+   * @param name the name of the sub-pipeline
+   * @param maxEntries the maximum number of results kept in memory
+   * @param directory the directory for the results on disk, or null
+   * @return true if the settings are the same
+   */
+  boolean isFor(String name, int maxEntries, File directory) {
+    return this.name.equals(name) && this.maxEntries == maxEntries &&
+           Objects.equals(configuredDirectory, directory);
+  }
+
+  /**
+   * Look up the result for the key, in memory first, then on disk.
+   *
+   * @param key the key
+   * @return the result or null
+   */
+  CachedResult lookup(String key) {
+    CachedResult result;
+    synchronized(memory) {
+      result = memory.get(key);
+    }
+    if(result != null) {
+      hits.increment();
+      return result;
+    }
+    result = readFromDisk(key);
+    if(result != null) {
+      diskHits.increment();
+      synchronized(memory) {
+        memory.put(key, result);
+      }
+      return result;
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Store the result for the key.
+   *
+   * @param key the key
+   * @param result the result
+   */
+  void store(String key, CachedResult result) {
+    synchronized(memory) {
+      memory.put(key, result);
+    }
+    stores.increment();
+    writeToDisk(key, result);
+  }
+
+  private CachedResult readFromDisk(String key) {
+    if(directory == null) {
+      return null;
+    }
+    File file = new File(directory, key+".ser");
+    if(!file.exists()) {
+      return null;
+    }
+    try (InputStream in = Files.newInputStream(file.toPath());
+         ObjectInputStream ois = new GateAwareObjectInputStream(in)) {
+      return (CachedResult)ois.readObject();
+    } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+      LOGGER.warn("Could not read cached result "+file+", ignoring it: "+ex);
+      return null;
+    }
+  }
+
+  private void writeToDisk(String key, CachedResult result) {
+    if(directory == null) {
+      return;
+    }
+    File file = new File(directory, key+".ser");
+    try {
+      // write to a temporary file first so no other process ever reads 
+      // a partially written result
+      File tmp = File.createTempFile(key, ".tmp", directory);
+      try (OutputStream out = Files.newOutputStream(tmp.toPath());
+           ObjectOutputStream oos = new ObjectOutputStream(out)) {
+        oos.writeObject(result);
+      } catch (IOException ex) {
+        Files.deleteIfExists(tmp.toPath());
+        throw ex;
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      // e.g. a feature value which is not serializable
+      LOGGER.debug("Could not write cached result "+file+": "+ex);
+    }
+  }
+
+  /**
+   * The number of results found in memory.
+   * @return count
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * The number of results found on disk but not in memory.
+   * @return count
+   */
+  public long getDiskHitCount() {
+    return diskHits.sum();
+  }
+
+  /**
+   * The number of results not found.
+   * @return count
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * The number of results stored.
+   * @return count
+   */
+  public long getStoreCount() {
+    return stores.sum();
+  }
+
+  /**
+   * The fraction of lookups which found a result, in memory or on disk.
+   * @return the hit rate, 0.0 if nothing was looked up yet
+   */
+  public double getHitRate() {
+    long found = getHitCount() + getDiskHitCount();
+    long total = found + getMissCount();
+    return total == 0 ? 0.0 : (double)found / total;
+  }
+
+  /**
+   * The number of results in memory.
+   * @return count
+   */
+  public int size() {
+    synchronized(memory) {
+      return memory.size();
+    }
+  }
+
+  /**
+   * Remove all results from memory.
+   */
+  public void clear() {
+    synchronized(memory) {
+      memory.clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ResultCache "+name+": hits="+getHitCount()+" diskHits="+getDiskHitCount()+
+            " misses="+getMissCount()+" hitRate="+String.format("%.3f", getHitRate())+
+            " entries="+size();
+  }
+
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Document;
+import gate.util.GateRuntimeException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * A condition for running a PR on a document, as given by an expression
+ * in a prrun setting of the config.
+ *
+ * The expression is compiled once when the config is read, checking it 
+ * for a document then only evaluates the compiled predicate. The following
+ * can be used in an expression:
+ * <ul>
+ * <li>size: the length of the document content</li>
+ * <li>feature("name"): the value of the document feature with that name, 
+ * or null if there is no such feature</li>
+ * <li>sample(rate): true for a random fraction of about rate of the 
+ * documents, e.g. sample(0.05) for 5 percent</li>
+ * <li>numbers, strings in double quotes, true, false (in any case) and null</li>
+ * <li>the comparisons &lt;, &lt;=, &gt;, &gt;=, == and !=, which compare 
+ * numerically if both sides are numbers, otherwise as strings</li>
+ * <li>!, &amp;&amp;, || and parentheses</li>
+ * </ul>
+ * For example: size &lt; 500000 &amp;&amp; feature("lang") == "en"
+ *
+ * @author Johann Petrak
+ */
+final class RunCondition implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String expression;
+  private final transient Predicate<Document> predicate;
+
+  private RunCondition(String expression, Predicate<Document> predicate) {
+    this.expression = expression;
+    this.predicate = predicate;
+  }
+
+  /**
+   * Compile the expression.
+   *
+   * @param expression the expression
+   * @return the compiled condition
+   * @throws GateRuntimeException if the expression is not valid
+   */
+  static RunCondition compile(String expression) {
+    Parser parser = new Parser(expression);
+    Predicate<Document> predicate = parser.parseOr();
+    parser.expectEnd();
+    return new RunCondition(expression, predicate);
+  }
+
+  /**
+   * Get the value of a prrun setting given as a string: the run flag if 
+   * it is just true or false, otherwise the compiled condition.
+   *
+   * @param expression the value of the setting
+   * @return a Boolean or the RunCondition
+   * @throws GateRuntimeException if the expression is not valid
+   */
+  static Object runFlag(String expression) {
+    RunCondition condition = compile(expression);
+    Boolean flag = condition.constant();
+    return flag != null ? (Object)flag : condition;
+  }
+
+  /**
+   * Get the value of an expression which is just true or false, which 
+   * is a plain run flag for the PR.
+   *
+   * @return the value, or null if the expression is anything else
+   */
+  Boolean constant() {
+    String value = expression.trim();
+    return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false") ?
+            Boolean.valueOf(value) : null;
+  }
+
+  /**
+   * Check if the PR should run for the document.
+   *
+   * @param doc the document
+   * @return true if the condition holds for the document
+   */
+  boolean test(Document doc) {
+    return predicate.test(doc);
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+  // only the expression is serialized, it is compiled again when read
+  private Object readResolve() {
+    return compile(expression);
+  }
+
+  /**
+   * A value in an expression: constants are only computed once, numbers 
+   * are kept as double to avoid boxing when comparing them.
+   */
+  private interface Operand {
+    /** The value for the document, a Double for numbers */
+    Object value(Document doc);
+  }
+
+  private static final class Constant implements Operand {
+    final Object value;
+    // the value as a number, converted once when the expression is compiled
+    final Double number;
+    Constant(Object value) {
+      this.value = value;
+      this.number = toNumber(value);
+    }
+    @Override
+    public Object value(Document doc) {
+      return value;
+    }
+  }
+
+  private static final class Size implements Operand {
+    @Override
+    public Object value(Document doc) {
+      return (double)doc.getContent().size();
+    }
+  }
+
+  private static final List<String> OPERATORS = Arrays.asList("&&", "||", "==", "!=", "<=", ">=");
+
+  private static final class Parser {
+    private final String expression;
+    private final List<String> tokens = new ArrayList<>();
+    private final List<Integer> positions = new ArrayList<>();
+    private int next = 0;
+
+    Parser(String expression) {
+      this.expression = expression;
+      tokenize();
+    }
+
+    private GateRuntimeException error(String message) {
+      int pos = next < positions.size() ? positions.get(next) : expression.length();
+      return new GateRuntimeException("Invalid prrun expression, "+message+
+              " at position "+pos+": "+expression);
+    }
+
+    private void tokenize() {
+      int i = 0;
+      int n = expression.length();
+      while(i < n) {
+        char c = expression.charAt(i);
+        int start = i;
+        if(Character.isWhitespace(c)) {
+          i++;
+          continue;
+        } else if(c == '"') {
+          StringBuilder sb = new StringBuilder("\"");
+          i++;
+          while(i < n && expression.charAt(i) != '"') {
+            if(expression.charAt(i) == '\\' && i + 1 < n) {
+              i++;
+            }
+            sb.append(expression.charAt(i++));
+          }
+          if(i >= n) {
+            throw new GateRuntimeException("Invalid prrun expression, unterminated string at position "+
+                    start+": "+expression);
+          }
+          i++;
+          tokens.add(sb.toString());
+        } else if(Character.isDigit(c) || c == '.' || 
+                (c == '-' && i + 1 < n && Character.isDigit(expression.charAt(i + 1)))) {
+          i++;
+          while(i < n && (Character.isLetterOrDigit(expression.charAt(i)) || expression.charAt(i) == '.')) {
+            i++;
+          }
+          tokens.add(expression.substring(start, i));
+        } else if(Character.isLetter(c)) {
+          while(i < n && Character.isLetterOrDigit(expression.charAt(i))) {
+            i++;
+          }
+          tokens.add(expression.substring(start, i));
+        } else if(i + 1 < n && OPERATORS.contains(expression.substring(i, i + 2))) {
+          tokens.add(expression.substring(i, i + 2));
+          i += 2;
+        } else if("()!<>,".indexOf(c) >= 0) {
+          tokens.add(String.valueOf(c));
+          i++;
+        } else {
+          throw new GateRuntimeException("Invalid prrun expression, unexpected character '"+c+
+                  "' at position "+i+": "+expression);
+        }
+        positions.add(start);
+      }
+    }
+
+    private String peek() {
+      return next < tokens.size() ? tokens.get(next) : null;
+    }
+
+    private boolean accept(String token) {
+      if(token.equals(peek())) {
+        next++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(String token) {
+      if(!accept(token)) {
+        throw error("expected "+token);
+      }
+    }
+
+    void expectEnd() {
+      if(next < tokens.size()) {
+        throw error("unexpected "+peek());
+      }
+    }
+
+    Predicate<Document> parseOr() {
+      Predicate<Document> result = parseAnd();
+      while(accept("||")) {
+        Predicate<Document> left = result;
+        Predicate<Document> right = parseAnd();
+        result = doc -> left.test(doc) || right.test(doc);
+      }
+      return result;
+    }
+
+    private Predicate<Document> parseAnd() {
+      Predicate<Document> result = parseNot();
+      while(accept("&&")) {
+        Predicate<Document> left = result;
+        Predicate<Document> right = parseNot();
+        result = doc -> left.test(doc) && right.test(doc);
+      }
+      return result;
+    }
+
+    private Predicate<Document> parseNot() {
+      if(accept("!")) {
+        Predicate<Document> operand = parseNot();
+        return doc -> !operand.test(doc);
+      }
+      if(accept("(")) {
+        Predicate<Document> result = parseOr();
+        expect(")");
+        return result;
+      }
+      if(accept("sample")) {
+        expect("(");
+        Operand rate = parseOperand();
+        expect(")");
+        if(!(rate instanceof Constant) || !(((Constant)rate).value instanceof Double)) {
+          throw error("the rate of sample must be a number");
+        }
+        double r = (Double)((Constant)rate).value;
+        return doc -> ThreadLocalRandom.current().nextDouble() < r;
+      }
+      Operand left = parseOperand();
+      String op = peek();
+      if(op == null || !(op.equals("<") || op.equals("<=") || op.equals(">") || 
+              op.equals(">=") || op.equals("==") || op.equals("!="))) {
+        // a value on its own, e.g. a feature or true
+        if(left instanceof Constant) {
+          boolean result = isTrue(((Constant)left).value);
+          return doc -> result;
+        }
+        return doc -> isTrue(left.value(doc));
+      }
+      next++;
+      Operand right = parseOperand();
+      return comparison(left, op, right);
+    }
+
+    private Operand parseOperand() {
+      String token = peek();
+      if(token == null) {
+        throw error("expected a value");
+      }
+      next++;
+      if(token.startsWith("\"")) {
+        return new Constant(token.substring(1));
+      } else if(token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+        return new Constant(Boolean.valueOf(token));
+      } else if(token.equals("null")) {
+        return new Constant(null);
+      } else if(token.equals("size")) {
+        return new Size();
+      } else if(token.equals("feature")) {
+        expect("(");
+        String name = peek();
+        if(name == null || !name.startsWith("\"")) {
+          throw error("expected the feature name as a string");
+        }
+        next++;
+        expect(")");
+        String featureName = name.substring(1);
+        return doc -> {
+          Object value = doc.getFeatures().get(featureName);
+          return value instanceof Number ? (Object)((Number)value).doubleValue() : value;
+        };
+      } else if(Character.isDigit(token.charAt(0)) || token.charAt(0) == '.' || token.charAt(0) == '-') {
+        try {
+          return new Constant(Double.parseDouble(token));
+        } catch (NumberFormatException ex) {
+          next--;
+          throw error("not a number: "+token);
+        }
+      }
+      next--;
+      throw error("unexpected "+token);
+    }
+  }
+
+  private static boolean isTrue(Object value) {
+    if(value instanceof Boolean) {
+      return (Boolean)value;
+    }
+    return value != null && Boolean.parseBoolean(value.toString());
+  }
+
+  private static Double toNumber(Object value) {
+    if(value instanceof Double) {
+      return (Double)value;
+    }
+    if(value == null || value instanceof Boolean) {
+      return null;
+    }
+    String string = value.toString().trim();
+    // only try to parse what can be a number, so that comparing a string
+    // feature does not throw and catch an exception for every document
+    char first = string.isEmpty() ? ' ' : string.charAt(0);
+    if(!(Character.isDigit(first) || first == '-' || first == '+' || first == '.' || 
+            first == 'N' || first == 'I')) {
+      return null;
+    }
+    try {
+      return Double.parseDouble(string);
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  // The result of comparing two values as numbers if possible, otherwise
+  // as strings, null if one of them is null
+  private static Integer compare(Object a, Object b) {
+    if(a == null || b == null) {
+      return null;
+    }
+    if(a instanceof Double || b instanceof Double) {
+      Double x = toNumber(a);
+      Double y = toNumber(b);
+      if(x != null && y != null) {
+        return Double.compare(x, y);
+      }
+    }
+    return a.toString().compareTo(b.toString());
+  }
+
+  // Like compare, for a constant b with its number bn computed beforehand
+  private static Integer compareWith(Object a, Object b, Double bn) {
+    if(a == null || b == null) {
+      return null;
+    }
+    if(bn != null && (a instanceof Double || b instanceof Double)) {
+      Double x = toNumber(a);
+      if(x != null) {
+        return Double.compare(x, bn);
+      }
+    }
+    return a.toString().compareTo(b.toString());
+  }
+
+  private static String mirrored(String op) {
+    switch(op) {
+      case "<":  return ">";
+      case "<=": return ">=";
+      case ">":  return "<";
+      case ">=": return "<=";
+      default:   return op;
+    }
+  }
+
+  private static Predicate<Document> comparison(Operand left, String op, Operand right) {
+    if(left instanceof Constant && right instanceof Constant) {
+      // nothing depends on the document, so the result is computed once
+      boolean result = general(left, op, right).test(null);
+      return doc -> result;
+    }
+    if(left instanceof Constant) {
+      // 500 > size is the same as size < 500
+      return comparison(right, mirrored(op), left);
+    }
+    if(!(right instanceof Constant)) {
+      return general(left, op, right);
+    }
+    Constant constant = (Constant)right;
+    Object b = constant.value;
+    Double bn = constant.number;
+    // the common case of comparing the size with a number
+    if(left instanceof Size && b instanceof Double) {
+      double c = bn;
+      switch(op) {
+        case "<":  return doc -> doc.getContent().size() < c;
+        case "<=": return doc -> doc.getContent().size() <= c;
+        case ">":  return doc -> doc.getContent().size() > c;
+        case ">=": return doc -> doc.getContent().size() >= c;
+        case "==": return doc -> doc.getContent().size() == c;
+        default:   return doc -> doc.getContent().size() != c;
+      }
+    }
+    switch(op) {
+      case "==": return doc -> { Object a = left.value(doc); 
+                                 return a == null ? b == null : b != null && compareWith(a, b, bn) == 0; };
+      case "!=": return doc -> { Object a = left.value(doc); 
+                                 return a == null ? b != null : b == null || compareWith(a, b, bn) != 0; };
+      case "<":  return doc -> { Integer r = compareWith(left.value(doc), b, bn); return r != null && r < 0; };
+      case "<=": return doc -> { Integer r = compareWith(left.value(doc), b, bn); return r != null && r <= 0; };
+      case ">":  return doc -> { Integer r = compareWith(left.value(doc), b, bn); return r != null && r > 0; };
+      default:   return doc -> { Integer r = compareWith(left.value(doc), b, bn); return r != null && r >= 0; };
+    }
+  }
+
+  private static Predicate<Document> general(Operand left, String op, Operand right) {
+    switch(op) {
+      case "==": return doc -> { Object a = left.value(doc); Object b = right.value(doc); 
+                                 return a == null ? b == null : b != null && compare(a, b) == 0; };
+      case "!=": return doc -> { Object a = left.value(doc); Object b = right.value(doc); 
+                                 return a == null ? b != null : b == null || compare(a, b) != 0; };
+      case "<":  return doc -> { Integer r = compare(left.value(doc), right.value(doc)); return r != null && r < 0; };
+      case "<=": return doc -> { Integer r = compare(left.value(doc), right.value(doc)); return r != null && r <= 0; };
+      case ">":  return doc -> { Integer r = compare(left.value(doc), right.value(doc)); return r != null && r > 0; };
+      default:   return doc -> { Integer r = compare(left.value(doc), right.value(doc)); return r != null && r >= 0; };
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.creole.Parameter;
+import gate.creole.ResourceData;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateRuntimeException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the PRs which are shared by a controller and its 
+ * duplicates, so that a shared PR only gets deleted together with the
+ * last controller using it.
+ *
+ * @author Johann Petrak
+ */
+final class SharedPRs {
+
+  // the number of controllers using each shared PR
+  private static final Map<ProcessingResource,Integer> USERS = new IdentityHashMap<>();
+  // the settings of the controller which last set the parameters of each
+  // shared PR, see ParameterPlan.applyShared
+  private static final Map<ProcessingResource,Object> SETTINGS = new IdentityHashMap<>();
+  // the runtime parameter values each shared PR had when it was first 
+  // shared, before any controller could set its own while others run
+  private static final Map<ProcessingResource,Map<String,Object>> DEFAULTS = new IdentityHashMap<>();
+
+  private SharedPRs() {}
+
+  /**
+   * Record that one more controller uses the PR.
+   * 
+   * When a PR gets shared for the first time, the controller it was
+   * duplicated from is counted as well, and the values of its runtime 
+   * parameters are recorded.
+   *
+   * @param pr the PR
+   */
+  static synchronized void addUser(ProcessingResource pr) {
+    Integer users = USERS.get(pr);
+    if(users == null) {
+      DEFAULTS.put(pr, runtimeParameterValues(pr));
+    }
+    USERS.put(pr, users == null ? 2 : users + 1);
+  }
+
+  /**
+   * The value a runtime parameter of the PR had when it was first shared.
+   *
+   * @param pr the PR
+   * @param name the name of the parameter
+   * @return the value
+   */
+  static synchronized Object getDefaultValue(ProcessingResource pr, String name) {
+    Map<String,Object> defaults = DEFAULTS.get(pr);
+    if(defaults == null || !defaults.containsKey(name)) {
+      try {
+        return pr.getParameterValue(name);
+      } catch (ResourceInstantiationException ex) {
+        throw new GateRuntimeException("Could not get parameter " + name + " of PR " + pr.getName(), ex);
+      }
+    }
+    return defaults.get(name);
+  }
+
+  private static Map<String,Object> runtimeParameterValues(ProcessingResource pr) {
+    Map<String,Object> values = new HashMap<>();
+    ResourceData data = Gate.getCreoleRegister().get(pr.getClass().getName());
+    if(data == null) {
+      return values;
+    }
+    for(List<Parameter> disjunction : data.getParameterList().getRuntimeParameters()) {
+      for(Parameter parameter : disjunction) {
+        try {
+          values.put(parameter.getName(), pr.getParameterValue(parameter.getName()));
+        } catch (ResourceInstantiationException ex) {
+          throw new GateRuntimeException("Could not get parameter " + parameter.getName() + 
+                  " of PR " + pr.getName(), ex);
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Record that a controller does not use the PR any more.
+   *
+   * @param pr the PR
+   * @return true if there are no other users and the PR can be deleted
+   */
+  static synchronized boolean removeUser(ProcessingResource pr) {
+    Integer users = USERS.get(pr);
+    if(users == null || users <= 1) {
+      USERS.remove(pr);
+      SETTINGS.remove(pr);
+      DEFAULTS.remove(pr);
+      return true;
+    }
+    USERS.put(pr, users - 1);
+    return false;
+  }
+
+  /**
+   * Record which settings were used for the parameters of the PR.
+   *
+   * @param pr the PR
+   * @param settings identifies the settings of a controller
+   * @return false if the PR already has these settings
+   */
+  static synchronized boolean setAppliedSettings(ProcessingResource pr, Object settings) {
+    return SETTINGS.put(pr, settings) != settings;
+  }
+
+  /**
+   * Check if the PR is still used by more than one controller.
+   *
+   * @param pr the PR
+   * @return true if the PR is shared
+   */
+  static synchronized boolean isShared(ProcessingResource pr) {
+    return USERS.containsKey(pr);
+  }
+
+  /**
+   * The number of controllers using the PR.
+   *
+   * @param pr the PR
+   * @return number of users, 0 if the PR is not shared
+   */
+  static synchronized int getUsers(ProcessingResource pr) {
+    Integer users = USERS.get(pr);
+    return users == null ? 0 : users;
+  }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The statistics of one stage of a controller run in staged mode.
+ *
+ * A stage whose input queue is mostly full and whose threads rarely wait
+ * for input is a bottleneck, and may benefit from more threads.
+ *
+ * @author Johann Petrak
+ */
+public class StageStatistics {
+
+  private final String name;
+  private final int threads;
+  private final BlockingQueue<?> input;
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  final LongAdder documents = new LongAdder();
+  final LongAdder busyNanos = new LongAdder();
+  final LongAdder inputWaitNanos = new LongAdder();
+  final LongAdder outputStallNanos = new LongAdder();
+  private volatile long startNanos;
+  private volatile long endNanos;
+
+  StageStatistics(String name, int threads, BlockingQueue<?> input) {
+    this.name = name;
+    this.threads = threads;
+    this.input = input;
+  }
+
+  void started() {
+    startNanos = System.nanoTime();
+  }
+
+  void finished() {
+    endNanos = System.nanoTime();
+  }
+
+  void queued() {
+    int depth = input.size();
+    int max;
+    while(depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+      // retry
+    }
+  }
+
+  /**
+   * The name of the PR of the stage.
+   * @return name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The number of threads of the stage.
+   * @return number of threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * The number of documents currently waiting for the stage.
+   * @return queue depth
+   */
+  public int getQueueDepth() {
+    return input.size();
+  }
+
+  /**
+   * The largest number of documents which were waiting for the stage.
+   * @return queue depth
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * The number of documents the stage has processed.
+   * @return count
+   */
+  public long getDocumentCount() {
+    return documents.sum();
+  }
+
+  /**
+   * Total time the threads of the stage spent processing documents.
+   * @return nanoseconds
+   */
+  public long getBusyNanos() {
+    return busyNanos.sum();
+  }
+
+  /**
+   * Total time the threads of the stage spent waiting for a document.
+   * @return nanoseconds
+   */
+  public long getInputWaitNanos() {
+    return inputWaitNanos.sum();
+  }
+
+  /**
+   * Total time the threads of the stage were stalled because the queue
+   * of the next stage was full.
+   * @return nanoseconds
+   */
+  public long getOutputStallNanos() {
+    return outputStallNanos.sum();
+  }
+
+  /**
+   * The documents processed per second since the stage was started, up to
+   * when it finished.
+   * @return documents per second
+   */
+  public double getThroughput() {
+    long start = startNanos;
+    if(start == 0) {
+      return 0.0;
+    }
+    long end = endNanos == 0 ? System.nanoTime() : endNanos;
+    return end > start ? getDocumentCount() * 1.0e9 / (end - start) : 0.0;
+  }
+
+  @Override
+  public String toString() {
+    return "Stage "+name+": threads="+threads+" documents="+getDocumentCount()+
+            " docs/s="+String.format("%.2f", getThroughput())+
+            " busy="+getBusyNanos()/1000000+"ms inputWait="+getInputWaitNanos()/1000000+
+            "ms outputStall="+getOutputStallNanos()/1000000+"ms maxQueue="+getMaxQueueDepth();
+  }
+
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2013 Austrian Research Institute for Artificial Intelligence (OFAI).
+ * Copyright (C) 2014-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-ModularPipelines
+ * (see https://github.com/johann-petrak/gateplugin-ModularPipelines)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package at.ofai.gate.modularpipelines;
+
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.AnalyserRunningStrategy;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.RunningStrategy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Processes the documents of a corpus with each PR of a controller
+ * running as a stage in threads of its own.
+ *
+ * Each stage takes the documents from a bounded queue and, after running
+ * its PR, puts them into the queue of the next stage, so while a later
+ * stage works on one document, the earlier stages can already work on the
+ * next ones. Only the PRs themselves exist once, except for Pipeline PRs
+ * with more than one stage thread, which get duplicated for each
+ * additional thread. The calling thread loads the documents, sets the
+ * document features from the config and puts the documents into the queue
+ * of the first stage, the last stage unloads documents which had not been
+ * loaded before. The stage threads are created once for the stages and 
+ * stopped by cleanup().
+ *
+ * @author Johann Petrak
+ */
+class StagedRunner {
+
+  protected static final Logger LOGGER = Logger.getLogger(StagedRunner.class);
+
+  // marks the end of the documents in a queue
+  private static final Object END = new Object();
+
+  private static final class Item {
+    final Document doc;
+    final boolean unload;
+    // set if a Pipeline ran out of time with the abort policy
+    boolean aborted = false;
+    Item(Document doc, boolean unload) {
+      this.doc = doc;
+      this.unload = unload;
+    }
+  }
+
+  private final ParametrizedCorpusController controller;
+  private final int queueSize;
+  // the PRs of the controller when this was created
+  private final List<ProcessingResource> prs;
+  // for each stage, the PR followed by its duplicates
+  private final List<List<ProcessingResource>> instances;
+  private volatile List<StageStatistics> statistics = Collections.emptyList();
+  private final ExecutorService executor;
+
+  /**
+   * Create the stages for the PRs of the controller.
+   *
+   * @param controller the controller
+   * @param queueSize the capacity of the queue in front of each stage
+   * @throws ResourceInstantiationException if a PR cannot be duplicated
+   */
+  StagedRunner(ParametrizedCorpusController controller, int queueSize)
+          throws ResourceInstantiationException {
+    this.controller = controller;
+    this.queueSize = Math.max(queueSize, 1);
+    this.prs = new ArrayList<>(controller.getPRs());
+    List<List<ProcessingResource>> all = new ArrayList<>(prs.size());
+    try {
+      for(ProcessingResource pr : prs) {
+        List<ProcessingResource> list = new ArrayList<>();
+        all.add(list);
+        list.add(pr);
+        for(int i = 1; i < getThreads(pr); i++) {
+          list.add((ProcessingResource)Factory.duplicate(pr));
+        }
+      }
+    } catch (ResourceInstantiationException ex) {
+      deleteDuplicates(all);
+      throw ex;
+    }
+    instances = all;
+    int nThreads = 0;
+    for(List<ProcessingResource> list : instances) {
+      nThreads += list.size();
+    }
+    final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    final AtomicInteger number = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(Math.max(nThreads, 1), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ModularPipelines-Stage-"+controller.getName()+"-"+number.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setContextClassLoader(loader);
+        return thread;
+      }
+    });
+  }
+
+  private static int getThreads(ProcessingResource pr) {
+    return pr instanceof Pipeline ? Math.max(((Pipeline)pr).getStageThreads(), 1) : 1;
+  }
+
+  /**
+   * Check if the stages can still be used for the controller.
+   *
+   * @param queueSize the queue capacity needed
+   * @return true if nothing changed which would need different stages
+   */
+  boolean isFor(int queueSize) {
+    if(Math.max(queueSize, 1) != this.queueSize || !prs.equals(controller.getPRs())) {
+      return false;
+    }
+    for(int i = 0; i < prs.size(); i++) {
+      if(getThreads(prs.get(i)) != instances.get(i).size()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The statistics of the stages of the current or last run.
+   * @return list with the statistics of each stage
+   */
+  List<StageStatistics> getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Stop the stage threads and delete the duplicated PRs.
+   */
+  void cleanup() {
+    executor.shutdownNow();
+    deleteDuplicates(instances);
+  }
+
+  private static void deleteDuplicates(List<List<ProcessingResource>> all) {
+    for(List<ProcessingResource> list : all) {
+      for(int i = 1; i < list.size(); i++) {
+        Factory.deleteResource(list.get(i));
+      }
+    }
+  }
+
+  /**
+   * Process all the documents of the corpus.
+   *
+   * @param corpus the corpus
+   * @param runConfig the config to use for the document features
+   * @param callbacks if the controller callbacks should be invoked for the duplicated PRs
+   * @throws ExecutionException if processing any document failed
+   */
+  void run(Corpus corpus, Config runConfig, boolean callbacks) throws ExecutionException {
+    if(corpus == null) {
+      throw new ExecutionException("(ParametrizedCorpusController) \""+controller.getName()+"\":\n"+
+              "The corpus supplied for execution was null!");
+    }
+    int n = instances.size();
+    List<BlockingQueue<Object>> queues = new ArrayList<>(n);
+    List<StageStatistics> stats = new ArrayList<>(n);
+    for(int i = 0; i < n; i++) {
+      BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueSize);
+      queues.add(queue);
+      stats.add(new StageStatistics(prs.get(i).getName(), instances.get(i).size(), queue));
+    }
+    statistics = Collections.unmodifiableList(stats);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    invokeStarted(callbacks);
+    List<Future<?>> futures = new ArrayList<>();
+    try {
+      final ParameterPlan plan = controller.getParameterPlan();
+      for(int i = 0; i < n; i++) {
+        final int stage = i;
+        final AtomicInteger remaining = new AtomicInteger(instances.get(i).size());
+        final RunningStrategy original = controller.getRunningStrategies().get(i);
+        stats.get(i).started();
+        for(ProcessingResource pr : instances.get(i)) {
+          final ProcessingResource instance = pr;
+          final RunningStrategy strategy = withCondition(strategyFor(instance, original), plan, stage);
+          futures.add(executor.submit(() -> {
+            runStage(instance, strategy, corpus, queues.get(stage),
+                    stage + 1 < n ? queues.get(stage + 1) : null,
+                    stats.get(stage), stage + 1 < n ? stats.get(stage + 1) : null,
+                    remaining, failure);
+            return null;
+          }));
+        }
+      }
+      dispatch(corpus, runConfig, queues.get(0), stats.get(0), failure);
+      for(Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      for(Future<?> future : futures) {
+        future.cancel(true);
+      }
+      failure.compareAndSet(null, ex);
+    } catch (java.util.concurrent.ExecutionException ex) {
+      failure.compareAndSet(null, ex.getCause());
+    } finally {
+      invokeFinished(callbacks, failure.get());
+    }
+    if(LOGGER.isDebugEnabled()) {
+      for(StageStatistics stat : stats) {
+        LOGGER.debug(controller.getName()+": "+stat);
+      }
+    }
+    Throwable t = failure.get();
+    if(t instanceof ExecutionException) {
+      throw (ExecutionException)t;
+    } else if(t instanceof RuntimeException) {
+      throw (RuntimeException)t;
+    } else if(t instanceof Error) {
+      throw (Error)t;
+    } else if(t != null) {
+      throw new ExecutionException("Error processing corpus "+corpus.getName()+" in "+controller.getName(), t);
+    }
+    if(controller.isInterrupted()) {
+      throw new ExecutionInterruptedException("The execution of the \""+controller.getName()+
+              "\" application has been abruptly interrupted!");
+    }
+  }
+
+  // A strategy which also checks the condition of a prrun expression for the PR
+  private static RunningStrategy withCondition(RunningStrategy strategy, ParameterPlan plan, int index) {
+    if(plan == null || !(strategy.getPR() instanceof LanguageAnalyser)) {
+      return strategy;
+    }
+    LanguageAnalyser pr = (LanguageAnalyser)strategy.getPR();
+    return new RunningStrategy() {
+      @Override
+      public boolean shouldRun() {
+        return strategy.shouldRun() && plan.conditionHolds(index, pr.getDocument());
+      }
+      @Override
+      public int getRunMode() {
+        return strategy.getRunMode();
+      }
+      @Override
+      public ProcessingResource getPR() {
+        return pr;
+      }
+    };
+  }
+
+  // The strategy of a duplicate must check the document of the duplicate
+  private static RunningStrategy strategyFor(ProcessingResource pr, RunningStrategy original) {
+    if(original.getPR() == pr || !(original instanceof AnalyserRunningStrategy) ||
+       !(pr instanceof LanguageAnalyser)) {
+      return original;
+    }
+    AnalyserRunningStrategy ars = (AnalyserRunningStrategy)original;
+    return new AnalyserRunningStrategy((LanguageAnalyser)pr, ars.getRunMode(),
+            ars.getFeatureName(), ars.getFeatureValue());
+  }
+
+  private void dispatch(Corpus corpus, Config runConfig, BlockingQueue<Object> first,
+          StageStatistics firstStats, AtomicReference<Throwable> failure) throws InterruptedException {
+    try {
+      for(int i = 0; failure.get() == null && !controller.isInterrupted(); i++) {
+        Document doc;
+        boolean wasLoaded;
+        synchronized(corpus) {
+          if(i >= corpus.size()) {
+            break;
+          }
+          wasLoaded = corpus.isDocumentLoaded(i);
+          doc = corpus.get(i);
+        }
+        if(runConfig.docFeatures != null && !runConfig.docFeatures.isEmpty()) {
+          Utils.setDocumentFeatures(doc.getFeatures(), runConfig);
+        }
+        first.put(new Item(doc, !wasLoaded));
+        firstStats.queued();
+      }
+    } catch (RuntimeException | Error ex) {
+      failure.compareAndSet(null, ex);
+    }
+    first.put(END);
+  }
+
+  private void runStage(ProcessingResource pr, RunningStrategy strategy, Corpus corpus,
+          BlockingQueue<Object> in, BlockingQueue<Object> out,
+          StageStatistics stats, StageStatistics nextStats,
+          AtomicInteger remaining, AtomicReference<Throwable> failure) throws InterruptedException {
+    while(true) {
+      long start = System.nanoTime();
+      Object obj = in.take();
+      stats.inputWaitNanos.add(System.nanoTime() - start);
+      if(obj == END) {
+        if(remaining.decrementAndGet() > 0) {
+          // let the other threads of this stage see the end too
+          in.put(END);
+        } else {
+          stats.finished();
+          if(out != null) {
+            out.put(END);
+          }
+        }
+        return;
+      }
+      Item item = (Item)obj;
+      // after a failure, documents only get passed on to get unloaded
+      if(failure.get() == null && !controller.isInterrupted() && !item.aborted) {
+        start = System.nanoTime();
+        try {
+          process(pr, strategy, item.doc, corpus);
+          stats.documents.increment();
+        } catch (DocumentTimeoutException ex) {
+          LOGGER.warn(ex.getMessage()+", skipping the remaining stages");
+          item.aborted = true;
+        } catch (Throwable t) {
+          failure.compareAndSet(null, t);
+        }
+        stats.busyNanos.add(System.nanoTime() - start);
+      }
+      if(out != null) {
+        start = System.nanoTime();
+        out.put(item);
+        stats.outputStallNanos.add(System.nanoTime() - start);
+        nextStats.queued();
+      } else if(item.unload) {
+        synchronized(corpus) {
+          corpus.unloadDocument(item.doc);
+        }
+        Factory.deleteResource(item.doc);
+      }
+    }
+  }
+
+  private void process(ProcessingResource pr, RunningStrategy strategy,
+          Document doc, Corpus corpus) throws ExecutionException {
+    if(pr instanceof LanguageAnalyser) {
+      ((LanguageAnalyser)pr).setCorpus(corpus);
+      ((LanguageAnalyser)pr).setDocument(doc);
+    }
+    try {
+      if(ExecutionMetrics.isEnabled()) {
+        processWithMetrics(pr, strategy);
+      } else if(strategy.shouldRun()) {
+        pr.execute();
+      }
+    } finally {
+      if(pr instanceof LanguageAnalyser) {
+        ((LanguageAnalyser)pr).setDocument(null);
+      }
+    }
+  }
+
+  // Like the controller, record the metrics of PRs other than Pipelines, 
+  // which record their own
+  private void processWithMetrics(ProcessingResource pr, RunningStrategy strategy)
+          throws ExecutionException {
+    ExecutionTimer node = ExecutionMetrics.root(controller.getName(), controller);
+    ExecutionTimer prNode = node.child(pr.getName());
+    if(!strategy.shouldRun()) {
+      prNode.recordSkip();
+      return;
+    }
+    boolean isPipeline = pr instanceof Pipeline;
+    ExecutionMetrics.setCurrent(isPipeline ? node : prNode);
+    long start = System.nanoTime();
+    try {
+      pr.execute();
+    } finally {
+      if(!isPipeline) {
+        prNode.recordRun(System.nanoTime() - start);
+      }
+      ExecutionMetrics.setCurrent(null);
+    }
+  }
+
+  // The controller only invokes the callbacks of its own PRs
+  private void invokeStarted(boolean callbacks) throws ExecutionException {
+    if(!callbacks) {
+      return;
+    }
+    for(List<ProcessingResource> list : instances) {
+      for(int i = 1; i < list.size(); i++) {
+        if(list.get(i) instanceof ControllerAwarePR) {
+          ((ControllerAwarePR)list.get(i)).controllerExecutionStarted(controller);
+        }
+      }
+    }
+  }
+
+  private void invokeFinished(boolean callbacks, Throwable failure) throws ExecutionException {
+    if(!callbacks) {
+      return;
+    }
+    for(List<ProcessingResource> list : instances) {
+      for(int i = 1; i < list.size(); i++) {
+        if(list.get(i) instanceof ControllerAwarePR) {
+          if(failure == null) {
+            ((ControllerAwarePR)list.get(i)).controllerExecutionFinished(controller);
+          } else {
+            ((ControllerAwarePR)list.get(i)).controllerExecutionAborted(controller, failure);
+          }
+        }
+      }
+    }
+  }
+
+}
@@ -22,11 +22,6 @@ package at.ofai.gate.modularpipelines;
 
 import gate.Controller;
 import gate.FeatureMap;
-import gate.ProcessingResource;
-import gate.creole.AnalyserRunningStrategy;
-import gate.creole.ConditionalController;
-import gate.creole.ResourceInstantiationException;
-import gate.creole.RunningStrategy;
 import gate.util.GateRuntimeException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -38,6 +33,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import org.apache.log4j.Logger;
 import org.yaml.snakeyaml.Yaml;
 
@@ -60,210 +56,328 @@ public class Utils {
    * is set, in which case the configuration will be read from there.
    * If the final configFileUrl to use is null, an empty configuration object
    * is returned. 
+   * <p>
+   * The parsed content of the file is taken from the ConfigCache, so the 
+   * file is only parsed again if it has changed since it was last read. 
+   * The returned Config is always a new instance which may get modified
+   * by the caller.
+   * <p>
+   * The config is read within the ConfigScope which is current for the 
+   * calling thread, if any.
    * 
    * @param configFileUrl
    * @return a possibly empty Config instance
    */
   protected static Config readConfigFile(URL configFileUrl) {
+    return readConfigFile(configFileUrl, ConfigScope.current());
+  }
+  
+  /**
+   * Create a config object as readConfigFile(URL) does, but within the 
+   * given scope.
+   * 
+   * If the scope is not null, the config file override property is looked
+   * up in the scope first, the propset settings are set in the properties
+   * of the scope instead of the system properties, and the override 
+   * properties of the scope are added. 
+   * 
+   * @param configFileUrl
+   * @param scope the scope or null
+   * @return a possibly empty Config instance
+   */
+  protected static Config readConfigFile(URL configFileUrl, ConfigScope scope) {
     LOGGER.debug("Utils.readConfigFile: Loading config file from "+configFileUrl);
-    Config configData = new Config();
-    configData.origUrl = configFileUrl;
+    Config configData;
     File configFile = null;
-    String propertyValue = System.getProperty("at.ofai.gate.modularpipelines.configFile");
+    String propertyValue = ConfigScope.getProperty(scope, "at.ofai.gate.modularpipelines.configFile");
     if (propertyValue != null && !propertyValue.isEmpty()) {
-      configFile = new File(System.getProperty("at.ofai.gate.modularpipelines.configFile"));
+      configFile = new File(propertyValue);
     } else if (configFileUrl != null) {
       configFile = gate.util.Files.fileFromURL(configFileUrl);
     } 
-    if (configFile != null) {
-      if (configFile.toString().endsWith(".yaml")) {
-        Yaml yaml = new Yaml();
-        FileInputStream is;
-        try {
-          is = new FileInputStream(configFile);
-        } catch (FileNotFoundException ex) {
-          throw new GateRuntimeException("Could not open config file, not found: " + configFile);
-        }
-        Object configsObj = yaml.load(is);
-        try {
-          is.close();
-        } catch (IOException ex) {
-          // ignore this
-        }
-        if (configsObj instanceof List) {
-          // we expect each list element to be a map!
-          @SuppressWarnings("unchecked")
-          List<Object> configs = (List) configsObj;
-          for (Object configObj : configs) {
-            if (configObj instanceof Map) {
-              @SuppressWarnings("unchecked")
-              Map<String, Object> config = (Map<String, Object>) configObj;
-              String what = (String) config.get("set");
-              if (what == null) {
-                LOGGER.info("No 'set' key in setting, ignored: " + config);
-              } else if (what.equals("prparm")) {
-                String controller = (String) config.get("controller");
-                String prname = (String) config.get("prname");
-                String name = (String) config.get("name");
-                Object value = config.get("value");
-                if (controller == null || prname == null || name == null) {
-                  throw new GateRuntimeException("config setting prparm: controller, prname, or name not given: "+config);
-                }
-                String prId = controller + "\t" + prname;
-                Map<String, Object> prparm = configData.prRuntimeParms.get(prId);
-                if (prparm == null) {
-                  prparm = new HashMap<>();
-                }
-                prparm.put(name, value);
-                configData.prRuntimeParms.put(prId, prparm);
-              } else if (what.equals("prinit")) {
-                String controller = (String) config.get("controller");
-                String prname = (String) config.get("prname");
-                String name = (String) config.get("name");
-                Object value = config.get("value");
-                if (controller == null || prname == null || name == null) {
-                  throw new GateRuntimeException("config setting prinit: controller, prname, or name not given: "+config);
-                }
-                String prId = controller + "\t" + prname;
-                Map<String, Object> prparm = configData.prInitParms.get(prId);
-                if (prparm == null) {
-                  prparm = new HashMap<>();
-                }
-                prparm.put(name, value);
-                configData.prInitParms.put(prId, prparm);
-              } else if (what.equals("prrun")) {
-                // we manage the run setting by using the fake PR parameter "$$RUNFLAG$$"
-                String controller = (String) config.get("controller");
-                String prname = (String) config.get("prname");
-                String name = "$$RUNFLAG$$";
-                if (controller == null || prname == null) {
-                  throw new GateRuntimeException("config setting prparm: controller or prname is not given: "+config);
-                }
-                Object value = config.get("value");
-                if (!(value instanceof Boolean)) {
-                  throw new GateRuntimeException("config setting value for prrun is not true or false: "+config);
-                }
-                String prId = controller + "\t" + prname;
-                Map<String, Object> prparm = configData.prRuntimeParms.get(prId);
-                if (prparm == null) {
-                  prparm = new HashMap<>();
-                }
-                prparm.put(name, value);
-                configData.prRuntimeParms.put(prId, prparm);
-              } else if (what.equals("docfeature")) {
-                String name = (String) config.get("name");
-                Object value = config.get("value");
-                if (name == null || value == null) {
-                  throw new GateRuntimeException("config setting docfeature: name or value is null: "+config);
-                }
-                Object overrideObj = config.get("override");
-                boolean override = true;  // default is true
-                if(overrideObj != null) {
-                  // if we do have this, it must be convertable to boolean
-                  if(overrideObj instanceof Boolean) {
-                    override = (Boolean)overrideObj;
-                  } else if(overrideObj instanceof String) {
-                    override = Boolean.valueOf((String)overrideObj);
-                  } else {
-                    throw new GateRuntimeException("Cannot convert value to a boolean for docfeature setting "+name+" for override param value: "+overrideObj);
-                  }
-                  //System.out.println("Got a value for override for "+name+": "+overrideObj+" set to "+override);
-                }
-                configData.docFeaturesOverridable.put(name, override);
-                configData.docFeatures.put(name, value);
-              } else if (what.equals("propset")) {
-                String name = (String) config.get("name");
-                Object value = config.get("value");
-                if (name == null || value == null) {
-                  throw new GateRuntimeException("config setting propset: name or value is null");
-                }
-                String valueString = value.toString();
-                System.getProperties().put(name, valueString);
-              } else if (what.toLowerCase().equals("inheritconfig")) {
-                File fullPath;
-                try {
-                  fullPath = configFile.getCanonicalFile();
-                } catch (IOException ex) {
-                  throw new GateRuntimeException("Cannot get canonical pathname for config file "+configFile,ex);
-                }
-                try {
-                  configData.globalConfigFileUrl = fullPath.toURI().toURL();
-                } catch (MalformedURLException ex) {
-                  throw new GateRuntimeException("Cannot create URL of full path for config file "+configFile,ex);
-                }
-                LOGGER.debug("Set the global config file url to "+configData.globalConfigFileUrl);
+    return readConfig(configFile == null ? null : ConfigCache.get(configFile), 
+            configFile, configFileUrl, scope);
+  }
+  
+  /**
+   * Create a config object from the parsed config file as readConfigFile 
+   * does.
+   * 
+   * @param parsed the shared, parsed config or null if there is no file
+   * @param configFile the config file the config was parsed from
+   * @param configFileUrl the config file URL of the controller
+   * @param scope the scope or null
+   * @return a possibly empty Config instance
+   */
+  protected static Config readConfig(Config parsed, File configFile, URL configFileUrl, 
+          ConfigScope scope) {
+    Config configData;
+    if (parsed != null) {
+      configData = new Config(parsed);
+      configData.sourceFile = configFile;
+      // the propset settings are not applied when the file is parsed but
+      // every time it is read, as it was the case before caching
+      Properties target = scope == null ? System.getProperties() : scope.getProperties();
+      for (Entry<String, String> propSetting : configData.propSettings.entrySet()) {
+        target.put(propSetting.getKey(), propSetting.getValue());
+      }
+    } else {
+      configData = new Config();
+    }
+    configData.origUrl = configFileUrl;
+    ConfigOverrides.mergeInto(configData, scope);
+    return configData;
+  }
+  
+  /**
+   * Parse a config file into a new Config instance.
+   * 
+   * This only parses the file: it does not set any java properties for 
+   * propset settings and it does not add the settings from system 
+   * properties, this is done in readConfigFile. Normally this should only
+   * get invoked from the ConfigCache.
+   * 
+   * @param configFile the yaml file to parse
+   * @return the Config instance representing the settings in the file
+   */
+  protected static Config parseConfigFile(File configFile) {
+    Config configData = new Config();
+    if (configFile.toString().endsWith(".yaml")) {
+      Yaml yaml = new Yaml();
+      FileInputStream is;
+      try {
+        is = new FileInputStream(configFile);
+      } catch (FileNotFoundException ex) {
+        throw new GateRuntimeException("Could not open config file, not found: " + configFile);
+      }
+      Object configsObj = yaml.load(is);
+      try {
+        is.close();
+      } catch (IOException ex) {
+        // ignore this
+      }
+      if (configsObj instanceof List) {
+        // we expect each list element to be a map!
+        @SuppressWarnings("unchecked")
+        List<Object> configs = (List) configsObj;
+        for (Object configObj : configs) {
+          if (configObj instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> config = (Map<String, Object>) configObj;
+            String what = (String) config.get("set");
+            if (what == null) {
+              LOGGER.info("No 'set' key in setting, ignored: " + config);
+            } else if (what.equals("prparm")) {
+              String controller = (String) config.get("controller");
+              String prname = (String) config.get("prname");
+              String name = (String) config.get("name");
+              Object value = config.get("value");
+              if (controller == null || prname == null || name == null) {
+                throw new GateRuntimeException("config setting prparm: controller, prname, or name not given: "+config);
+              }
+              String prId = controller + "\t" + prname;
+              Map<String, Map<String, Object>> runtimeParms = getRuntimeParms(configData, config);
+              Map<String, Object> prparm = runtimeParms.get(prId);
+              if (prparm == null) {
+                prparm = new HashMap<>();
+              }
+              prparm.put(name, value);
+              runtimeParms.put(prId, prparm);
+            } else if (what.equals("prinit")) {
+              String controller = (String) config.get("controller");
+              String prname = (String) config.get("prname");
+              String name = (String) config.get("name");
+              Object value = config.get("value");
+              if (controller == null || prname == null || name == null) {
+                throw new GateRuntimeException("config setting prinit: controller, prname, or name not given: "+config);
+              }
+              if (config.get("profile") != null) {
+                throw new GateRuntimeException("config setting prinit: init parameters cannot be set for a profile: "+config);
+              }
+              String prId = controller + "\t" + prname;
+              Map<String, Object> prparm = configData.prInitParms.get(prId);
+              if (prparm == null) {
+                prparm = new HashMap<>();
+              }
+              prparm.put(name, value);
+              configData.prInitParms.put(prId, prparm);
+            } else if (what.equals("prrun")) {
+              // we manage the run setting by using the fake PR parameter "$$RUNFLAG$$"
+              String controller = (String) config.get("controller");
+              String prname = (String) config.get("prname");
+              String name = "$$RUNFLAG$$";
+              if (controller == null || prname == null) {
+                throw new GateRuntimeException("config setting prparm: controller or prname is not given: "+config);
+              }
+              Object value = config.get("value");
+              if (value instanceof String) {
+                // an expression, compiled once here, or just true or false
+                value = RunCondition.runFlag((String)value);
+              } else if (!(value instanceof Boolean)) {
+                throw new GateRuntimeException("config setting value for prrun is not true, false or an expression: "+config);
+              }
+              String prId = controller + "\t" + prname;
+              Map<String, Map<String, Object>> runtimeParms = getRuntimeParms(configData, config);
+              Map<String, Object> prparm = runtimeParms.get(prId);
+              if (prparm == null) {
+                prparm = new HashMap<>();
+              }
+              prparm.put(name, value);
+              runtimeParms.put(prId, prparm);
+            } else if (what.equals("prshare")) {
+              String controller = (String) config.get("controller");
+              String prname = (String) config.get("prname");
+              if (controller == null || prname == null) {
+                throw new GateRuntimeException("config setting prshare: controller or prname is not given: "+config);
+              }
+              Object value = config.get("value");
+              if (value != null && !(value instanceof Boolean)) {
+                throw new GateRuntimeException("config setting value for prshare is not true or false: "+config);
+              }
+              Object lock = config.get("lock");
+              if (lock != null && !(lock instanceof Boolean)) {
+                throw new GateRuntimeException("config setting lock for prshare is not true or false: "+config);
+              }
+              String prId = controller + "\t" + prname;
+              if (value == null || (Boolean)value) {
+                configData.sharedPRs.add(prId);
               } else {
-                throw new GateRuntimeException("Unknown setting: "+what+" in "+configFile);
+                configData.sharedPRs.remove(prId);
               }
+              // only one controller at a time runs a shared PR, unless 
+              // the config explicitly allows running it concurrently
+              if (lock == null || (Boolean)lock) {
+                configData.lockedPRs.add(prId);
+              } else {
+                configData.lockedPRs.remove(prId);
+              }
+            } else if (what.equals("docfeature")) {
+              String name = (String) config.get("name");
+              Object value = config.get("value");
+              if (name == null || value == null) {
+                throw new GateRuntimeException("config setting docfeature: name or value is null: "+config);
+              }
+              Object overrideObj = config.get("override");
+              boolean override = true;  // default is true
+              if(overrideObj != null) {
+                // if we do have this, it must be convertable to boolean
+                if(overrideObj instanceof Boolean) {
+                  override = (Boolean)overrideObj;
+                } else if(overrideObj instanceof String) {
+                  override = Boolean.valueOf((String)overrideObj);
+                } else {
+                  throw new GateRuntimeException("Cannot convert value to a boolean for docfeature setting "+name+" for override param value: "+overrideObj);
+                }
+                //System.out.println("Got a value for override for "+name+": "+overrideObj+" set to "+override);
+              }
+              configData.docFeaturesOverridable.put(name, override);
+              configData.docFeatures.put(name, value);
+            } else if (what.equals("propset")) {
+              String name = (String) config.get("name");
+              Object value = config.get("value");
+              if (name == null || value == null) {
+                throw new GateRuntimeException("config setting propset: name or value is null");
+              }
+              String valueString = value.toString();
+              configData.propSettings.put(name, valueString);
+            } else if (what.equals("profilefeature")) {
+              String name = (String) config.get("name");
+              if (name == null) {
+                throw new GateRuntimeException("config setting profilefeature: name is null");
+              }
+              configData.profileFeature = name;
+            } else if (what.equals("batch")) {
+              Object size = config.get("size");
+              Object maxWait = config.get("maxwait");
+              if (size == null) {
+                throw new GateRuntimeException("config setting batch: size is null");
+              }
+              try {
+                configData.batchSize = Integer.parseInt(size.toString());
+                configData.batchMaxWait = maxWait == null ? 0 : Long.parseLong(maxWait.toString());
+              } catch (NumberFormatException ex) {
+                throw new GateRuntimeException("config setting batch: size or maxwait is not a number: "+config, ex);
+              }
+            } else if (what.equals("timebudget")) {
+              Object millis = config.get("millis");
+              Object policy = config.get("policy");
+              if (millis == null) {
+                throw new GateRuntimeException("config setting timebudget: millis is null");
+              }
+              try {
+                configData.timeBudget = Long.parseLong(millis.toString());
+              } catch (NumberFormatException ex) {
+                throw new GateRuntimeException("config setting timebudget: millis is not a number: "+config, ex);
+              }
+              if (policy != null) {
+                DocumentDeadline.isAbort(policy.toString());
+                configData.timeoutPolicy = policy.toString();
+              }
+            } else if (what.equals("loadparallelism")) {
+              Object value = config.get("value");
+              if (value == null) {
+                throw new GateRuntimeException("config setting loadparallelism: value is null");
+              }
+              try {
+                configData.loadParallelism = Integer.parseInt(value.toString());
+              } catch (NumberFormatException ex) {
+                throw new GateRuntimeException("config setting loadparallelism: value is not a number: "+config, ex);
+              }
+            } else if (what.toLowerCase().equals("inheritconfig")) {
+              File fullPath;
+              try {
+                fullPath = configFile.getCanonicalFile();
+              } catch (IOException ex) {
+                throw new GateRuntimeException("Cannot get canonical pathname for config file "+configFile,ex);
+              }
+              try {
+                configData.globalConfigFileUrl = fullPath.toURI().toURL();
+              } catch (MalformedURLException ex) {
+                throw new GateRuntimeException("Cannot create URL of full path for config file "+configFile,ex);
+              }
+              LOGGER.debug("Set the global config file url to "+configData.globalConfigFileUrl);
             } else {
-              LOGGER.info("Config element not a map, ignoring: " + configObj);
+              throw new GateRuntimeException("Unknown setting: "+what+" in "+configFile);
             }
+          } else {
+            LOGGER.info("Config element not a map, ignoring: " + configObj);
           }
-        } else {
-          throw new GateRuntimeException("Could not read config file, not a list of settings: " + configFile);
         }
       } else {
-        throw new GateRuntimeException("Not a supported config file type (.yaml): " + configFile);
+        throw new GateRuntimeException("Could not read config file, not a list of settings: " + configFile);
       }
+    } else {
+      throw new GateRuntimeException("Not a supported config file type (.yaml): " + configFile);
     }
-    add2ConfigFromProperties(configData);
     return configData;
   }
   
-  protected static void add2ConfigFromProperties(Config configData) {
-    String prefix = System.getProperty("at.ofai.gate.modularpipelines.propertyPrefix");
-    String sep = System.getProperty("at.ofai.gate.modularpipelines.separator");
-    if(prefix == null) {
-      prefix = "modularpipelines.";
+  /**
+   * Get the map where the runtime parameter settings of a prparm or prrun
+   * setting go: the map of the profile if the setting has a "profile" key,
+   * otherwise the base settings.
+   */
+  private static Map<String, Map<String, Object>> getRuntimeParms(Config configData, Map<String, Object> setting) {
+    Object profile = setting.get("profile");
+    if (profile == null) {
+      return configData.prRuntimeParms;
     }
-    if(sep == null) {
-      sep = ".";
-    }
-    StringTriple ctlAndPr;
-    for(Entry<Object,Object> entry : System.getProperties().entrySet()) {
-      String key = (String)entry.getKey();
-      if(key.startsWith(prefix)) {
-        // check if it also starts with one of the possible setting actions
-        if(key.startsWith(prefix+"prparm.")) {
-          ctlAndPr = getCtrlPrParm(key,prefix+"prparm.",sep,true);
-          String prId = ctlAndPr.s1 + "\t" + ctlAndPr.s2;
-          Map<String, Object> prparm = configData.prRuntimeParms.get(prId);
-          if (prparm == null) {
-            prparm = new HashMap<>();
-          }
-          prparm.put(ctlAndPr.s3, System.getProperty(key));
-          configData.prRuntimeParms.put(prId, prparm);
-        } else if(key.startsWith(prefix+"prinit.")) {
-          ctlAndPr = getCtrlPrParm(key,prefix+"prinit.",sep,true);
-          String prId = ctlAndPr.s1 + "\t" + ctlAndPr.s2;
-          Map<String, Object> prparm = configData.prInitParms.get(prId);
-          if (prparm == null) {
-            prparm = new HashMap<>();
-          }
-          prparm.put(ctlAndPr.s3, System.getProperty(key));
-          configData.prInitParms.put(prId, prparm);          
-        } else if(key.startsWith(prefix+"prrun.")) {
-          ctlAndPr = getCtrlPrParm(key,prefix+"prrun.",sep,false);
-          String prId = ctlAndPr.s1 + "\t" + ctlAndPr.s2;
-          Map<String, Object> prparm = configData.prRuntimeParms.get(prId);
-          if (prparm == null) {
-            prparm = new HashMap<>();
-          }
-          prparm.put("$$RUNFLAG$$", Boolean.parseBoolean(System.getProperty(key)));
-          configData.prRuntimeParms.put(prId, prparm);          
-        } else if(key.startsWith(prefix+"docfeature.")) {
-          String fname = key.substring((prefix+"docfeature.").length());
-          configData.docFeaturesOverridable.put(fname, true);
-          configData.docFeatures.put(fname, System.getProperty(key));          
-        } else if(key.startsWith(prefix+"udocfeature.")) {
-          String fname = key.substring((prefix+"docfeature.").length());
-          configData.docFeaturesOverridable.put(fname, false);
-          configData.docFeatures.put(fname, System.getProperty(key));          
-        } else {
-          throw new GateRuntimeException("Odd property with the modular pipelines prefix encountered: "+key);
-        }
-      }
+    Map<String, Map<String, Object>> runtimeParms = configData.profileRuntimeParms.get(profile.toString());
+    if (runtimeParms == null) {
+      runtimeParms = new HashMap<>();
+      configData.profileRuntimeParms.put(profile.toString(), runtimeParms);
     }
+    return runtimeParms;
+  }
+  
+  /**
+   * Add the settings from system properties and other registered override
+   * sources to the config. 
+   * 
+   * @param configData the config to modify
+   */
+  protected static void add2ConfigFromProperties(Config configData) {
+    ConfigOverrides.mergeInto(configData);
   }
   
   protected static StringTriple getCtrlPrParm(String key, String prefix, String sep, boolean getParm) {
@@ -309,66 +423,34 @@ public class Utils {
   
   // NOTE: this method should be thread-safe!!!
   protected static void setControllerParms(Controller cntrlr, Config config) {
+    setControllerParms(cntrlr, config, null);
+  } // method setControllerParms
+  
+  /**
+   * Set the runtime parameters and run modes from the config for the 
+   * controller, re-using a previously compiled plan if possible.
+   * 
+   * If the plan is null or was compiled for a different config instance
+   * or a different list of PRs or running strategies, a new plan is compiled.
+   * The plan that was used is returned so that the caller can pass it 
+   * on to the next invocation. 
+   * 
+   * @param cntrlr the controller
+   * @param config the config
+   * @param plan a previously returned plan or null
+   * @return the plan which was applied
+   */
+  protected static ParameterPlan setControllerParms(Controller cntrlr, Config config, ParameterPlan plan) {
     LOGGER.debug("Setting controller parms for " + cntrlr.getName());
-    // we store both the actual runtime parameters and the run modes in 
-    // config.prRuntimeParms so this is != null if either or both are set
-    // in the config.
-    if (config.prRuntimeParms != null) {
-      String cName = cntrlr.getName();
-      ConditionalController condController = null;
-      List<ProcessingResource> prs;
-      List<RunningStrategy> strategies = null;
-      if (cntrlr instanceof ConditionalController) {
-        condController = (ConditionalController) cntrlr;
-        strategies = condController.getRunningStrategies();
-      } 
-      prs = (List<ProcessingResource>) cntrlr.getPRs();
-      // create a map that maps names to prs for this controller
-      Map<String, Integer> prNums = new HashMap<>();
-      int i = 0;
-      for (ProcessingResource pr : prs) {
-        String id = cName + "\t" + pr.getName();
-        if (prNums.containsKey(id)) {
-          throw new GateRuntimeException("Cannot set PR parameters the PR name appears twice: " + id);
-        }
-        prNums.put(id, i);
-        i++;
+    if (plan == null || !plan.isValidFor(cntrlr, config)) {
+      if (plan != null) {
+        // the new plan expects the base settings of the old one
+        plan.switchProfile(null);
       }
-      // set the PR runtime parameters 
-      for (String prId : config.prRuntimeParms.keySet()) {
-        String[] contrprname = prId.split("\t");
-        if (contrprname[0].equals(cName)) {
-          Integer id = prNums.get(prId);
-          if (id == null) {
-            throw new GateRuntimeException("Cannot set PR parameter, no PR found with id: " + prId);
-          }
-          ProcessingResource pr = prs.get(id);
-          Map<String, Object> prparm = config.prRuntimeParms.get(prId);
-          for (String parmName : prparm.keySet()) {
-            Object parmValue = prparm.get(parmName);
-            LOGGER.debug("Debug: trying to process PR setting " + parmValue + " for parm " + parmName + " in PR " + prId + " of " + cName);
-            if (parmName.equals("$$RUNFLAG$$")) {
-              LOGGER.debug("Trying to set a runflag");
-              if (condController != null) {
-                //System.out.println("DEBUG: Setting runflag "+parmName+" to "+parmValue+" for "+prId);
-                boolean flag = (Boolean) parmValue;
-                AnalyserRunningStrategy str = (AnalyserRunningStrategy) strategies.get(id);
-                LOGGER.debug("Setting the run mode: " + flag);
-                str.setRunMode(flag ? AnalyserRunningStrategy.RUN_ALWAYS : AnalyserRunningStrategy.RUN_NEVER);
-              }
-            } else {
-              try {
-                pr.setParameterValue(parmName, parmValue);
-              } catch (ResourceInstantiationException ex) {
-                throw new GateRuntimeException("Could not set parameter " + parmName + " for PR id " + prId + " to value " + parmValue,ex);
-              }
-            }
-          } // for parmName : prparm.keySet
-        } // if controller names match
-      }
-    } else {
-      LOGGER.debug("prRuntimeParms is null!");
+      plan = ParameterPlan.compile(cntrlr, config, plan);
     }
+    plan.apply();
+    return plan;
   } // method setControllerParms
   
   /**
@@ -1,24 +1,1773 @@
 package at.ofai.gate.modularpipelines.tests;
 
+import at.ofai.gate.modularpipelines.ApplicationSnapshot;
+import at.ofai.gate.modularpipelines.BatchProcessingResource;
+import at.ofai.gate.modularpipelines.ConfigCache;
+import at.ofai.gate.modularpipelines.ConfigOverrides;
+import at.ofai.gate.modularpipelines.ConfigScope;
+import at.ofai.gate.modularpipelines.ConfigWatcher;
+import at.ofai.gate.modularpipelines.DocumentStreamCallback;
+import at.ofai.gate.modularpipelines.DocumentTimeoutException;
+import at.ofai.gate.modularpipelines.ExecutionMetrics;
+import at.ofai.gate.modularpipelines.ExecutionTimer;
+import at.ofai.gate.modularpipelines.ParametrizedCorpusController;
+import at.ofai.gate.modularpipelines.Pipeline;
+import at.ofai.gate.modularpipelines.PipelineFileCache;
+import at.ofai.gate.modularpipelines.ResultCache;
+import at.ofai.gate.modularpipelines.StageStatistics;
+import gate.Annotation;
+import gate.Controller;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.Resource;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.AnalyserRunningStrategy;
+import gate.creole.ExecutionException;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.Plugin;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.event.PluginListener;
 import gate.test.GATEPluginTests;
+import gate.util.GateRuntimeException;
+import gate.util.persistence.PersistenceManager;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.After;
 import org.junit.Test;
-//import static org.junit.Assert.*;
+import static org.junit.Assert.*;
 
 
 /**
  * Using this class automatically prepares GATE and the plugin for testing.
- * 
- * This class automatically initializes GATE and loads the plugin. 
+ *
+ * This class automatically initializes GATE and loads the plugin.
  * Any method in this class with the "@Test" annotation will then get
  * run with the plugin already properly loaded.
- * 
+ *
  * NOTE: please move/copy this class to the correct package for your plugin!
- 
+
  */
 public class TestingClass extends GATEPluginTests {
 
+  // the tests which need metrics enable them, so they are off again for
+  // the next test
+  @After
+  public void disableMetrics() {
+    ExecutionMetrics.setEnabled(false);
+    ExecutionMetrics.reset();
+  }
+
   @Test
   public void testSomething() {
     // testing code goes here
   }
+
+  @Test
+  public void testConfigCache() throws Exception {
+    File configFile = File.createTempFile("modularpipelines", ".yaml");
+    configFile.deleteOnExit();
+    Files.copy(new File("test/configSub01.yaml").toPath(), configFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    ConfigCache.clear();
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    Resource c1 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    Resource c2 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    assertEquals(1, ConfigCache.getMissCount());
+    assertTrue(ConfigCache.getHitCount() >= 1);
+    // changing the file must make the cache parse it again
+    Files.write(configFile.toPath(),
+            "- set: docfeature\n  name: changed\n  value: changed\n".getBytes(StandardCharsets.UTF_8));
+    configFile.setLastModified(configFile.lastModified()+2000);
+    Resource c3 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    assertEquals(2, ConfigCache.getMissCount());
+    Factory.deleteResource(c1);
+    Factory.deleteResource(c2);
+    Factory.deleteResource(c3);
+  }
+
+  @Test
+  public void testConfigOverrides() throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", new File("test/configSub01.yaml").toURI().toURL());
+    Resource c1 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    long rebuilds = ConfigOverrides.getRebuildCount();
+    Resource c2 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    // nothing changed, so the properties must not get parsed again
+    assertEquals(rebuilds, ConfigOverrides.getRebuildCount());
+    Properties source = new Properties();
+    source.setProperty("modularpipelines.docfeature.someFeature", "someValue");
+    ConfigOverrides.registerSource(source);
+    Resource c3 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    assertEquals(rebuilds+1, ConfigOverrides.getRebuildCount());
+    // a changed value of a matching property is seen
+    source.setProperty("modularpipelines.docfeature.someFeature", "otherValue");
+    Resource c4 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    assertEquals(rebuilds+2, ConfigOverrides.getRebuildCount());
+    assertTrue(ConfigOverrides.unregisterSource(source));
+    // a prrun property is an expression unless it is just true or false
+    Properties prrun = new Properties();
+    prrun.setProperty("modularpipelines.prrun.someController.somePR", "TRUE");
+    ConfigOverrides.registerSource(prrun);
+    try {
+      Resource c5 = Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+      Factory.deleteResource(c5);
+      prrun.setProperty("modularpipelines.prrun.someController.somePR", "ture");
+      try {
+        Factory.createResource("at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+        fail("an invalid prrun expression must not be taken as false");
+      } catch(GateRuntimeException | ResourceInstantiationException ex) {
+        // expected
+      }
+    } finally {
+      ConfigOverrides.unregisterSource(prrun);
+    }
+    Factory.deleteResource(c1);
+    Factory.deleteResource(c2);
+    Factory.deleteResource(c3);
+    Factory.deleteResource(c4);
+  }
+
+  @Test
+  public void testParameterPlan() throws Exception {
+    File configFile = writeConfig(
+            "- set: prparm",
+            "  controller: planned",
+            "  prname: first",
+            "  name: delay",
+            "  value: 7");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, 
+            Factory.newFeatureMap(), "planned");
+    TestPR first = TestPR.create(0);
+    first.setName("first");
+    TestPR second = TestPR.create(0);
+    second.setName("second");
+    try {
+      main.add(first);
+      main.add(second);
+      runOnNewDocument(main);
+      assertEquals(7, (int)first.getDelay());
+      assertEquals(0, (int)second.getDelay());
+      // the setting is for the PR which has the name now
+      first.setName("other");
+      second.setName("first");
+      first.setDelay(0);
+      runOnNewDocument(main);
+      assertEquals(0, (int)first.getDelay());
+      assertEquals(7, (int)second.getDelay());
+    } finally {
+      Factory.deleteResource(main);
+    }
+  }
+
+  @Test
+  public void testConfigReload() throws Exception {
+    File configFile = writeConfig(
+            "- set: docfeature",
+            "  name: reloaded",
+            "  value: one");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    parms.put("watchConfigFile", true);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, 
+            Factory.newFeatureMap(), "reloading");
+    ParametrizedCorpusController sub = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", Factory.newFeatureMap(), 
+            Factory.newFeatureMap(), "inheriting");
+    ParametrizedCorpusController other = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, 
+            Factory.newFeatureMap(), "alsoReloading");
+    TestPR delayed = TestPR.create(0);
+    delayed.setName("delayed");
+    try {
+      sub.add(delayed);
+      main.add(sub);
+      // as if the controllers had been loaded from a file
+      sub.afterLoadCompleted();
+      main.afterLoadCompleted();
+      other.add(TestPR.create(0));
+      other.afterLoadCompleted();
+      assertTrue(ConfigWatcher.isRunning());
+      assertEquals("one", runOnNewDocument(main).getFeatures().get("reloaded"));
+      assertEquals("one", runOnNewDocument(other).getFeatures().get("reloaded"));
+      
+      // the changed file gets picked up and passed on to the sub-pipeline,
+      // writing it several times in a row only gets it parsed once for 
+      // both controllers
+      long misses = ConfigCache.getMissCount();
+      for(int i = 0; i < 3; i++) {
+        Files.write(configFile.toPath(), Arrays.asList(
+                "- set: docfeature",
+                "  name: reloaded",
+                "  value: between"), StandardCharsets.UTF_8);
+      }
+      Files.write(configFile.toPath(), Arrays.asList(
+              "- set: docfeature",
+              "  name: reloaded",
+              "  value: two",
+              "- set: inheritconfig",
+              "- set: prparm",
+              "  controller: inheriting",
+              "  prname: delayed",
+              "  name: delay",
+              "  value: 3"), StandardCharsets.UTF_8);
+      long end = System.currentTimeMillis() + 20000;
+      Object value = null;
+      while(!"two".equals(value) && System.currentTimeMillis() < end) {
+        Thread.sleep(50);
+        value = runOnNewDocument(main).getFeatures().get("reloaded");
+      }
+      assertEquals("two", value);
+      assertEquals(3, (int)delayed.getDelay());
+      assertEquals("two", runOnNewDocument(other).getFeatures().get("reloaded"));
+      Thread.sleep(500);
+      assertEquals(misses + 1, ConfigCache.getMissCount());
+    } finally {
+      Factory.deleteResource(main);
+      for(ProcessingResource pr : new ArrayList<>(other.getPRs())) {
+        Factory.deleteResource(pr);
+      }
+      Factory.deleteResource(other);
+    }
+    // nothing is watched any more, so the watcher is stopped
+    assertEquals(0, ConfigWatcher.getWatchedFileCount());
+    assertFalse(ConfigWatcher.isRunning());
+  }
+
+  @Test
+  public void testProfiles() throws Exception {
+    File outerConfig = File.createTempFile("modularpipelines", ".yaml");
+    outerConfig.deleteOnExit();
+    Files.write(outerConfig.toPath(), (
+            "- set: prrun\n  controller: outer\n  prname: inner\n  value: false\n  profile: skip\n")
+            .getBytes(StandardCharsets.UTF_8));
+    File innerConfig = File.createTempFile("modularpipelines", ".yaml");
+    innerConfig.deleteOnExit();
+    Files.write(innerConfig.toPath(), 
+            "- set: docfeature\n  name: ran\n  value: done\n".getBytes(StandardCharsets.UTF_8));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", outerConfig.toURI().toURL());
+    ParametrizedCorpusController outer = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, null, "outer");
+    parms.put("configFileUrl", innerConfig.toURI().toURL());
+    ParametrizedCorpusController inner = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, null, "inner");
+    // the inner controller needs some PR to run for setting the features
+    ParametrizedCorpusController leaf = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    inner.add(leaf);
+    outer.add(inner);
+    Corpus corpus = Factory.newCorpus("profiles");
+    String[] profiles = new String[] { "skip", null, "skip", null };
+    for(String profile : profiles) {
+      Document doc = Factory.newDocument("some text");
+      if(profile != null) {
+        doc.getFeatures().put("modularpipelines.profile", profile);
+      }
+      corpus.add(doc);
+    }
+    outer.setCorpus(corpus);
+    outer.execute();
+    for(int i = 0; i < profiles.length; i++) {
+      assertEquals("document "+i, profiles[i] == null, corpus.get(i).getFeatures().containsKey("ran"));
+    }
+    Factory.deleteResource(outer);
+    Factory.deleteResource(inner);
+    Factory.deleteResource(leaf);
+    Factory.deleteResource(corpus);
+  }
+
+  @Test
+  public void testControllerPool() throws Exception {
+    File subFile = saveSubPipeline(null);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    parms.put("controllerPoolSize", 2);
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms);
+    assertNull(pipeline.getControllerPool());
+    Pipeline dup1 = (Pipeline)Factory.duplicate(pipeline);
+    Pipeline dup2 = (Pipeline)Factory.duplicate(pipeline);
+    assertSame(pipeline.getControllerPool(), dup1.getControllerPool());
+    assertSame(pipeline.getControllerPool(), dup2.getControllerPool());
+    assertEquals(2, pipeline.getControllerPool().getSize());
+    Document doc = Factory.newDocument("some text");
+    Corpus corpus = Factory.newCorpus("pool");
+    corpus.add(doc);
+    for(Pipeline p : new Pipeline[] { pipeline, dup1, dup2 }) {
+      p.setCorpus(corpus);
+      p.setDocument(doc);
+      p.execute();
+    }
+    assertEquals(3, pipeline.getControllerPool().getBorrowCount());
+    Factory.deleteResource(dup1);
+    Factory.deleteResource(dup2);
+    Factory.deleteResource(pipeline);
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(doc);
+  }
+
+  @Test
+  public void testParallelLoading() throws Exception {
+    File subFile = saveSubPipeline(null, TestPR.create(0));
+    File configFile = writeConfig(
+            "- set: loadparallelism",
+            "  value: 3");
+    // the setting of the controller config
+    assertEquals(Collections.singleton("ModularPipelines-Loader-3"),
+            loadInParallel(subFile, configFile, null));
+    // the property looked up in the scope the application is loaded in
+    ConfigScope scope = new ConfigScope("parallel");
+    scope.getProperties().setProperty("at.ofai.gate.modularpipelines.loadParallelism", "2");
+    assertEquals(Collections.singleton("ModularPipelines-Loader-2"),
+            loadInParallel(subFile, null, scope));
+    // neither, so everything gets loaded in the calling thread
+    assertEquals(Collections.emptySet(), loadInParallel(subFile, null, null));
+  }
+
+  @Test
+  public void testParallelLoadingPlugins() throws Exception {
+    // two sub-pipelines which each need a plugin nothing else has loaded
+    Plugin pluginA = new Plugin.Directory(createPluginDirectory("A").toURI().toURL());
+    Plugin pluginB = new Plugin.Directory(createPluginDirectory("B").toURI().toURL());
+    Gate.getCreoleRegister().registerPlugin(pluginA);
+    File subA = saveSubPipeline(null, TestPR.create(0));
+    Gate.getCreoleRegister().unregisterPlugin(pluginA);
+    Gate.getCreoleRegister().registerPlugin(pluginB);
+    File subB = saveSubPipeline(null, TestPR.create(0));
+    Gate.getCreoleRegister().unregisterPlugin(pluginB);
+    
+    FeatureMap mainParms = Factory.newFeatureMap();
+    mainParms.put("configFileUrl", writeConfig("- set: loadparallelism", "  value: 2").toURI().toURL());
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms);
+    for(File subFile : new File[] { subA, subB }) {
+      FeatureMap parms = Factory.newFeatureMap();
+      parms.put("pipelineFileURL", subFile.toURI().toURL());
+      main.add((Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms));
+    }
+    // creating the Pipeline PRs loaded the plugins again and the main file 
+    // must not list them
+    Gate.getCreoleRegister().unregisterPlugin(pluginA);
+    Gate.getCreoleRegister().unregisterPlugin(pluginB);
+    File mainFile = saveApplication(main);
+    
+    // the loader threads register the plugins one after the other
+    AtomicInteger registering = new AtomicInteger();
+    AtomicInteger maxRegistering = new AtomicInteger();
+    List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+    PluginListener listener = new PluginListener() {
+      @Override
+      public void pluginLoaded(Plugin plugin) {
+        if(!plugin.equals(pluginA) && !plugin.equals(pluginB)) {
+          return;
+        }
+        threads.add(Thread.currentThread().getName());
+        maxRegistering.accumulateAndGet(registering.incrementAndGet(), Math::max);
+        try {
+          Thread.sleep(300);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        registering.decrementAndGet();
+      }
+      @Override
+      public void pluginUnloaded(Plugin plugin) {
+      }
+    };
+    Gate.getCreoleRegister().addPluginListener(listener);
+    ParametrizedCorpusController loaded;
+    try {
+      loaded = (ParametrizedCorpusController)PersistenceManager.loadObjectFromFile(mainFile);
+      for(Object pr : loaded.getPRs()) {
+        ((Pipeline)pr).ensureLoaded();
+      }
+    } finally {
+      Gate.getCreoleRegister().removePluginListener(listener);
+    }
+    try {
+      assertTrue(Gate.getCreoleRegister().getPlugins().contains(pluginA));
+      assertTrue(Gate.getCreoleRegister().getPlugins().contains(pluginB));
+      // the thread waiting for the application may load a sub-pipeline 
+      // itself if no loader thread has started with it yet
+      assertEquals(2, threads.size());
+      assertEquals(1, maxRegistering.get());
+      TestPR.RUNS.set(0);
+      runOnNewDocument(loaded);
+      assertEquals(2, TestPR.RUNS.get());
+    } finally {
+      Factory.deleteResource(loaded);
+      Gate.getCreoleRegister().unregisterPlugin(pluginA);
+      Gate.getCreoleRegister().unregisterPlugin(pluginB);
+    }
+  }
+  
+  // Create a plugin directory with a creole.xml file which declares nothing.
+  private static File createPluginDirectory(String name) throws Exception {
+    File directory = Files.createTempDirectory("modularpipelines-plugin"+name).toFile();
+    // files registered later get deleted first
+    directory.deleteOnExit();
+    File creoleFile = new File(directory, "creole.xml");
+    Files.write(creoleFile.toPath(), Arrays.asList(
+            "<CREOLE-DIRECTORY ID=\"modularpipelines-test-"+name+"\">", "</CREOLE-DIRECTORY>"), 
+            StandardCharsets.UTF_8);
+    creoleFile.deleteOnExit();
+    return directory;
+  }
+
+  // Load and run an application with four Pipeline PRs for the given 
+  // sub-pipeline and return the loader thread pools they got loaded with. 
+  private Set<String> loadInParallel(File subFile, File configFile, ConfigScope scope) throws Exception {
+    FeatureMap mainParms = Factory.newFeatureMap();
+    if(configFile != null) {
+      mainParms.put("configFileUrl", configFile.toURI().toURL());
+    }
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    for(int i = 0; i < 4; i++) {
+      main.add((Pipeline)Factory.createResource(
+              "at.ofai.gate.modularpipelines.Pipeline", parms, null, "pipeline"+i));
+    }
+    File mainFile = saveApplication(main);
+    TestPR.INIT_THREADS.clear();
+    ParametrizedCorpusController loaded = (ParametrizedCorpusController)(scope == null 
+            ? PersistenceManager.loadObjectFromFile(mainFile) 
+            : scope.load(mainFile.toURI().toURL()));
+    Corpus corpus = Factory.newCorpus("parallel");
+    try {
+      assertEquals(4, loaded.getPRs().size());
+      int i = 0;
+      for(Object pr : loaded.getPRs()) {
+        assertEquals("pipeline"+(i++), ((Resource)pr).getName());
+      }
+      corpus.add(Factory.newDocument("some text"));
+      loaded.setCorpus(corpus);
+      loaded.execute();
+    } finally {
+      Factory.deleteResource(loaded);
+      Factory.deleteResource(corpus);
+    }
+    assertEquals(4, TestPR.INIT_THREADS.size());
+    Set<String> pools = new HashSet<>();
+    for(String thread : TestPR.INIT_THREADS) {
+      if(thread.startsWith("ModularPipelines-Loader-")) {
+        pools.add(thread.substring(0, thread.lastIndexOf('-')));
+      }
+    }
+    return pools;
+  }
+
+  @Test
+  public void testLazyLoading() throws Exception {
+    File subFile = saveSubPipeline(null);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    parms.put("lazyLoading", true);
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    main.add(pipeline);
+    Corpus corpus = Factory.newCorpus("lazy");
+    corpus.add(Factory.newDocument("some text"));
+    main.setCorpus(corpus);
+    // not running the PR must not load the pipeline
+    ((AnalyserRunningStrategy)main.getRunningStrategies().get(0)).setRunMode(
+            AnalyserRunningStrategy.RUN_NEVER);
+    main.execute();
+    assertFalse(pipeline.isLoaded());
+    ((AnalyserRunningStrategy)main.getRunningStrategies().get(0)).setRunMode(
+            AnalyserRunningStrategy.RUN_ALWAYS);
+    main.execute();
+    assertTrue(pipeline.isLoaded());
+    assertTrue(pipeline.getLoadTimeMillis() >= 0);
+    Factory.deleteResource(main);
+    Factory.deleteResource(pipeline);
+    Factory.deleteResource(corpus);
+  }
+
+  @Test
+  public void testPipelineFileCache() throws Exception {
+    // a sub-pipeline which runs a nested sub-pipeline
+    File configFile = writeConfig("- set: docfeature", "  name: nested", "  value: done");
+    File nestedFile = saveSubPipeline(configFile, TestPR.create(0));
+    FeatureMap nestedParms = Factory.newFeatureMap();
+    nestedParms.put("pipelineFileURL", nestedFile.toURI().toURL());
+    ParametrizedCorpusController sub = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    sub.add((ProcessingResource)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", nestedParms));
+    // in a directory of its own, so that the URL of the nested file is 
+    // only right if it is resolved against the sub-pipeline file
+    File directory = Files.createTempDirectory("modularpipelines").toFile();
+    directory.deleteOnExit();
+    File subFile = new File(directory, "sub.xgapp");
+    subFile.deleteOnExit();
+    PersistenceManager.saveObjectToFile(sub, subFile);
+    Factory.deleteResource(sub);
+    System.setProperty(PipelineFileCache.SIZE_PROPERTY, "4");
+    PipelineFileCache.clear();
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    Pipeline p1 = null;
+    Pipeline p2 = null;
+    int inits = TestPR.INIT_THREADS.size();
+    try {
+      p1 = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+      p2 = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+      assertEquals(2, PipelineFileCache.getMissCount());
+      assertEquals(2, PipelineFileCache.getHitCount());
+      assertEquals(2, PipelineFileCache.size());
+      // every load creates its own PRs
+      assertEquals(inits+2, TestPR.INIT_THREADS.size());
+      // touching the file without changing it must not load it again
+      subFile.setLastModified(subFile.lastModified()+2000);
+      p1.reInit();
+      assertEquals(2, PipelineFileCache.getMissCount());
+      assertEquals(inits+3, TestPR.INIT_THREADS.size());
+      assertEquals("done", runPipeline(p2).getFeatures().get("nested"));
+      // a changed config file is used without loading the pipeline file
+      Files.write(configFile.toPath(), Arrays.asList(
+              "- set: docfeature", "  name: nested", "  value: changed"), StandardCharsets.UTF_8);
+      configFile.setLastModified(configFile.lastModified()+2000);
+      p2.reInit();
+      assertEquals(2, PipelineFileCache.getMissCount());
+      assertEquals("changed", runPipeline(p2).getFeatures().get("nested"));
+      // deleting the pipelines which use it keeps the template
+      Factory.deleteResource(p1);
+      p1 = null;
+      assertEquals(2, PipelineFileCache.size());
+      // a changed nested sub-pipeline file gets loaded again
+      File otherFile = saveFeatureSettingPipeline("cached");
+      Files.copy(otherFile.toPath(), nestedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      nestedFile.setLastModified(nestedFile.lastModified()+4000);
+      p2.reInit();
+      assertEquals(3, PipelineFileCache.getMissCount());
+      assertEquals(2, PipelineFileCache.size());
+      Document doc = runPipeline(p2);
+      assertEquals("done", doc.getFeatures().get("cached"));
+      assertNull(doc.getFeatures().get("nested"));
+    } finally {
+      if(p1 != null) {
+        Factory.deleteResource(p1);
+      }
+      if(p2 != null) {
+        Factory.deleteResource(p2);
+      }
+      PipelineFileCache.clear();
+      System.clearProperty(PipelineFileCache.SIZE_PROPERTY);
+    }
+    assertEquals(0, PipelineFileCache.size());
+  }
+
+  // Run the pipeline on a new document, which gets deleted.
+  private static Document runPipeline(Pipeline pipeline) throws Exception {
+    Corpus corpus = Factory.newCorpus("run");
+    Document doc = Factory.newDocument("some text");
+    corpus.add(doc);
+    pipeline.setCorpus(corpus);
+    pipeline.setDocument(doc);
+    pipeline.execute();
+    pipeline.setDocument(null);
+    pipeline.setCorpus(null);
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(doc);
+    return doc;
+  }
+
+  // Save a sub-pipeline which sets the given document feature to "done"
+  private File saveFeatureSettingPipeline(String feature) throws Exception {
+    File configFile = writeConfig("- set: docfeature", "  name: "+feature, "  value: done");
+    // the document features only get set if there is a PR to run
+    return saveSubPipeline(configFile, (ProcessingResource)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController"));
+  }
+  
+  // Save a sub-pipeline with the config file, if not null, and the PRs to
+  // a temporary file, the PRs get deleted with it.
+  private static File saveSubPipeline(File configFile, ProcessingResource... prs) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    if(configFile != null) {
+      parms.put("configFileUrl", configFile.toURI().toURL());
+    }
+    ParametrizedCorpusController sub = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    for(ProcessingResource pr : prs) {
+      sub.add(pr);
+    }
+    return saveApplication(sub);
+  }
+  
+  // Save the controller to a temporary file and delete it.
+  private static File saveApplication(Controller controller) throws Exception {
+    File file = File.createTempFile("modularpipelines", ".xgapp");
+    file.deleteOnExit();
+    PersistenceManager.saveObjectToFile(controller, file);
+    Factory.deleteResource(controller);
+    return file;
+  }
+  
+  // Write the lines of a config file to a temporary file.
+  private static File writeConfig(String... lines) throws Exception {
+    File configFile = File.createTempFile("modularpipelines", ".yaml");
+    configFile.deleteOnExit();
+    Files.write(configFile.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    return configFile;
+  }
+
+  @Test
+  public void testParallelBranches() throws Exception {
+    FeatureMap mainParms = Factory.newFeatureMap();
+    mainParms.put("branchParallelism", 3);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms, 
+            Factory.newFeatureMap(), "branching");
+    for(String feature : new String[] { "branchA", "branchB" }) {
+      FeatureMap parms = Factory.newFeatureMap();
+      parms.put("pipelineFileURL", saveFeatureSettingPipeline(feature).toURI().toURL());
+      Pipeline pipeline = (Pipeline)Factory.createResource(
+              "at.ofai.gate.modularpipelines.Pipeline", parms);
+      pipeline.setReadsAnnotationSets(Collections.<String>emptyList());
+      pipeline.setWritesAnnotationSets(Collections.singletonList("out"+feature));
+      pipeline.setReadsDocumentFeatures(Collections.<String>emptyList());
+      pipeline.setWritesDocumentFeatures(Collections.singletonList(feature));
+      main.add(pipeline);
+    }
+    // a branch which changes the features of the annotations it reads in 
+    // its copy, but only writes the annotations it adds
+    TestPR toucher = TestPR.create(0);
+    toucher.setTouch("touched");
+    File subFile = saveSubPipeline(null, toucher);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    Pipeline touching = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+    touching.setReadsAnnotationSets(Collections.singletonList(""));
+    touching.setWritesAnnotationSets(Collections.singletonList("memo"));
+    touching.setReadsDocumentFeatures(Collections.<String>emptyList());
+    touching.setWritesDocumentFeatures(Collections.<String>emptyList());
+    main.add(touching);
+    Document doc = Factory.newDocument("some text");
+    doc.getAnnotations().add(0L, 4L, "Token", Factory.newFeatureMap());
+    Corpus corpus = Factory.newCorpus("branches");
+    corpus.add(doc);
+    try {
+      main.setCorpus(corpus);
+      main.execute();
+      // the feature set by the branch which ran on a copy must get merged back
+      assertEquals("done", String.valueOf(doc.getFeatures().get("branchA")));
+      assertEquals("done", String.valueOf(doc.getFeatures().get("branchB")));
+      assertEquals(1, doc.getAnnotations("memo").size());
+      // but the original annotation was not changed
+      assertEquals(1, doc.getAnnotations().size());
+      assertTrue(doc.getAnnotations().iterator().next().getFeatures().isEmpty());
+      assertFalse(getThreadNames("ModularPipelines-Branch-branching-").isEmpty());
+    } finally {
+      Factory.deleteResource(main);
+      Factory.deleteResource(corpus);
+      Factory.deleteResource(doc);
+    }
+    // the threads of the controller get stopped with it
+    awaitNoThreads("ModularPipelines-Branch-branching-");
+  }
+
+  private static void awaitNoThreads(String prefix) throws InterruptedException {
+    long end = System.currentTimeMillis() + 10000;
+    while(!getThreadNames(prefix).isEmpty() && System.currentTimeMillis() < end) {
+      Thread.sleep(20);
+    }
+    assertEquals(Collections.emptySet(), getThreadNames(prefix));
+  }
+
+  private static Set<String> getThreadNames(String prefix) {
+    Set<String> names = new HashSet<>();
+    for(Thread thread : Thread.getAllStackTraces().keySet()) {
+      if(thread.isAlive() && thread.getName().startsWith(prefix)) {
+        names.add(thread.getName());
+      }
+    }
+    return names;
+  }
+
+  @Test
+  public void testParallelCorpus() throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", saveFeatureSettingPipeline("processed").toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms);
+    FeatureMap mainParms = Factory.newFeatureMap();
+    mainParms.put("corpusParallelism", 3);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms,
+            Factory.newFeatureMap(), "parallelMain");
+    main.add(pipeline);
+    Corpus corpus = Factory.newCorpus("parallelCorpus");
+    for(int i = 0; i < 20; i++) {
+      corpus.add(Factory.newDocument("document "+i));
+    }
+    main.setCorpus(corpus);
+    main.execute();
+    Set<String> threads = getThreadNames("ModularPipelines-Worker-parallelMain-");
+    assertEquals(2, threads.size());
+    // running again must re-use the workers and their threads
+    main.execute();
+    assertEquals(threads, getThreadNames("ModularPipelines-Worker-parallelMain-"));
+    for(Document doc : corpus) {
+      assertEquals("done", String.valueOf(doc.getFeatures().get("processed")));
+    }
+    Factory.deleteResource(main);
+    Factory.deleteResource(pipeline);
+    awaitNoThreads("ModularPipelines-Worker-parallelMain-");
+    for(Document doc : new ArrayList<Document>(corpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+  }
+
+  @Test
+  public void testBatches() throws Exception {
+    File configFile = writeConfig(
+            "- set: batch",
+            "  size: 4",
+            "  maxwait: 1000",
+            "- set: prrun",
+            "  controller: batchMain",
+            "  prname: pipeline",
+            "  value: size > 10");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", saveFeatureSettingPipeline("batched").toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms, Factory.newFeatureMap(), "pipeline");
+    FeatureMap mainParms = Factory.newFeatureMap();
+    mainParms.put("configFileUrl", configFile.toURI().toURL());
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms,
+            Factory.newFeatureMap(), "batchMain");
+    TestPR recorder = TestPR.create(0);
+    main.add(recorder);
+    main.add(pipeline);
+    Corpus corpus = Factory.newCorpus("batches");
+    for(int i = 0; i < 10; i++) {
+      corpus.add(Factory.newDocument(i < 5 ? "document "+i : "longer document "+i));
+    }
+    try {
+      main.setCorpus(corpus);
+      TestPR.BATCH_SIZES.clear();
+      main.execute();
+      // the batch PR gets the documents in batches of the configured size
+      assertEquals(Arrays.asList(4, 4, 2), TestPR.BATCH_SIZES);
+      for(int i = 0; i < corpus.size(); i++) {
+        Document doc = corpus.get(i);
+        assertEquals(1, doc.getAnnotations("memo").size());
+        // the other PRs run for each document with their prrun conditions
+        assertEquals(i < 5 ? null : "done", doc.getFeatures().get("batched"));
+      }
+      
+    } finally {
+      Factory.deleteResource(main);
+      for(Document doc : new ArrayList<Document>(corpus)) {
+        Factory.deleteResource(doc);
+      }
+      Factory.deleteResource(corpus);
+    }
+    
+    // if collecting the documents takes too long, a partial batch is 
+    // processed: here getting each document takes at least 30ms
+    File waitConfigFile = writeConfig(
+            "- set: batch",
+            "  size: 4",
+            "  maxwait: 50");
+    mainParms.put("configFileUrl", waitConfigFile.toURI().toURL());
+    main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms);
+    main.add(TestPR.create(0));
+    Corpus slowCorpus = new SlowCorpus(30);
+    for(int i = 0; i < 10; i++) {
+      slowCorpus.add(newDocument("document "+i));
+    }
+    try {
+      main.setCorpus(slowCorpus);
+      TestPR.BATCH_SIZES.clear();
+      main.execute();
+      int total = 0;
+      for(int size : TestPR.BATCH_SIZES) {
+        assertTrue("batch of "+size+" documents", size < 4);
+        total += size;
+      }
+      assertEquals(10, total);
+    } finally {
+      Factory.deleteResource(main);
+      for(Document doc : new ArrayList<Document>(slowCorpus)) {
+        Factory.deleteResource(doc);
+      }
+    }
+    
+    // a Pipeline with a time budget keeps it for each document of a batch
+    File slowFile = saveSubPipeline(null, TestPR.create(10000));
+    parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", slowFile.toURI().toURL());
+    Pipeline slowPipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms, null, "SlowSub");
+    slowPipeline.setTimeBudget(100);
+    slowPipeline.setTimeoutPolicy("abort");
+    parms.put("pipelineFileURL", saveFeatureSettingPipeline("after").toURI().toURL());
+    Pipeline after = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms);
+    mainParms.put("configFileUrl", configFile.toURI().toURL());
+    main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms);
+    main.add(slowPipeline);
+    main.add(after);
+    corpus = Factory.newCorpus("budget");
+    for(int i = 0; i < 3; i++) {
+      corpus.add(Factory.newDocument("document "+i));
+    }
+    try {
+      main.setCorpus(corpus);
+      long start = System.currentTimeMillis();
+      main.execute();
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      assertEquals(3, slowPipeline.getTimeoutCount());
+      for(Document doc : corpus) {
+        assertEquals("SlowSub", doc.getFeatures().get(DocumentTimeoutException.TIMEOUT_FEATURE));
+        assertNull(doc.getFeatures().get("after"));
+      }
+    } finally {
+      Factory.deleteResource(main);
+      for(Document doc : new ArrayList<Document>(corpus)) {
+        Factory.deleteResource(doc);
+      }
+      Factory.deleteResource(corpus);
+    }
+  }
+
+  // A corpus which takes some time to get each document, like a slow 
+  // persistent corpus
+  private static class SlowCorpus extends gate.corpora.CorpusImpl {
+    private static final long serialVersionUID = 1L;
+    private final long delay;
+    SlowCorpus(long delay) {
+      this.delay = delay;
+    }
+    @Override
+    public Document get(int index) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return super.get(index);
+    }
+  }
+
+  @Test
+  public void testStagedExecution() throws Exception {
+    FeatureMap mainParms = Factory.newFeatureMap();
+    mainParms.put("stagedExecution", true);
+    mainParms.put("stageQueueSize", 2);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms,
+            Factory.newFeatureMap(), "stagedMain");
+    for(String feature : new String[] { "stage1", "stage2" }) {
+      FeatureMap parms = Factory.newFeatureMap();
+      parms.put("pipelineFileURL", saveFeatureSettingPipeline(feature).toURI().toURL());
+      Pipeline pipeline = (Pipeline)Factory.createResource(
+              "at.ofai.gate.modularpipelines.Pipeline", parms);
+      main.add(pipeline);
+    }
+    ((Pipeline)main.getPRs().get(1)).setStageThreads(2);
+    Corpus corpus = Factory.newCorpus("staged");
+    for(int i = 0; i < 10; i++) {
+      corpus.add(Factory.newDocument("document "+i));
+    }
+    main.setCorpus(corpus);
+    main.execute();
+    for(Document doc : corpus) {
+      assertEquals("done", String.valueOf(doc.getFeatures().get("stage1")));
+      assertEquals("done", String.valueOf(doc.getFeatures().get("stage2")));
+    }
+    List<StageStatistics> stats = main.getStageStatistics();
+    assertEquals(2, stats.size());
+    assertEquals(10, stats.get(0).getDocumentCount());
+    assertEquals(10, stats.get(1).getDocumentCount());
+    assertEquals(2, stats.get(1).getThreads());
+    // running again must re-use the stage threads
+    Set<String> threads = getThreadNames("ModularPipelines-Stage-stagedMain-");
+    assertEquals(3, threads.size());
+    main.execute();
+    assertEquals(threads, getThreadNames("ModularPipelines-Stage-stagedMain-"));
+    List<Object> prs = new ArrayList<Object>(main.getPRs());
+    Factory.deleteResource(main);
+    for(Object pr : prs) {
+      Factory.deleteResource((Resource)pr);
+    }
+    awaitNoThreads("ModularPipelines-Stage-stagedMain-");
+    for(Document doc : new ArrayList<Document>(corpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+  }
+
+  @Test
+  public void testExecutionMetrics() throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", saveFeatureSettingPipeline("timed").toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms, null, "Sub01");
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", 
+            Factory.newFeatureMap(), null, "MetricsMain");
+    main.add(pipeline);
+    Corpus corpus = Factory.newCorpus("metrics");
+    for(int i = 0; i < 3; i++) {
+      corpus.add(Factory.newDocument("document "+i));
+    }
+    main.setCorpus(corpus);
+    // nothing gets recorded while disabled
+    assertFalse(ExecutionMetrics.isEnabled());
+    main.execute();
+    assertFalse(hasMetrics("MetricsMain"));
+    ExecutionMetrics.setEnabled(true);
+    main.execute();
+    Map<String,ExecutionTimer.Snapshot> metrics = ExecutionMetrics.snapshot();
+    ExecutionTimer.Snapshot sub = metrics.get("MetricsMain/Sub01");
+    assertNotNull(sub);
+    assertEquals(3, sub.getRuns());
+    assertTrue(sub.getTotalNanos() > 0);
+    assertTrue(sub.getP99Nanos() >= sub.getMedianNanos());
+    // the PR inside the sub-pipeline is below the Pipeline PR
+    boolean nested = false;
+    for(String path : metrics.keySet()) {
+      nested |= path.startsWith("MetricsMain/Sub01/");
+    }
+    assertTrue(nested);
+    ((AnalyserRunningStrategy)main.getRunningStrategies().get(0)).setRunMode(
+            AnalyserRunningStrategy.RUN_NEVER);
+    main.execute();
+    assertEquals(3, ExecutionMetrics.snapshot().get("MetricsMain/Sub01").getSkips());
+    Factory.deleteResource(main);
+    Factory.deleteResource(pipeline);
+    // the metrics of a deleted controller are gone
+    assertFalse(hasMetrics("MetricsMain"));
+    for(Document doc : new ArrayList<Document>(corpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+  }
+
+  private static boolean hasMetrics(String root) {
+    for(String path : ExecutionMetrics.snapshot().keySet()) {
+      if(path.equals(root) || path.startsWith(root+"/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // A PR which adds an annotation and counts how often it was run, and 
+  // takes the given time for a document unless it gets interrupted, or
+  // fails for the document with the given name. It records the size of
+  // each batch it gets.
+  // GATE only registers one such component class for the test classes.
+  @CreoleResource(name = "TestPR")
+  public static class TestPR extends AbstractLanguageAnalyser implements BatchProcessingResource {
+    private static final long serialVersionUID = 1L;
+    static final AtomicInteger RUNS = new AtomicInteger();
+    static final List<Integer> BATCH_SIZES = Collections.synchronizedList(new ArrayList<Integer>());
+    static volatile String failOn = null;
+    static final List<String> INIT_THREADS = Collections.synchronizedList(new ArrayList<String>());
+    private static boolean registered = false;
+    static synchronized void register() throws Exception {
+      if(!registered) {
+        Gate.getCreoleRegister().registerPlugin(new Plugin.Component(TestPR.class));
+        registered = true;
+      }
+    }
+    static TestPR create(int delay) throws Exception {
+      register();
+      TestPR pr = (TestPR)Factory.createResource(TestPR.class.getName());
+      pr.setDelay(delay);
+      return pr;
+    }
+    @Optional
+    @RunTime
+    @CreoleParameter(defaultValue = "0")
+    public void setDelay(Integer millis) {
+      delay = millis;
+    }
+    public Integer getDelay() {
+      return delay;
+    }
+    private Integer delay = 0;
+    @Optional
+    @RunTime
+    @CreoleParameter(comment = "Feature to set on every annotation in the default set")
+    public void setTouch(String feature) {
+      touch = feature;
+    }
+    public String getTouch() {
+      return touch;
+    }
+    private String touch;
+    @Override
+    public Resource init() throws ResourceInstantiationException {
+      INIT_THREADS.add(Thread.currentThread().getName());
+      return super.init();
+    }
+    @Override
+    public void execute() throws ExecutionException {
+      interrupted = false;
+      RUNS.incrementAndGet();
+      if(document.getName().equals(failOn)) {
+        throw new ExecutionException("TestPR failing for "+failOn);
+      }
+      long end = System.currentTimeMillis() + delay;
+      while(System.currentTimeMillis() < end) {
+        if(isInterrupted()) {
+          throw new ExecutionInterruptedException("TestPR interrupted");
+        }
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if(touch != null) {
+        for(Annotation ann : document.getAnnotations()) {
+          ann.getFeatures().put(touch, getName());
+        }
+      }
+      gate.Utils.addAnn(document.getAnnotations("memo"), 0, document.getContent().size(), 
+              "Mark", gate.Utils.featureMap("length", document.getContent().size()));
+    }
+    @Override
+    public void executeBatch(List<Document> documents) throws ExecutionException {
+      BATCH_SIZES.add(documents.size());
+      try {
+        for(Document doc : documents) {
+          setDocument(doc);
+          execute();
+        }
+      } finally {
+        setDocument(null);
+      }
+    }
+  }
+
+  @Test
+  public void testTimeBudget() throws Exception {
+    ExecutionMetrics.setEnabled(true);
+    Corpus corpus = Factory.newCorpus("timeout");
+    corpus.add(Factory.newDocument("document"));
+    
+    // the Pipeline PR runs out of its budget and processing continues
+    File slowFile = saveSubPipeline(null, TestPR.create(10000));
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", slowFile.toURI().toURL());
+    Pipeline slowPipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms, null, "SlowSub");
+    slowPipeline.setTimeBudget(100);
+    parms.put("pipelineFileURL", saveFeatureSettingPipeline("after").toURI().toURL());
+    Pipeline after = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", 
+            Factory.newFeatureMap(), null, "TimeoutMain");
+    main.add(slowPipeline);
+    main.add(after);
+    main.setCorpus(corpus);
+    long start = System.currentTimeMillis();
+    main.execute();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    Document doc = corpus.get(0);
+    assertEquals("SlowSub", doc.getFeatures().get(DocumentTimeoutException.TIMEOUT_FEATURE));
+    assertEquals("done", doc.getFeatures().get("after"));
+    assertEquals(1, slowPipeline.getTimeoutCount());
+    assertEquals(1, ExecutionMetrics.snapshot().get("TimeoutMain/SlowSub").getTimeouts());
+    
+    // with the abort policy, the remaining PRs do not run for the document
+    doc.getFeatures().clear();
+    slowPipeline.setTimeoutPolicy("abort");
+    main.execute();
+    assertEquals("SlowSub", doc.getFeatures().get(DocumentTimeoutException.TIMEOUT_FEATURE));
+    assertNull(doc.getFeatures().get("after"));
+    
+    // the time budget of the controller itself, from its config
+    File configFile = writeConfig("- set: timebudget", "  millis: 100", "  policy: abort");
+    parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    ParametrizedCorpusController budgeted = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, null, "BudgetMain");
+    TestPR slowPR = TestPR.create(10000);
+    budgeted.add(slowPR);
+    budgeted.add(after);
+    budgeted.setCorpus(corpus);
+    doc.getFeatures().clear();
+    budgeted.execute();
+    assertEquals("BudgetMain", doc.getFeatures().get(DocumentTimeoutException.TIMEOUT_FEATURE));
+    assertNull(doc.getFeatures().get("after"));
+    assertEquals(1, ExecutionMetrics.snapshot().get("BudgetMain").getTimeouts());
+    
+    Factory.deleteResource(budgeted);
+    Factory.deleteResource(slowPR);
+    Factory.deleteResource(main);
+    Factory.deleteResource(slowPipeline);
+    Factory.deleteResource(after);
+    for(Document d : new ArrayList<Document>(corpus)) {
+      Factory.deleteResource(d);
+    }
+    Factory.deleteResource(corpus);
+  }
+
+  @Test
+  public void testRunExpressions() throws Exception {
+    ExecutionMetrics.setEnabled(true);
+    File configFile = writeConfig(
+            "- set: prrun", "  controller: CondMain", "  prname: Small", "  value: 10 > size",
+            "- set: prrun", "  controller: CondMain", "  prname: English",
+            "  value: 'feature(\"lang\") == \"en\" && !(size >= 100)'",
+            "- set: prrun", "  controller: CondMain", "  prname: Sampled", "  value: sample(0.0) || 1 > \"2\"");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, null, "CondMain");
+    List<Pipeline> pipelines = new ArrayList<>();
+    for(String name : new String[] { "Small", "English", "Sampled" }) {
+      parms = Factory.newFeatureMap();
+      parms.put("pipelineFileURL", saveFeatureSettingPipeline(name).toURI().toURL());
+      Pipeline pipeline = (Pipeline)Factory.createResource(
+              "at.ofai.gate.modularpipelines.Pipeline", parms, null, name);
+      pipelines.add(pipeline);
+      main.add(pipeline);
+    }
+    Corpus corpus = Factory.newCorpus("conditions");
+    Document small = Factory.newDocument("short");
+    small.getFeatures().put("lang", "de");
+    Document english = Factory.newDocument("a somewhat longer document");
+    english.getFeatures().put("lang", "en");
+    corpus.add(small);
+    corpus.add(english);
+    main.setCorpus(corpus);
+    main.execute();
+    assertEquals("done", small.getFeatures().get("Small"));
+    assertNull(small.getFeatures().get("English"));
+    assertNull(english.getFeatures().get("Small"));
+    assertEquals("done", english.getFeatures().get("English"));
+    assertNull(small.getFeatures().get("Sampled"));
+    assertNull(english.getFeatures().get("Sampled"));
+    assertEquals(2, ExecutionMetrics.snapshot().get("CondMain/Sampled").getSkips());
+    Factory.deleteResource(main);
+    for(Pipeline pipeline : pipelines) {
+      Factory.deleteResource(pipeline);
+    }
+    for(Document doc : new ArrayList<Document>(corpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+  }
+
+  @Test
+  public void testMemoizationKey() throws Exception {
+    File directory = Files.createTempDirectory("modularpipelines").toFile();
+    File innerConfig = writeConfig(
+            "- set: docfeature", "  name: memo", "  value: done",
+            "- set: prrun", "  controller: memoInner", "  prname: marker", "  value: false",
+            "  profile: skip");
+    File innerFile = saveNamedPipeline("memoInner", innerConfig);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", innerFile.toURI().toURL());
+    File outerFile = saveSubPipeline(null, 
+            (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms));
+    Pipeline outer = memoizingPipeline(outerFile, directory);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    main.add(outer);
+    Corpus corpus = Factory.newCorpus("memoKey");
+    corpus.add(Factory.newDocument("the same text"));
+    // the profile of the nested config is part of the key, even though
+    // the pipeline is declared to read no document features
+    Document skipped = Factory.newDocument("the same text");
+    skipped.getFeatures().put("modularpipelines.profile", "skip");
+    corpus.add(skipped);
+    main.setCorpus(corpus);
+    TestPR.RUNS.set(0);
+    main.execute();
+    assertEquals(1, TestPR.RUNS.get());
+    assertEquals(1, corpus.get(0).getAnnotations("memo").get("Mark").size());
+    assertEquals(0, skipped.getAnnotations("memo").get("Mark").size());
+    assertEquals("done", skipped.getFeatures().get("memo"));
+    
+    // a changed nested sub-pipeline file gives different keys, so the 
+    // results on disk are not used for it
+    Files.write(innerConfig.toPath(), Arrays.asList(
+            "- set: docfeature", "  name: memo", "  value: changed"), StandardCharsets.UTF_8);
+    saveNamedPipeline("memoInner", innerConfig).renameTo(innerFile);
+    main.remove(outer);
+    Factory.deleteResource(outer);
+    outer = memoizingPipeline(outerFile, directory);
+    main.add(outer);
+    Document doc = corpus.get(0);
+    doc.getFeatures().remove("memo");
+    doc.removeAnnotationSet("memo");
+    corpus.remove(skipped);
+    Factory.deleteResource(skipped);
+    main.execute();
+    assertEquals(2, TestPR.RUNS.get());
+    assertEquals("changed", doc.getFeatures().get("memo"));
+    assertEquals(0, outer.getResultCache().getDiskHitCount());
+    
+    Factory.deleteResource(main);
+    Factory.deleteResource(outer);
+    Factory.deleteResource(doc);
+    Factory.deleteResource(corpus);
+  }
+  
+  // Save a sub-pipeline with a TestPR named marker in a controller with
+  // the given name.
+  private static File saveNamedPipeline(String name, File configFile) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    ParametrizedCorpusController sub = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, 
+            Factory.newFeatureMap(), name);
+    TestPR marker = TestPR.create(0);
+    marker.setName("marker");
+    sub.add(marker);
+    File file = saveApplication(sub);
+    Factory.deleteResource(marker);
+    return file;
+  }
+  
+  private static Pipeline memoizingPipeline(File file, File directory) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", file.toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+    pipeline.setMemoize(true);
+    pipeline.setMemoDirectoryURL(directory.toURI().toURL());
+    pipeline.setReadsDocumentFeatures(Collections.<String>emptyList());
+    return pipeline;
+  }
+  
+  @Test
+  public void testMemoization() throws Exception {
+    File subFile = saveSubPipeline(writeConfig("- set: docfeature", "  name: memo", "  value: done"), 
+            TestPR.create(0));
+    File directory = Files.createTempDirectory("modularpipelines").toFile();
+    
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+    pipeline.setMemoize(true);
+    pipeline.setMemoDirectoryURL(directory.toURI().toURL());
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    main.add(pipeline);
+    Corpus corpus = Factory.newCorpus("memo");
+    corpus.add(Factory.newDocument("the same text"));
+    corpus.add(Factory.newDocument("some other text"));
+    corpus.add(Factory.newDocument("the same text"));
+    main.setCorpus(corpus);
+    TestPR.RUNS.set(0);
+    main.execute();
+    assertEquals(2, TestPR.RUNS.get());
+    for(Document doc : corpus) {
+      assertEquals("done", doc.getFeatures().get("memo"));
+      assertEquals(1, doc.getAnnotations("memo").get("Mark").size());
+      assertEquals(doc.getContent().size(), 
+              doc.getAnnotations("memo").get("Mark").iterator().next().getFeatures().get("length"));
+    }
+    ResultCache cache = pipeline.getResultCache();
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1.0/3, cache.getHitRate(), 1e-9);
+    
+    // a cache with other settings only finds the results on disk
+    pipeline.setMemoCacheSize(10);
+    for(Document doc : new ArrayList<Document>(corpus)) {
+      doc.getFeatures().remove("memo");
+      doc.removeAnnotationSet("memo");
+    }
+    main.execute();
+    assertEquals(2, TestPR.RUNS.get());
+    assertEquals(2, pipeline.getResultCache().getDiskHitCount());
+    assertEquals(1, pipeline.getResultCache().getHitCount());
+    assertEquals(1, corpus.get(2).getAnnotations("memo").get("Mark").size());
+    
+    // in batch mode, only the documents without a cached result are passed
+    // on to the pipeline, as one batch
+    File batchConfigFile = writeConfig("- set: batch", "  size: 4", "  maxwait: 1000");
+    parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    Pipeline batched = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+    batched.setMemoize(true);
+    parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", batchConfigFile.toURI().toURL());
+    ParametrizedCorpusController batchMain = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms);
+    batchMain.add(batched);
+    Corpus batchCorpus = Factory.newCorpus("memoBatch");
+    batchCorpus.add(Factory.newDocument("the same text"));
+    batchCorpus.add(Factory.newDocument("a third text"));
+    batchMain.setCorpus(batchCorpus);
+    TestPR.RUNS.set(0);
+    TestPR.BATCH_SIZES.clear();
+    batchMain.execute();
+    batchCorpus.add(Factory.newDocument("the same text"));
+    batchCorpus.add(Factory.newDocument("a fourth text"));
+    for(Document doc : batchCorpus) {
+      doc.getFeatures().remove("memo");
+      doc.removeAnnotationSet("memo");
+    }
+    batchMain.execute();
+    assertEquals(3, TestPR.RUNS.get());
+    assertEquals(Arrays.asList(2, 1), TestPR.BATCH_SIZES);
+    assertEquals(3, batched.getResultCache().getHitCount());
+    for(Document doc : batchCorpus) {
+      assertEquals("done", doc.getFeatures().get("memo"));
+      assertEquals(1, doc.getAnnotations("memo").get("Mark").size());
+    }
+    
+    // feature values which cannot be part of the key: two documents which 
+    // only differ in such a value are both processed
+    Corpus objectCorpus = Factory.newCorpus("memoObjects");
+    for(int i = 0; i < 2; i++) {
+      Document doc = Factory.newDocument("the same text");
+      doc.getFeatures().put("object", new StringBuilder("same"));
+      objectCorpus.add(doc);
+    }
+    batchMain.setCorpus(objectCorpus);
+    long stores = batched.getResultCache().getStoreCount();
+    TestPR.RUNS.set(0);
+    batchMain.execute();
+    assertEquals(2, TestPR.RUNS.get());
+    assertEquals(stores, batched.getResultCache().getStoreCount());
+    
+    // the result of a pipeline which changes annotations which were there 
+    // before is not cached
+    TestPR touchingPR = TestPR.create(0);
+    touchingPR.setTouch("touched");
+    File touchingFile = saveSubPipeline(null, touchingPR);
+    parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", touchingFile.toURI().toURL());
+    Pipeline touching = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+    touching.setMemoize(true);
+    ParametrizedCorpusController touchingMain = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    touchingMain.add(touching);
+    Corpus touchingCorpus = Factory.newCorpus("memoTouching");
+    for(int i = 0; i < 2; i++) {
+      Document doc = Factory.newDocument("the same text");
+      gate.Utils.addAnn(doc.getAnnotations(), 0, 3, "Token", Factory.newFeatureMap());
+      touchingCorpus.add(doc);
+    }
+    touchingMain.setCorpus(touchingCorpus);
+    TestPR.RUNS.set(0);
+    touchingMain.execute();
+    assertEquals(2, TestPR.RUNS.get());
+    assertEquals(0, touching.getResultCache().getStoreCount());
+    for(Document doc : touchingCorpus) {
+      assertNotNull(doc.getAnnotations().get("Token").iterator().next().getFeatures().get("touched"));
+    }
+    
+    Factory.deleteResource(main);
+    Factory.deleteResource(pipeline);
+    Factory.deleteResource(batchMain);
+    Factory.deleteResource(batched);
+    Factory.deleteResource(touchingMain);
+    Factory.deleteResource(touching);
+    for(Corpus c : new Corpus[] { corpus, batchCorpus, objectCorpus, touchingCorpus }) {
+      for(Document doc : new ArrayList<Document>(c)) {
+        Factory.deleteResource(doc);
+      }
+      Factory.deleteResource(c);
+    }
+    for(File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testCheckpoints() throws Exception {
+    File subFile = saveSubPipeline(null, TestPR.create(0));
+    File directory = Files.createTempDirectory("modularpipelines").toFile();
+    
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", saveFeatureSettingPipeline("stage1").toURI().toURL());
+    Pipeline first = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+    first.setCheckpoint(true);
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    Pipeline second = (Pipeline)Factory.createResource("at.ofai.gate.modularpipelines.Pipeline", parms);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    main.add(first);
+    main.add(second);
+    main.setCheckpointDirectoryURL(directory.toURI().toURL());
+    Corpus corpus = Factory.newCorpus("checkpoints");
+    for(int i = 0; i < 3; i++) {
+      Document doc = Factory.newDocument("document "+i);
+      doc.setName("doc"+i);
+      corpus.add(doc);
+    }
+    main.setCorpus(corpus);
+    
+    // the run fails in the second stage of the second document
+    TestPR.RUNS.set(0);
+    TestPR.failOn = "doc1";
+    try {
+      main.execute();
+      fail("the run should have failed");
+    } catch (GateRuntimeException ex) {
+      // expected, the Pipeline PR wraps the exception
+    } finally {
+      TestPR.failOn = null;
+    }
+    assertEquals(2, TestPR.RUNS.get());
+    
+    // running again skips the first document and continues the second one
+    // from the checkpoint after the first stage
+    Document doc1 = corpus.get(1);
+    doc1.getFeatures().clear();
+    doc1.getFeatures().put("notrestored", true);
+    main.execute();
+    assertEquals(4, TestPR.RUNS.get());
+    assertNull(doc1.getFeatures().get("notrestored"));
+    for(Document doc : corpus) {
+      assertEquals("done", doc.getFeatures().get("stage1"));
+      assertEquals(1, doc.getAnnotations("memo").get("Mark").size());
+    }
+    
+    // everything is done now: the documents get the saved result, like 
+    // fresh documents of a transient corpus would
+    for(Document doc : corpus) {
+      doc.getFeatures().clear();
+      doc.removeAnnotationSet("memo");
+    }
+    main.execute();
+    assertEquals(4, TestPR.RUNS.get());
+    for(Document doc : corpus) {
+      assertEquals("done", doc.getFeatures().get("stage1"));
+      assertEquals(1, doc.getAnnotations("memo").get("Mark").size());
+    }
+    
+    // a document with the same name but other content is processed
+    Corpus changed = Factory.newCorpus("changed");
+    Document doc0 = Factory.newDocument("changed document 0");
+    doc0.setName("doc0");
+    changed.add(doc0);
+    main.setCorpus(changed);
+    main.execute();
+    assertEquals(5, TestPR.RUNS.get());
+    assertEquals("done", doc0.getFeatures().get("stage1"));
+    
+    // the thread writing the checkpoints ends with the controller
+    String threads = "ModularPipelines-Checkpoint-"+main.getName();
+    assertFalse(getThreadNames(threads).isEmpty());
+    Factory.deleteResource(main);
+    awaitNoThreads(threads);
+    Factory.deleteResource(first);
+    Factory.deleteResource(second);
+    for(Corpus c : new Corpus[] { corpus, changed }) {
+      for(Document doc : new ArrayList<Document>(c)) {
+        Factory.deleteResource(doc);
+      }
+      Factory.deleteResource(c);
+    }
+    for(File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testSharedPRs() throws Exception {
+    File configFile = writeConfig(
+            "- set: prshare",
+            "  controller: sharing",
+            "  prname: shared",
+            "- set: prparm",
+            "  controller: sharing",
+            "  prname: shared",
+            "  name: touch",
+            "  value: touched",
+            "  profile: touching");
+    // the shared PR is locked by default, including its parameters, which
+    // differ between the documents each worker processes
+    TestPR shared = TestPR.create(2);
+    shared.setName("shared");
+    TestPR own = TestPR.create(0);
+    own.setName("own");
+    int instances = Gate.getCreoleRegister().getAllInstances(TestPR.class.getName()).size();
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("configFileUrl", configFile.toURI().toURL());
+    parms.put("corpusParallelism", 3);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", parms, 
+            Factory.newFeatureMap(), "sharing");
+    main.add(shared);
+    main.add(own);
+    Corpus corpus = Factory.newCorpus("sharedPRs");
+    for(int i = 0; i < 12; i++) {
+      Document doc = Factory.newDocument("document "+i);
+      gate.Utils.addAnn(doc.getAnnotations(), 0, 1, "Token", Factory.newFeatureMap());
+      if(i % 2 == 0) {
+        doc.getFeatures().put("modularpipelines.profile", "touching");
+      }
+      corpus.add(doc);
+    }
+    main.setCorpus(corpus);
+    TestPR.RUNS.set(0);
+    main.execute();
+    assertEquals(24, TestPR.RUNS.get());
+    for(int i = 0; i < corpus.size(); i++) {
+      Annotation token = corpus.get(i).getAnnotations().get("Token").iterator().next();
+      assertEquals("document "+i, i % 2 == 0 ? "shared" : null, token.getFeatures().get("touched"));
+    }
+    // only the PR which is not shared got duplicated for the two other workers
+    assertEquals(instances + 2, Gate.getCreoleRegister().getAllInstances(TestPR.class.getName()).size());
+    for(Document doc : corpus) {
+      assertEquals(2, doc.getAnnotations("memo").get("Mark").size());
+    }
+    // the shared PR is deleted with the last controller which uses it
+    Factory.deleteResource(main);
+    assertEquals(instances - 2, Gate.getCreoleRegister().getAllInstances(TestPR.class.getName()).size());
+    for(Document doc : new ArrayList<Document>(corpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+  }
+
+  @Test
+  public void testApplicationSnapshot() throws Exception {
+    File configFile = writeConfig(
+            "- set: prrun",
+            "  controller: snapshotMain",
+            "  prname: pipeline",
+            "  value: \"size > 0\"");
+    FeatureMap parms = Factory.newFeatureMap();
+    File subFile = saveFeatureSettingPipeline("snapshot");
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms, Factory.newFeatureMap(), "pipeline");
+    FeatureMap mainParms = Factory.newFeatureMap();
+    mainParms.put("configFileUrl", configFile.toURI().toURL());
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController", mainParms, 
+            Factory.newFeatureMap(), "snapshotMain");
+    main.add(pipeline);
+    File mainFile = saveApplication(main);
+    File snapshot = File.createTempFile("modularpipelines", ".snapshot");
+    snapshot.delete();
+    snapshot.deleteOnExit();
+    long writes = ApplicationSnapshot.getWriteCount();
+    long restores = ApplicationSnapshot.getRestoreCount();
+    
+    // the first load parses everything and writes the snapshot
+    clearCaches();
+    Resource app = (Resource)ApplicationSnapshot.load(mainFile.toURI().toURL(), snapshot);
+    assertTrue(snapshot.exists());
+    assertEquals(writes+1, ApplicationSnapshot.getWriteCount());
+    assertEquals(2, PipelineFileCache.getMissCount());
+    Factory.deleteResource(app);
+    
+    // loading again with empty caches, as in a new process, does not need
+    // to parse any pipeline or config file
+    clearCaches();
+    app = (Resource)ApplicationSnapshot.load(mainFile.toURI().toURL(), snapshot);
+    assertEquals(restores+1, ApplicationSnapshot.getRestoreCount());
+    assertEquals(0, ConfigCache.getMissCount());
+    assertEquals(0, PipelineFileCache.getMissCount());
+    assertEquals(2, PipelineFileCache.getHitCount());
+    assertEquals(writes+1, ApplicationSnapshot.getWriteCount());
+    assertEquals("done", runOnNewDocument((ParametrizedCorpusController)app).getFeatures().get("snapshot"));
+    Factory.deleteResource(app);
+    
+    // a changed config file is parsed again and the snapshot gets updated
+    Files.write(configFile.toPath(), Arrays.asList(
+            "- set: prrun",
+            "  controller: snapshotMain",
+            "  prname: pipeline",
+            "  value: \"size > 1000000\""), StandardCharsets.UTF_8);
+    configFile.setLastModified(configFile.lastModified()+2000);
+    clearCaches();
+    app = (Resource)ApplicationSnapshot.load(mainFile.toURI().toURL(), snapshot);
+    assertEquals(1, ConfigCache.getMissCount());
+    assertEquals(0, PipelineFileCache.getMissCount());
+    assertEquals(writes+2, ApplicationSnapshot.getWriteCount());
+    assertNull(runOnNewDocument((ParametrizedCorpusController)app).getFeatures().get("snapshot"));
+    Factory.deleteResource(app);
+    
+    // so is a changed sub-pipeline file
+    Files.copy(saveFeatureSettingPipeline("changed").toPath(), subFile.toPath(), 
+            StandardCopyOption.REPLACE_EXISTING);
+    subFile.setLastModified(subFile.lastModified()+2000);
+    Files.write(configFile.toPath(), Arrays.asList(
+            "- set: prrun",
+            "  controller: snapshotMain",
+            "  prname: pipeline",
+            "  value: \"size > 0\""), StandardCharsets.UTF_8);
+    configFile.setLastModified(configFile.lastModified()+2000);
+    clearCaches();
+    app = (Resource)ApplicationSnapshot.load(mainFile.toURI().toURL(), snapshot);
+    assertEquals(1, PipelineFileCache.getMissCount());
+    assertEquals(1, PipelineFileCache.getHitCount());
+    assertEquals(writes+3, ApplicationSnapshot.getWriteCount());
+    assertEquals("done", runOnNewDocument((ParametrizedCorpusController)app).getFeatures().get("changed"));
+    Factory.deleteResource(app);
+    
+    // and the updated snapshot has it
+    clearCaches();
+    app = (Resource)ApplicationSnapshot.load(mainFile.toURI().toURL(), snapshot);
+    assertEquals(0, ConfigCache.getMissCount());
+    assertEquals(0, PipelineFileCache.getMissCount());
+    assertEquals(writes+3, ApplicationSnapshot.getWriteCount());
+    assertEquals("done", runOnNewDocument((ParametrizedCorpusController)app).getFeatures().get("changed"));
+    Factory.deleteResource(app);
+  }
+  
+  // Forget the parsed config files and the loaded pipelines of this process
+  private static void clearCaches() {
+    ConfigCache.clear();
+    PipelineFileCache.clear();
+  }
+  
+  @Test
+  public void testConfigScope() throws Exception {
+    File subFile = saveSubPipeline(writeConfig(
+            "- set: propset",
+            "  name: tests.modularpipelines.scoped",
+            "  value: set"));
+    // creating the sub-pipeline without a scope did set the system property
+    System.clearProperty("tests.modularpipelines.scoped");
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", subFile.toURI().toURL());
+    parms.put("lazyLoading", true);
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    main.add(pipeline);
+    File mainFile = saveApplication(main);
+    Factory.deleteResource(pipeline);
+    
+    ConfigScope scopeA = new ConfigScope("A");
+    scopeA.getProperties().setProperty("modularpipelines.docfeature.scope", "A");
+    ConfigScope scopeB = new ConfigScope("B");
+    scopeB.getProperties().setProperty("modularpipelines.docfeature.scope", "B");
+    ParametrizedCorpusController appA = 
+            (ParametrizedCorpusController)scopeA.load(mainFile.toURI().toURL());
+    ParametrizedCorpusController appB = 
+            (ParametrizedCorpusController)scopeB.load(mainFile.toURI().toURL());
+    assertNull(ConfigScope.current());
+    assertSame(scopeA, appA.getConfigScope());
+    // each application only sees the overrides of its own scope
+    assertEquals("A", runOnNewDocument(appA).getFeatures().get("scope"));
+    assertEquals("B", runOnNewDocument(appB).getFeatures().get("scope"));
+    // the lazily loaded sub-pipeline sets its property in the scope only
+    assertEquals("set", scopeA.getProperties().getProperty("tests.modularpipelines.scoped"));
+    assertEquals("set", scopeB.getProperties().getProperty("tests.modularpipelines.scoped"));
+    assertNull(System.getProperty("tests.modularpipelines.scoped"));
+    assertNull(System.getProperty("modularpipelines.docfeature.scope"));
+    // an application loaded without a scope does not see any of them
+    ParametrizedCorpusController app = (ParametrizedCorpusController)
+            PipelineFileCache.loadObjectFromUrl(mainFile.toURI().toURL());
+    assertNull(runOnNewDocument(app).getFeatures().get("scope"));
+    Factory.deleteResource(appA);
+    Factory.deleteResource(appB);
+    Factory.deleteResource(app);
+  }
+  
+  @Test
+  public void testDocumentStream() throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("pipelineFileURL", saveFeatureSettingPipeline("streamed").toURI().toURL());
+    Pipeline pipeline = (Pipeline)Factory.createResource(
+            "at.ofai.gate.modularpipelines.Pipeline", parms);
+    ParametrizedCorpusController main = (ParametrizedCorpusController)Factory.createResource(
+            "at.ofai.gate.modularpipelines.ParametrizedCorpusController");
+    TestPR pr = TestPR.create(0);
+    main.add(pr);
+    main.add(pipeline);
+    try {
+      int documents = Gate.getCreoleRegister().getAllInstances("gate.corpora.DocumentImpl").size();
+      AtomicInteger finished = new AtomicInteger();
+      DocumentStreamCallback callback = doc -> {
+        assertEquals("done", doc.getFeatures().get("streamed"));
+        assertEquals(1, doc.getAnnotations("memo").get("Mark").size());
+        finished.incrementAndGet();
+      };
+      // neither the controller nor the sub-pipeline need a corpus
+      AtomicInteger supplied = new AtomicInteger();
+      main.executeStream(() -> supplied.get() < 20 ? newDocument("document "+supplied.incrementAndGet()) : null, 
+              callback);
+      assertEquals(20, finished.get());
+      // all the documents got deleted once they were done
+      assertEquals(documents, Gate.getCreoleRegister().getAllInstances("gate.corpora.DocumentImpl").size());
+      main.setCorpusParallelism(3);
+      main.executeStream(IntStream.range(0, 30).mapToObj(i -> newDocument("document "+i)), callback);
+      assertEquals(50, finished.get());
+      assertEquals(documents, Gate.getCreoleRegister().getAllInstances("gate.corpora.DocumentImpl").size());
+      // documents the caller keeps are processed but not deleted
+      List<Document> kept = new ArrayList<>();
+      for(int i = 0; i < 5; i++) {
+        kept.add(newDocument("kept "+i));
+      }
+      main.executeStream(kept.iterator(), callback, false);
+      assertEquals(55, finished.get());
+      assertEquals(documents + 5, Gate.getCreoleRegister().getAllInstances("gate.corpora.DocumentImpl").size());
+      for(Document doc : kept) {
+        assertEquals("done", doc.getFeatures().get("streamed"));
+        Factory.deleteResource(doc);
+      }
+    } finally {
+      Factory.deleteResource(main);
+      Factory.deleteResource(pipeline);
+      Factory.deleteResource(pr);
+    }
+  }
+  
+  private static Document newDocument(String content) {
+    try {
+      return Factory.newDocument(content);
+    } catch (ResourceInstantiationException ex) {
+      throw new GateRuntimeException("Could not create document", ex);
+    }
+  }
+  
+  private static Document runOnNewDocument(ParametrizedCorpusController controller) throws Exception {
+    Corpus corpus = Factory.newCorpus("run");
+    Document doc = Factory.newDocument("some text");
+    corpus.add(doc);
+    controller.setCorpus(corpus);
+    controller.execute();
+    controller.setCorpus(null);
+    Factory.deleteResource(corpus);
+    Factory.deleteResource(doc);
+    return doc;
+  }
 }